@@ -1,7 +1,6 @@
 package com.caprockapps.plugins.chromecast;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
 import com.google.android.gms.cast.framework.CastOptions;
 import com.google.android.gms.cast.framework.OptionsProvider;
@@ -12,21 +11,12 @@ import java.util.List;
 public class CastOptionsProvider implements OptionsProvider {
     @Override
     public CastOptions getCastOptions(Context context) {
-        // Version simple pour diagnostic - utilise uniquement la valeur statique
-        String staticAppId = context.getString(R.string.app_id);
-        android.util.Log.d("CastOptionsProvider", "Using STATIC App ID: " + staticAppId);
-        
-        // Essayer aussi de lire les SharedPreferences pour comparaison
-        try {
-            SharedPreferences prefs = context.getSharedPreferences("CHROMECAST_SETTINGS", Context.MODE_PRIVATE);
-            String dynamicAppId = prefs.getString("appId", "NOT_SET");
-            android.util.Log.d("CastOptionsProvider", "SharedPreferences App ID: " + dynamicAppId);
-        } catch (Exception e) {
-            android.util.Log.e("CastOptionsProvider", "Error reading SharedPreferences: " + e.getMessage());
-        }
-        
+        // The app id saved by the last initialize, or R.string.app_id if there is none
+        String appId = ChromecastConfigStore.getInstance(context).getAppId();
+        android.util.Log.d("CastOptionsProvider", "Using App ID: " + appId);
+
         CastOptions castOptions = new CastOptions.Builder()
-            .setReceiverApplicationId(staticAppId)
+            .setReceiverApplicationId(appId)
             .build();
         return castOptions;
     }
@@ -35,4 +25,4 @@ public class CastOptionsProvider implements OptionsProvider {
     public List<SessionProvider> getAdditionalSessionProviders(Context context) {
         return null;
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package com.caprockapps.plugins.chromecast;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -27,10 +28,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @CapacitorPlugin()
 public class Chromecast extends Plugin {
@@ -58,10 +66,28 @@ public class Chromecast extends Plugin {
      * In the case that chromecast can't be used.
      **/
     private String noChromecastError;
+    /**
+     * Measures the link quality with the receiver, created by startHeartbeat.
+     **/
+    private HeartbeatMonitor heartbeat;
+    /**
+     * Refreshes the token of the stream loaded by loadSecureHLS, created by it.
+     **/
+    private TokenRefreshManager tokenRefresh;
+    /**
+     * Parses and prepares the loads of all the load methods.
+     **/
+    private final LoadPipeline loadPipeline = new LoadPipeline();
+    /**
+     * Namespaces whose messages are sent as flat NAMESPACE_MESSAGE events instead of RECEIVER_MESSAGE.
+     **/
+    private final Set<String> flatNamespaces = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Initialize all of the MediaRouter stuff with the AppId.
-     * For now, ignore the autoJoinPolicy and defaultActionPolicy; those will come later
+     * autoJoinPolicy decides if an existing session is rejoined (defaults to origin_scoped).
+     * loadDebounce is the window in which loads replace each other before being sent (ms).
+     * For now, ignore the defaultActionPolicy; that will come later
      *
      * @param pluginCall called with .success or .error depending on the result
      * @return true for cordova
@@ -84,6 +110,15 @@ public class Chromecast extends Plugin {
         String defaultActionPolicy = pluginCall.getString("defaultActionPolicy");
 
         setup();
+        if (heartbeat != null) {
+            // It is bound to the previous session object
+            heartbeat.stop();
+            heartbeat = null;
+        }
+        if (tokenRefresh != null) {
+            tokenRefresh.stop();
+            tokenRefresh = null;
+        }
 
         try {
             this.connection = new ChromecastConnection(getActivity(), new ChromecastConnection.Listener() {
@@ -105,6 +140,10 @@ public class Chromecast extends Plugin {
                   JSONObject result = new JSONObject();
                   result.put("isConnected",session.isConnected());
                   result.put("error",error);
+                  if (tokenRefresh != null) {
+                    // The secured stream is no longer playing
+                    tokenRefresh.stop();
+                  }
                   sendEvent("SESSION_ENDED", JSObject.fromJSONObject(result));
                 } catch (JSONException e) {
                 }
@@ -195,17 +234,26 @@ public class Chromecast extends Plugin {
 
                 @Override
                 public void onMessageReceived(CastDevice device, String namespace, String message) {
+                    if (flatNamespaces.contains(namespace)) {
+                        JSObject event = new JSObject();
+                        event.put("deviceId", device.getDeviceId());
+                        event.put("namespace", namespace);
+                        event.put("message", message);
+                        sendEvent("NAMESPACE_MESSAGE", event);
+                        return;
+                    }
                     sendEvent("RECEIVER_MESSAGE", new JSObject().put(device.getDeviceId(), new JSObject().put("namespace", namespace).put("message", message)));
                 }
             });
             this.media = connection.getChromecastSession();
+            media.setLoadDebounce(pluginCall.getInt("loadDebounce", (int) LoadDebouncer.DEFAULT_WINDOW));
         } catch (RuntimeException e) {
             Log.e("tag", "Error initializing Chromecast connection: " + e.getMessage());
             noChromecastError = "Could not initialize chromecast: " + e.getMessage();
             e.printStackTrace();
         }
 
-        connection.initialize(appId, pluginCall);
+        connection.initialize(appId, autoJoinPolicy, pluginCall);
         return true;
     }
 
@@ -252,6 +300,12 @@ public class Chromecast extends Plugin {
                 Log.d(TAG, "Session request was cancelled by user");
                 pluginCall.reject("session_cancelled", "User cancelled the session request");
             }
+
+            @Override
+            void onTimeout(long timeout) {
+                Log.e(TAG, "Session request timed out after " + timeout + "ms");
+                ChromecastUtilities.rejectTimeout(pluginCall, "requestSession", timeout);
+            }
         });
         return true;
     }
@@ -336,43 +390,116 @@ public class Chromecast extends Plugin {
     public boolean sendMessage(final PluginCall pluginCall) {
       String namespace = pluginCall.getString("namespace");
       String message = pluginCall.getString("message");
-      JSObject returnObj = new JSObject();
+      final JSObject returnObj = new JSObject();
       returnObj.put("success",false);
       //If we don't have a session here we need to try and get it
-      if(this.media == null) this.media = connection.getChromecastSession();
+      if(this.media == null && connection != null) this.media = connection.getChromecastSession();
       //If we still don't have a session we can't call sendMessage return false;
       if(this.media == null){
+        returnObj.put("error","session_error");
         pluginCall.resolve(returnObj);
         return false;
       }
+      if (namespace == null || message == null) {
+        pluginCall.reject("namespace et message sont requis");
+        return false;
+      }
+      // Resolved once the receiver got the message, or the send failed
       this.media.sendMessage(namespace, message,new ResultCallback<Status>() {
         @Override
         public void onResult(Status result) {
           if (!result.isSuccess()) {
-            returnObj.put("error",result.getStatus().toString());
+            returnObj.put("error",result.getStatusMessage() != null ? result.getStatusMessage() : String.valueOf(result.getStatusCode()));
+            returnObj.put("code",result.getStatusCode());
           } else {
             returnObj.put("success",true);
           }
+          pluginCall.resolve(returnObj);
         }
       });
-      pluginCall.resolve(returnObj);
       return true;
     }
 
+    /**
+     * Appelle une méthode du receiver et attend sa réponse (voir custom-receiver/index.html).
+     * La réponse est remise directement à cet appel, sans passer par RECEIVER_MESSAGE.
+     * Rejeté avec le code de l'erreur du receiver, "timeout" ou "session_error".
+     *
+     * @param pluginCall contient "namespace", "method", "params" (optionnel) et "timeout" (ms, optionnel)
+     */
+    @PluginMethod
+    public void rpc(PluginCall pluginCall) {
+        String namespace = pluginCall.getString("namespace");
+        String method = pluginCall.getString("method");
+        if (namespace == null || method == null) {
+            pluginCall.reject("namespace et method sont requis");
+            return;
+        }
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        int timeout = pluginCall.getInt("timeout", (int) RpcClient.DEFAULT_TIMEOUT);
+        if (timeout <= 0) {
+            pluginCall.reject("timeout doit être positif");
+            return;
+        }
+        media.rpc(namespace, method, pluginCall.getData().opt("params"), timeout, pluginCall);
+    }
+
     /**
      * Adds a listener to a specific namespace.
+     * The listener is kept across session changes. With "types", only the JSON messages whose
+     * "type" field is in the list are sent to the app. With "flat", messages are sent as
+     * NAMESPACE_MESSAGE events {deviceId, namespace, message} instead of RECEIVER_MESSAGE.
      *
      * @param pluginCall called with .success or .error depending on the result
      */
     @PluginMethod
     public void addMessageListener(PluginCall pluginCall) {
         String namespace = pluginCall.getString("namespace");
-        if (namespace != null) {
-            this.media.addMessageListener(namespace);
-            pluginCall.resolve();
+        if (namespace == null) {
+            pluginCall.reject("namespace is required");
+            return;
+        }
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        Set<String> types = null;
+        JSArray typeArray = pluginCall.getArray("types", null);
+        if (typeArray != null) {
+            types = new HashSet<>();
+            for (int i = 0; i < typeArray.length(); i++) {
+                types.add(typeArray.optString(i));
+            }
+        }
+        if (pluginCall.getBoolean("flat", false)) {
+            flatNamespaces.add(namespace);
         } else {
+            flatNamespaces.remove(namespace);
+        }
+        this.media.addMessageListener(namespace, types);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Retire le listener ajouté avec addMessageListener.
+     *
+     * @param pluginCall contient "namespace"
+     */
+    @PluginMethod
+    public void removeMessageListener(PluginCall pluginCall) {
+        String namespace = pluginCall.getString("namespace");
+        if (namespace == null) {
             pluginCall.reject("namespace is required");
+            return;
         }
+        if (media != null) {
+            media.removeMessageListener(namespace);
+        }
+        flatNamespaces.remove(namespace);
+        pluginCall.resolve();
     }
 
     /**
@@ -391,40 +518,7 @@ public class Chromecast extends Plugin {
      */
     @PluginMethod
     public void loadMedia(final PluginCall pluginCall) {
-        String contentId = pluginCall.getString("contentId");
-        JSObject customData = pluginCall.getObject("customData", new JSObject());
-        String contentType = pluginCall.getString("contentType", "");
-        Integer duration = pluginCall.getInt("duration", 0);
-        String streamType = pluginCall.getString("streamType", "");
-        Boolean autoPlay = pluginCall.getBoolean("autoPlay", false);
-        Integer currentTime = pluginCall.getInt("currentTime", 0);
-        JSObject metadata = pluginCall.getObject("metadata", new JSObject());
-        JSObject textTrackStyle = pluginCall.getObject("textTrackStyle", new JSObject());
-
-        // Détection automatique du contentType si non spécifié ou incorrect
-        String detectedContentType = detectContentType(contentId, contentType);
-        if (!detectedContentType.equals(contentType)) {
-            Log.d(TAG, "ContentType corrigé de '" + contentType + "' vers '" + detectedContentType + "'");
-            contentType = detectedContentType;
-        }
-        
-        // Ajustement du streamType pour HLS
-        if (detectedContentType.equals("application/x-mpegURL") && (streamType == null || streamType.isEmpty())) {
-            streamType = "LIVE";
-            Log.d(TAG, "StreamType défini sur LIVE pour le stream HLS");
-        }
-        
-        // Logging pour diagnostic
-        Log.d(TAG, "=== LOAD MEDIA DEBUG ===");
-        Log.d(TAG, "contentId: " + contentId);
-        Log.d(TAG, "contentType: " + contentType);
-        Log.d(TAG, "streamType: " + streamType);
-        Log.d(TAG, "autoPlay: " + autoPlay);
-        Log.d(TAG, "duration: " + duration);
-        Log.d(TAG, "currentTime: " + currentTime);
-        Log.d(TAG, "========================");
-
-        this.connection.getChromecastSession().loadMedia(contentId, customData, contentType, duration, streamType, autoPlay, currentTime, metadata, textTrackStyle, pluginCall);
+        load(LoadPipeline.Request.fromCall("loadMedia", pluginCall), pluginCall);
     }
     
     /**
@@ -443,66 +537,25 @@ public class Chromecast extends Plugin {
      *                   - textTrackStyle : style des sous-titres (optionnel)
      *                   - authHeaders : en-têtes d'authentification (optionnel)
      *                   - authToken : token d'authentification à ajouter aux customData (optionnel)
+     *                   - preflight : vérifie le manifeste avant le chargement, avec les authHeaders (optionnel, défaut : false)
+     *                   - resolveRedirects : suit les redirections ici et envoie l'URL finale (optionnel, défaut : false)
+     *                   - relay : fait passer un flux HLS par le relais du téléphone, qui ajoute les authHeaders (optionnel, défaut : false)
      */
     @PluginMethod
     public void loadMediaWithHeaders(final PluginCall pluginCall) {
-        String contentId = pluginCall.getString("contentId");
-        JSObject customData = pluginCall.getObject("customData", new JSObject());
-        String contentType = pluginCall.getString("contentType", "");
-        Integer duration = pluginCall.getInt("duration", 0);
-        String streamType = pluginCall.getString("streamType", "");
-        Boolean autoPlay = pluginCall.getBoolean("autoPlay", false);
-        Integer currentTime = pluginCall.getInt("currentTime", 0);
-        JSObject metadata = pluginCall.getObject("metadata", new JSObject());
-        JSObject textTrackStyle = pluginCall.getObject("textTrackStyle", new JSObject());
-        JSObject authHeaders = pluginCall.getObject("authHeaders", new JSObject());
-        String authToken = pluginCall.getString("authToken", "");
-
-        // Ajouter les en-têtes d'authentification aux customData
-        if (authHeaders != null && authHeaders.length() > 0) {
-            try {
-                customData.put("authHeaders", authHeaders);
-                Log.d(TAG, "Added auth headers to customData: " + authHeaders.toString());
-            } catch (Exception e) {
-                Log.w(TAG, "Failed to add auth headers to customData", e);
-            }
-        }
-        
-        // Ajouter le token d'authentification aux customData
-        if (authToken != null && !authToken.isEmpty()) {
-            try {
-                customData.put("authToken", authToken);
-                Log.d(TAG, "Added auth token to customData");
-            } catch (Exception e) {
-                Log.w(TAG, "Failed to add auth token to customData", e);
-            }
-        }
+        LoadPipeline.Request request = LoadPipeline.Request.fromCall("loadMediaWithHeaders", pluginCall);
+        JSONObject authHeaders = LoadPipeline.getObject(pluginCall.getData(), "authHeaders", null);
+        String authToken = LoadPipeline.getString(pluginCall.getData(), "authToken", "");
 
-        // Détection automatique du contentType si non spécifié ou incorrect
-        String detectedContentType = detectContentType(contentId, contentType);
-        if (!detectedContentType.equals(contentType)) {
-            Log.d(TAG, "ContentType corrigé de '" + contentType + "' vers '" + detectedContentType + "'");
-            contentType = detectedContentType;
+        // Ajouter les en-têtes et le token d'authentification aux customData
+        if (authHeaders != null && authHeaders.length() > 0) {
+            request.putCustomData("authHeaders", authHeaders);
+            request.headers = authHeaders;
         }
-        
-        // Ajustement du streamType pour HLS
-        if (detectedContentType.equals("application/x-mpegURL") && (streamType == null || streamType.isEmpty())) {
-            streamType = "LIVE";
-            Log.d(TAG, "StreamType défini sur LIVE pour le stream HLS");
+        if (!authToken.isEmpty()) {
+            request.putCustomData("authToken", authToken);
         }
-        
-        // Logging pour diagnostic
-        Log.d(TAG, "=== LOAD MEDIA WITH HEADERS DEBUG ===");
-        Log.d(TAG, "contentId: " + contentId);
-        Log.d(TAG, "contentType: " + contentType);
-        Log.d(TAG, "streamType: " + streamType);
-        Log.d(TAG, "autoPlay: " + autoPlay);
-        Log.d(TAG, "duration: " + duration);
-        Log.d(TAG, "currentTime: " + currentTime);
-        Log.d(TAG, "customData: " + customData.toString());
-        Log.d(TAG, "=====================================");
-
-        this.connection.getChromecastSession().loadMedia(contentId, customData, contentType, duration, streamType, autoPlay, currentTime, metadata, textTrackStyle, pluginCall);
+        load(request, pluginCall);
     }
 
     /**
@@ -513,148 +566,34 @@ public class Chromecast extends Plugin {
      */
     @PluginMethod
     public void launchMedia(final PluginCall pluginCall) {
-        // Debug complet pour voir toutes les données
-        Log.d(TAG, "=== DEBUG LAUNCH MEDIA ===");
-        Log.d(TAG, "MethodName: " + pluginCall.getMethodName());
-        Log.d(TAG, "CallbackId: " + pluginCall.getCallbackId());
-        
-        JSObject data = pluginCall.getData();
-        Log.d(TAG, "Data: " + (data != null ? data.toString() : "null"));
-        
-        if (data != null) {
-            // Lister toutes les clés disponibles
-            try {
-                // JSObject hérite de JSONObject, utilisons les méthodes disponibles
-                java.util.Iterator<String> keys = data.keys();
-                Log.d(TAG, "Clés disponibles:");
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    Object value = data.opt(key);
-                    Log.d(TAG, "  " + key + ": " + value + " (" + (value != null ? value.getClass().getSimpleName() : "null") + ")");
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Erreur lors de l'analyse des clés: " + e.getMessage());
-            }
+        // L'URL peut être passée dans "mediaUrl", "url" ou directement en paramètre ("options")
+        JSONObject data = pluginCall.getData();
+        String mediaUrl = LoadPipeline.getString(data, "mediaUrl", "");
+        if (mediaUrl.isEmpty()) {
+            mediaUrl = LoadPipeline.getString(data, "url", "");
         }
-        
-        // Pour une méthode avec un seul paramètre, Capacitor utilise une approche différente
-        // L'URL devrait être le premier et seul paramètre passé à la méthode
-        String mediaUrl = null;
-        
-        // Essayer différentes façons de récupérer le paramètre unique
-        // 1. Récupérer comme paramètre nommé "mediaUrl"
-        mediaUrl = pluginCall.getString("mediaUrl");
-        if (mediaUrl != null && !mediaUrl.isEmpty()) {
-            Log.d(TAG, "URL trouvée dans mediaUrl: " + mediaUrl);
-        } else {
-            // 2. Essayer "url"  
-            mediaUrl = pluginCall.getString("url");
-            if (mediaUrl != null && !mediaUrl.isEmpty()) {
-                Log.d(TAG, "URL trouvée dans url: " + mediaUrl);
-            } else {
-                // 3. Essayer "options" (d'après vos logs précédents)
-                mediaUrl = pluginCall.getString("options");
-                if (mediaUrl != null && !mediaUrl.isEmpty()) {
-                    Log.d(TAG, "URL trouvée dans options: " + mediaUrl);
-                } else {
-                    // 4. Si les données ne sont pas vides, essayer de les traiter comme une chaîne directe
-                    if (data != null && data.has("options")) {
-                        Object options = data.opt("options");
-                        Log.d(TAG, "Options trouvé: " + options + " (" + (options != null ? options.getClass().getSimpleName() : "null") + ")");
-                        if (options instanceof String) {
-                            mediaUrl = (String) options;
-                            Log.d(TAG, "URL trouvée dans data.options: " + mediaUrl);
-                        }
-                    }
-                }
-            }
+        if (mediaUrl.isEmpty()) {
+            mediaUrl = LoadPipeline.getString(data, "options", "");
         }
-        
-        Log.d(TAG, "=== FIN DEBUG ===");
-        
-        if (mediaUrl == null || mediaUrl.isEmpty()) {
-            Log.e(TAG, "ERREUR: Aucune URL trouvée après toutes les tentatives");
+        if (mediaUrl.isEmpty()) {
             pluginCall.reject("mediaUrl est requis");
             return;
         }
-        
-        Log.d(TAG, "URL finale utilisée: " + mediaUrl);
-
-        // Vérifier si une session est active
-        if (this.connection == null) {
-            Log.e(TAG, "ERREUR: Aucune connexion Chromecast initialisée");
-            pluginCall.resolve(new JSObject().put("value", false));
-            return;
-        }
-        
-        if (this.connection.getChromecastSession() == null) {
-            Log.e(TAG, "ERREUR: Aucune session Chromecast active");
+        if (this.connection == null || this.connection.getChromecastSession() == null) {
+            Log.e(TAG, "launchMedia: aucune session Chromecast");
             pluginCall.resolve(new JSObject().put("value", false));
             return;
         }
-        
-        Log.d(TAG, "Session Chromecast trouvée, tentative de lancement du média...");
 
-        try {
-            // Utiliser des valeurs par défaut pour les paramètres optionnels
-            JSObject customData = new JSObject();
-            
-            // Détection automatique du contentType
-            String contentType = detectContentType(mediaUrl, null);
-            
-            Integer duration = 0; // Durée inconnue
-            String streamType = "BUFFERED"; // Type de stream par défaut
-            
-            // Ajustement du streamType pour HLS
-            if (contentType.equals("application/x-mpegURL")) {
-                streamType = "LIVE";
-                Log.d(TAG, "StreamType ajusté pour HLS: LIVE");
-            }
-            
-            Boolean autoPlay = true; // Lecture automatique
-            Integer currentTime = 0; // Commencer au début
-            JSObject metadata = new JSObject();
-            JSObject textTrackStyle = new JSObject();
-
-            Log.d(TAG, "Paramètres de loadMedia:");
-            Log.d(TAG, "  URL: " + mediaUrl);
-            Log.d(TAG, "  ContentType (détecté): " + contentType);
-            Log.d(TAG, "  StreamType: " + streamType);
-            Log.d(TAG, "  AutoPlay: " + autoPlay);
-
-            // Appeler directement la méthode loadMedia de ChromecastSession
-            Log.d(TAG, "Appel de la méthode loadMedia de ChromecastSession...");
-            
-            // Convertir les paramètres en format JSON
-            try {
-                JSONObject customDataJSON = new JSONObject(customData.toString());
-                JSONObject metadataJSON = new JSONObject(metadata.toString());
-                JSONObject textTrackStyleJSON = new JSONObject(textTrackStyle.toString());
-                
-                // Appeler directement la méthode loadMedia de ChromecastSession
-                this.connection.getChromecastSession().loadMedia(
-                    mediaUrl, 
-                    customDataJSON, 
-                    contentType, 
-                    duration.longValue(), 
-                    streamType, 
-                    autoPlay, 
-                    currentTime.doubleValue(), 
-                    metadataJSON, 
-                    textTrackStyleJSON, 
-                    pluginCall
-                );
-            } catch (JSONException e) {
-                Log.e(TAG, "Erreur de conversion JSON: " + e.getMessage());
-                pluginCall.reject("json_error", e);
-            }
-            
-            Log.d(TAG, "LaunchMedia terminé, méthode loadMedia appelée");
-        } catch (Exception e) {
-            Log.e(TAG, "Exception lors du lancement du média: " + e.getMessage());
-            e.printStackTrace();
-            pluginCall.resolve(new JSObject().put("value", false));
+        // Valeurs par défaut : lecture automatique depuis le début
+        LoadPipeline.Request request = new LoadPipeline.Request("launchMedia");
+        request.contentId = mediaUrl;
+        request.streamType = "buffered";
+        request.autoPlay = true;
+        if (LoadPipeline.HLS_CONTENT_TYPE.equals(LoadPipeline.detectContentType(mediaUrl, null))) {
+            request.streamType = "live";
         }
+        load(request, pluginCall);
     }
 
 
@@ -788,6 +727,293 @@ public class Chromecast extends Plugin {
         notifyListeners(eventName, args);
     }
 
+    /**
+     * Active ou désactive le regroupement des messages d'un namespace.
+     * Les messages envoyés dans une courte fenêtre sont regroupés dans une seule enveloppe,
+     * que le receiver doit dégrouper (voir custom-receiver/index.html). L'ordre est conservé
+     * et chaque sendMessage reçoit son propre résultat.
+     *
+     * @param pluginCall contient "namespace", "enabled", "window" (ms) et "maxBytes" (optionnels)
+     */
+    @PluginMethod
+    public void setMessageBatching(PluginCall pluginCall) {
+        String namespace = pluginCall.getString("namespace");
+        if (namespace == null) {
+            pluginCall.reject("namespace is required");
+            return;
+        }
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        boolean enabled = pluginCall.getBoolean("enabled", true);
+        int window = pluginCall.getInt("window", (int) MessageBatcher.DEFAULT_WINDOW);
+        int maxBytes = pluginCall.getInt("maxBytes", MessageBatcher.DEFAULT_MAX_BYTES);
+        if (window <= 0 || maxBytes <= 0) {
+            pluginCall.reject("window et maxBytes doivent être positifs");
+            return;
+        }
+        media.setMessageBatching(namespace, enabled, window, maxBytes);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Configure le découpage des messages trop gros pour le canal Cast.
+     * Les messages de plus de 48 Ko sont envoyés en morceaux, réassemblés par le receiver
+     * (voir custom-receiver/index.html), "window" morceaux pouvant être en vol à la fois.
+     *
+     * @param pluginCall contient "chunkSize" (octets) et "window" (optionnels)
+     */
+    @PluginMethod
+    public void setMessageChunking(PluginCall pluginCall) {
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        int chunkSize = pluginCall.getInt("chunkSize", MessageChunker.DEFAULT_CHUNK_SIZE);
+        int window = pluginCall.getInt("window", MessageChunker.DEFAULT_WINDOW);
+        if (chunkSize <= 0 || chunkSize > MessageChunker.MAX_CHUNK_SIZE || window <= 0) {
+            pluginCall.reject("chunkSize doit être entre 1 et " + MessageChunker.MAX_CHUNK_SIZE
+                + ", window doit être positif");
+            return;
+        }
+        media.setMessageChunking(chunkSize, window);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Active ou désactive la compression des messages envoyés (deflate + base64).
+     * Seuls les messages d'au moins "threshold" octets qui rétrécissent sont compressés,
+     * le receiver doit les décompresser (voir custom-receiver/index.html).
+     * Les messages compressés reçus sont toujours décompressés.
+     *
+     * @param pluginCall contient "enabled" et "threshold" (octets) (optionnels)
+     */
+    @PluginMethod
+    public void setMessageCompression(PluginCall pluginCall) {
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        boolean enabled = pluginCall.getBoolean("enabled", true);
+        int threshold = pluginCall.getInt("threshold", MessageCompressor.DEFAULT_THRESHOLD);
+        if (threshold <= 0) {
+            pluginCall.reject("threshold doit être positif");
+            return;
+        }
+        media.setMessageCompression(enabled, threshold);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Place les messages d'un namespace dans une voie de l'ordonnanceur d'envoi.
+     * Les voies "control", "media" (par défaut) et "bulk" sont servies dans cet ordre,
+     * chacune dans la limite de son débit (voir setLaneRateLimit).
+     *
+     * @param pluginCall contient "namespace" et "lane"
+     */
+    @PluginMethod
+    public void setMessageLane(PluginCall pluginCall) {
+        String namespace = pluginCall.getString("namespace");
+        int lane = OutboundScheduler.getLane(pluginCall.getString("lane", ""));
+        if (namespace == null || lane == -1) {
+            pluginCall.reject("namespace et lane (control, media ou bulk) sont requis");
+            return;
+        }
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        media.setMessageLane(namespace, lane);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Change la limite de débit d'une voie de l'ordonnanceur d'envoi (token bucket).
+     *
+     * @param pluginCall contient "lane", "rate" (messages par seconde, 0 sans limite) et "burst"
+     */
+    @PluginMethod
+    public void setLaneRateLimit(PluginCall pluginCall) {
+        int lane = OutboundScheduler.getLane(pluginCall.getString("lane", ""));
+        Double rate = pluginCall.getDouble("rate");
+        int burst = pluginCall.getInt("burst", 1);
+        if (lane == -1 || rate == null) {
+            pluginCall.reject("lane (control, media ou bulk) et rate sont requis");
+            return;
+        }
+        if (rate < 0 || burst <= 0) {
+            pluginCall.reject("rate doit être positif ou nul et burst positif");
+            return;
+        }
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        media.setLaneRateLimit(lane, rate, burst);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Donne une URL du serveur local pour un fichier du téléphone, à utiliser par exemple pour
+     * les sous-titres ou les éléments d'une file. Les méthodes de chargement le font d'elles-mêmes
+     * quand contentId est un chemin local.
+     *
+     * @param pluginCall contient "path" (chemin, file:// ou URL Capacitor.convertFileSrc) et "contentType" (optionnel)
+     */
+    @PluginMethod
+    public void serveLocalFile(PluginCall pluginCall) {
+        String path = pluginCall.getString("path", "");
+        if (path.isEmpty() || !LocalMediaServer.isLocal(path)) {
+            pluginCall.reject("path doit être un chemin local");
+            return;
+        }
+        File file = LocalMediaServer.toFile(path);
+        if (!file.isFile() || !file.canRead()) {
+            pluginCall.reject("Fichier introuvable : " + file.getPath());
+            return;
+        }
+        try {
+            JSObject result = new JSObject();
+            result.put("url", LocalMediaServer.getInstance().serve(file, pluginCall.getString("contentType")));
+            pluginCall.resolve(result);
+        } catch (IOException e) {
+            pluginCall.reject("Serveur local indisponible : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Démarre l'envoi de heartbeats au receiver pour mesurer le RTT, la gigue et la perte de messages.
+     * L'événement LINK_DEGRADED est émis quand la qualité du lien se dégrade durablement,
+     * LINK_RECOVERED quand elle redevient normale.
+     * Le receiver doit répondre aux PING (voir custom-receiver/index.html).
+     *
+     * @param pluginCall contient "interval", "degradedRtt" et "windowSize" (optionnels)
+     */
+    @PluginMethod
+    public void startHeartbeat(PluginCall pluginCall) {
+        if (media == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        int interval = pluginCall.getInt("interval", 2000);
+        int degradedRtt = pluginCall.getInt("degradedRtt", 500);
+        int windowSize = pluginCall.getInt("windowSize", 20);
+        if (interval <= 0 || degradedRtt <= 0 || windowSize <= 0) {
+            pluginCall.reject("interval, degradedRtt et windowSize doivent être positifs");
+            return;
+        }
+        if (heartbeat == null) {
+            heartbeat = new HeartbeatMonitor(media, new HeartbeatMonitor.Listener() {
+                @Override
+                public void onLinkDegraded(JSONObject stats) {
+                    try {
+                        sendEvent("LINK_DEGRADED", JSObject.fromJSONObject(stats));
+                    } catch (JSONException e) {
+                    }
+                }
+                @Override
+                public void onLinkRecovered(JSONObject stats) {
+                    try {
+                        sendEvent("LINK_RECOVERED", JSObject.fromJSONObject(stats));
+                    } catch (JSONException e) {
+                    }
+                }
+            });
+        }
+        heartbeat.start(interval, degradedRtt, windowSize);
+        pluginCall.resolve();
+    }
+
+    /**
+     * Arrête l'envoi de heartbeats, les dernières statistiques restent disponibles.
+     *
+     * @param pluginCall résolu une fois arrêté
+     */
+    @PluginMethod
+    public void stopHeartbeat(PluginCall pluginCall) {
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        pluginCall.resolve();
+    }
+
+    /**
+     * Retourne les statistiques du lien mesurées par les heartbeats.
+     *
+     * @param pluginCall résolu avec les statistiques
+     */
+    @PluginMethod
+    public void getLinkStats(PluginCall pluginCall) {
+        if (heartbeat == null) {
+            pluginCall.reject("Le heartbeat n'a pas été démarré");
+            return;
+        }
+        try {
+            pluginCall.resolve(JSObject.fromJSONObject(heartbeat.getStats()));
+        } catch (JSONException e) {
+            pluginCall.reject(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Donne le nouveau token demandé par l'événement TOKEN_REFRESH_NEEDED. Il est envoyé au
+     * récepteur (voir custom-receiver/index.html) et au relais HLS, puis son propre renouvellement est planifié.
+     * L'événement TOKEN_REFRESH_LATE est émis si le token arrive au récepteur après l'expiration du précédent.
+     *
+     * @param pluginCall contient "token"
+     */
+    @PluginMethod
+    public void refreshToken(PluginCall pluginCall) {
+        String token = pluginCall.getString("token", "");
+        if (token.isEmpty()) {
+            pluginCall.reject("token est requis");
+            return;
+        }
+        if (tokenRefresh == null || !tokenRefresh.refresh(token)) {
+            pluginCall.reject("Aucun token n'est suivi, chargez d'abord un flux avec loadSecureHLS");
+            return;
+        }
+        pluginCall.resolve();
+    }
+
+    /**
+     * Retourne les métriques de performance du plugin.
+     *
+     * @param pluginCall résolu avec les métriques
+     */
+    @PluginMethod
+    public void getMetrics(PluginCall pluginCall) {
+        if (connection == null) {
+            pluginCall.reject("Chromecast n'est pas initialisé");
+            return;
+        }
+        JSObject result = new JSObject();
+        result.put("castContext", connection.getInitMetrics());
+        result.put("mainThread", MainThreadDispatcher.getInstance().getStats());
+        result.put("timeouts", TimeoutWheel.getInstance().getStats());
+        result.put("loads", loadPipeline.getStats());
+        result.put("localServer", LocalMediaServer.getInstance().getStats());
+        result.put("relay", HlsRelay.getInstance().getStats());
+        if (media != null) {
+            result.put("zapping", media.getLoadStats());
+            result.put("messages", media.getMessageStats());
+            result.put("batching", media.getBatchingStats());
+            result.put("chunking", media.getChunkingStats());
+            result.put("compression", media.getCompressionStats());
+            result.put("rpc", media.getRpcStats());
+            result.put("router", media.getRouterStats());
+            result.put("scheduler", media.getSchedulerStats());
+        }
+        if (tokenRefresh != null) {
+            result.put("tokenRefresh", tokenRefresh.getStats());
+        }
+        if (heartbeat != null) {
+            result.put("link", heartbeat.getStats());
+        }
+        pluginCall.resolve(result);
+    }
+
     /**
      * Test method to try different App IDs and diagnose the issue
      */
@@ -885,46 +1111,9 @@ public class Chromecast extends Plugin {
     }
 
     /**
-     * Detecte automatiquement le contentType en fonction de l'URL
-     */
-    private String detectContentType(String url, String providedContentType) {
-        if (url == null) {
-            return providedContentType != null ? providedContentType : "video/mp4";
-        }
-        
-        // Nettoie l'URL pour enlever les paramètres de requête SEULEMENT pour la détection
-        // L'URL originale avec les tokens sera préservée lors du chargement du média
-        String baseUrl = url.split("\\?")[0].toLowerCase();
-        
-        if (baseUrl.endsWith(".m3u8")) {
-            Log.d(TAG, "Detected HLS stream (.m3u8) - using application/x-mpegURL");
-            if (url.contains("token=") || url.contains("?") || url.contains("&")) {
-                Log.d(TAG, "HLS stream with authentication tokens detected - tokens will be preserved");
-            }
-            return "application/x-mpegURL";
-        } else if (baseUrl.endsWith(".mpd")) {
-            Log.d(TAG, "Detected DASH stream (.mpd) - using application/dash+xml");
-            if (url.contains("token=") || url.contains("?") || url.contains("&")) {
-                Log.d(TAG, "DASH stream with authentication tokens detected - tokens will be preserved");
-            }
-            return "application/dash+xml";
-        } else if (baseUrl.endsWith(".mp4")) {
-            Log.d(TAG, "Detected MP4 video - using video/mp4");
-            return "video/mp4";
-        } else if (baseUrl.endsWith(".webm")) {
-            Log.d(TAG, "Detected WebM video - using video/webm");
-            return "video/webm";
-        } else if (baseUrl.endsWith(".mkv")) {
-            Log.d(TAG, "Detected MKV video - using video/x-matroska");
-            return "video/x-matroska";
-        }
-        
-        // Si on ne peut pas détecter, utilise le contentType fourni ou MP4 par défaut
-        return providedContentType != null ? providedContentType : "video/mp4";
-    }
-
-    /**
-     * Teste l'accessibilité d'une URL pour diagnostiquer les problèmes de chargement
+     * Teste l'accessibilité d'une URL pour diagnostiquer les problèmes de chargement.
+     * Sauf avec preflight à false, le manifeste est aussi téléchargé et vérifié (voir ManifestPreflight),
+     * avec les en-têtes passés dans headers
      */
     @PluginMethod
     public void testUrl(PluginCall pluginCall) {
@@ -947,7 +1136,7 @@ public class Chromecast extends Plugin {
             result.put("query", urlObj.getQuery());
             
             // Détecter le content type
-            String detectedContentType = detectContentType(url, null);
+            String detectedContentType = LoadPipeline.detectContentType(url, null);
             result.put("detectedContentType", detectedContentType);
             
             // Analyser les paramètres pour HLS/DASH
@@ -984,7 +1173,21 @@ public class Chromecast extends Plugin {
             result.put("error", e.getMessage());
         }
         
-        pluginCall.resolve(result);
+        if (!pluginCall.getBoolean("preflight", true)) {
+            pluginCall.resolve(result);
+            return;
+        }
+        // Vérifier le manifeste, les variantes et le premier segment
+        final JSObject diagnostic = result;
+        final PluginCall call = pluginCall;
+        loadPipeline.getPreflight().check(url, LoadPipeline.getObject(pluginCall.getData(), "headers", null),
+                new ManifestPreflight.Callback() {
+                    @Override
+                    public void onResult(ManifestPreflight.Result preflight) {
+                        diagnostic.put("preflight", preflight.toJSON());
+                        call.resolve(diagnostic);
+                    }
+                });
     }
 
     /**
@@ -1068,13 +1271,13 @@ public class Chromecast extends Plugin {
         JSObject result = new JSObject();
         
         try {
-            // 1. Vérifier l'App ID dans les SharedPreferences
-            android.content.SharedPreferences prefs = getContext().getSharedPreferences("CHROMECAST_SETTINGS", android.content.Context.MODE_PRIVATE);
-            String savedAppId = prefs.getString("appId", "NOT_FOUND");
+            // 1. Vérifier l'App ID sauvegardé
+            ChromecastConfigStore config = ChromecastConfigStore.getInstance(getContext());
+            String savedAppId = config.get(ChromecastConfigStore.KEY_APP_ID, "NOT_FOUND");
             result.put("savedAppId", savedAppId);
             
             // 2. Vérifier l'App ID par défaut
-            String defaultAppId = getContext().getString(R.string.app_id);
+            String defaultAppId = config.getDefaultAppId();
             result.put("defaultAppId", defaultAppId);
             
             // 3. Tester la création d'un CastOptionsProvider
@@ -1161,7 +1364,7 @@ public class Chromecast extends Plugin {
             JSObject testUrl = new JSObject();
             testUrl.put("url", urls[i]);
             testUrl.put("description", descriptions[i]);
-            testUrl.put("detectedContentType", detectContentType(urls[i], null));
+            testUrl.put("detectedContentType", LoadPipeline.detectContentType(urls[i], null));
             
             // Suggérer les paramètres de streaming
             if (urls[i].contains(".m3u8")) {
@@ -1198,94 +1401,206 @@ public class Chromecast extends Plugin {
      */
     @PluginMethod
     public void loadSecureHLS(final PluginCall pluginCall) {
-        String contentId = pluginCall.getString("contentId");
-        String customAppId = pluginCall.getString("customAppId");
-        JSObject customData = pluginCall.getObject("customData", new JSObject());
-        String contentType = pluginCall.getString("contentType", "application/x-mpegURL");
-        String streamType = pluginCall.getString("streamType", "LIVE");
-        Boolean autoPlay = pluginCall.getBoolean("autoPlay", true);
-        JSObject metadata = pluginCall.getObject("metadata", new JSObject());
-        String authToken = pluginCall.getString("authToken", "");
-
-        if (contentId == null || contentId.isEmpty()) {
-            pluginCall.reject("contentId est requis");
-            return;
+        LoadPipeline.Request request = LoadPipeline.Request.fromCall("loadSecureHLS", pluginCall);
+        JSONObject data = pluginCall.getData();
+        if (request.contentType == null) {
+            request.contentType = LoadPipeline.HLS_CONTENT_TYPE;
+        }
+        if (!data.has("streamType")) {
+            request.streamType = "live";
         }
+        if (!data.has("autoPlay")) {
+            request.autoPlay = true;
+        }
+        // Seuls les métadonnées et les customData sont repris, le média démarre au début
+        request.duration = 0;
+        request.currentTime = 0;
+        request.textTrackStyle = new JSONObject();
+        String authToken = LoadPipeline.getString(data, "authToken", "");
+        String contentId = request.contentId;
 
         // Extraire le token de l'URL si présent
-        if (authToken.isEmpty() && contentId.contains("token=")) {
-            try {
-                String[] urlParts = contentId.split("\\?");
-                if (urlParts.length > 1) {
-                    String[] params = urlParts[1].split("&");
-                    for (String param : params) {
-                        if (param.startsWith("token=")) {
-                            authToken = param.substring(6);
-                            break;
-                        }
+        if (authToken.isEmpty() && contentId != null && contentId.contains("token=")) {
+            int query = contentId.indexOf('?');
+            if (query != -1) {
+                for (String param : contentId.substring(query + 1).split("&")) {
+                    if (param.startsWith("token=")) {
+                        authToken = param.substring(6);
+                        break;
                     }
                 }
-            } catch (Exception e) {
-                Log.w(TAG, "Failed to extract token from URL", e);
             }
         }
 
-        // Ajouter les informations d'authentification aux customData
-        try {
-            customData.put("authToken", authToken);
-            customData.put("secureHLS", true);
-            customData.put("originalUrl", contentId);
-            
-            // Ajouter les informations pour le récepteur personnalisé
-            customData.put("authType", "url_token");
-            customData.put("contentType", contentType);
-            
-            Log.d(TAG, "=== SECURE HLS DEBUG ===");
-            Log.d(TAG, "contentId: " + contentId);
-            Log.d(TAG, "authToken: " + (authToken.isEmpty() ? "EMPTY" : "PRESENT"));
-            Log.d(TAG, "customAppId: " + customAppId);
-            Log.d(TAG, "customData: " + customData.toString());
-            Log.d(TAG, "========================");
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to prepare secure HLS data", e);
-            pluginCall.reject("Failed to prepare secure HLS data: " + e.getMessage());
-            return;
-        }
+        // Ajouter les informations d'authentification pour le récepteur personnalisé
+        request.putCustomData("authToken", authToken);
+        request.putCustomData("secureHLS", true);
+        request.putCustomData("originalUrl", contentId);
+        request.putCustomData("authType", "url_token");
+        request.putCustomData("contentType", request.contentType);
+
+        // Le récepteur personnalisé est lancé sur la route actuelle si nécessaire,
+        // sinon on revient au récepteur passé à initialize
+        String customAppId = LoadPipeline.getString(data, "customAppId", "");
+        request.receiverAppId = customAppId.isEmpty() ? null : customAppId;
+
+        // Renouveler le token avant son expiration (TOKEN_REFRESH_NEEDED puis refreshToken),
+        // une fois le média accepté par le récepteur
+        final String trackedUrl = contentId;
+        final String trackedToken = authToken;
+        final long leadTime = pluginCall.getInt("tokenRefreshLeadTime", (int) TokenRefreshManager.DEFAULT_LEAD_TIME);
+        load(request, pluginCall, new Runnable() {
+            @Override
+            public void run() {
+                if (media == null || trackedToken.isEmpty()) {
+                    stopTokenRefresh();
+                    return;
+                }
+                if (tokenRefresh == null) {
+                    tokenRefresh = new TokenRefreshManager(media, new TokenRefreshManager.Listener() {
+                        @Override
+                        public void onRefreshNeeded(JSONObject info) {
+                            try {
+                                sendEvent("TOKEN_REFRESH_NEEDED", JSObject.fromJSONObject(info));
+                            } catch (JSONException e) {
+                            }
+                        }
+                        @Override
+                        public void onRefreshLate(JSONObject info) {
+                            try {
+                                sendEvent("TOKEN_REFRESH_LATE", JSObject.fromJSONObject(info));
+                            } catch (JSONException e) {
+                            }
+                        }
+                    });
+                }
+                if (!tokenRefresh.track(trackedUrl, trackedToken, leadTime)) {
+                    Log.d(TAG, "Token expiry unknown, it won't be refreshed");
+                }
+            }
+        });
+    }
 
-        // Note: Pour l'instant, nous n'utilisons pas l'App ID personnalisé
-        // car cela nécessite une réinitialisation complète de la connexion
-        // TODO: Implémenter le support pour les App IDs personnalisés
-        if (customAppId != null && !customAppId.isEmpty()) {
-            Log.d(TAG, "Custom App ID provided but not implemented yet: " + customAppId);
-            Log.d(TAG, "Using default receiver with custom data for secure HLS");
+    /**
+     * Stops refreshing the token of the secured stream, if any.
+     */
+    private void stopTokenRefresh() {
+        if (tokenRefresh != null) {
+            tokenRefresh.stop();
         }
-        
-        // Utiliser le récepteur par défaut avec les données personnalisées
-        loadMediaWithCustomData(contentId, customData, contentType, streamType, autoPlay, metadata, pluginCall);
     }
     
     /**
-     * Méthode helper pour charger un média avec des données personnalisées
+     * Makes sure the receiver application of a media item is running before loading it.
+     *
+     * @param receiverAppId the receiver application id, null for the one passed to initialize
+     * @param pluginCall    rejected if the receiver application can't be launched
+     * @param pending       the pending steps of the load, set to -1 if it can't be launched so that
+     *                      a load another step already rejected is not rejected again
+     * @param load          called once the receiver application is running
      */
-    private void loadMediaWithCustomData(String contentId, JSObject customData, String contentType, 
-                                       String streamType, boolean autoPlay, JSObject metadata, PluginCall pluginCall) {
-        try {
-            this.connection.getChromecastSession().loadMedia(
-                contentId, 
-                customData, 
-                contentType, 
-                0L, // duration
-                streamType, 
-                autoPlay, 
-                0.0, // currentTime
-                metadata, 
-                new JSObject(), // textTrackStyle
-                pluginCall
-            );
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to load media with custom data", e);
-            pluginCall.reject("Failed to load media: " + e.getMessage());
+    private void withReceiverApp(String receiverAppId, final PluginCall pluginCall, final AtomicInteger pending,
+                                 final Runnable load) {
+        connection.launchReceiverApp(receiverAppId, new ChromecastConnection.ReceiverAppCallback() {
+            @Override
+            public void onReady() {
+                load.run();
+            }
+
+            @Override
+            public void onError(JSONObject message) {
+                if (pending.getAndSet(-1) > 0) {
+                    ChromecastUtilities.rejectWithError(pluginCall, message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a load through the LoadPipeline, then dispatches it to the session once its
+     * receiver application is running. The content type probe, if needed, runs meanwhile.
+     *
+     * @param request    the load, as filled by the load method
+     * @param pluginCall resolved once the media is loaded, rejected if it is invalid or fails
+     */
+    private void load(final LoadPipeline.Request request, final PluginCall pluginCall) {
+        load(request, pluginCall, new Runnable() {
+            @Override
+            public void run() {
+                // This media replaces the secured stream
+                stopTokenRefresh();
+            }
+        });
+    }
+
+    /**
+     * @param onAccepted run on the main thread once the receiver accepted the media, not if the
+     *                   load is rejected or superseded before
+     */
+    private void load(final LoadPipeline.Request request, final PluginCall pluginCall, final Runnable onAccepted) {
+        String error = loadPipeline.prepare(request);
+        if (error != null) {
+            pluginCall.reject(error);
+            return;
+        }
+        // A load made while this one is in the pipeline supersedes it
+        final int requestId = connection.getChromecastSession().reserveLoad();
+        // The receiver application, the probe and the URL checks, the last one to be done dispatches
+        boolean checkUrl = request.resolveRedirects || request.preflight;
+        final AtomicInteger pending = new AtomicInteger(1 + (request.needsProbe ? 1 : 0) + (checkUrl ? 1 : 0));
+        final long[] readyTime = {0};
+        final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                if (pending.decrementAndGet() != 0) {
+                    return;
+                }
+                if (request.needsProbe) {
+                    loadPipeline.onProbeWait(readyTime[0] == 0 ? 0 : SystemClock.elapsedRealtime() - readyTime[0]);
+                }
+                loadPipeline.build(request);
+                loadPipeline.onDispatched(request);
+                connection.getChromecastSession().loadMedia(requestId, request.mediaInfo, request.autoPlay, request.currentTime,
+                        request.startTime, onAccepted, pluginCall);
+            }
+        };
+        if (request.needsProbe) {
+            loadPipeline.probe(request, dispatch);
+        }
+        // The preflight checks the final URL
+        final Runnable preflight = new Runnable() {
+            @Override
+            public void run() {
+                if (!request.preflight) {
+                    dispatch.run();
+                    return;
+                }
+                loadPipeline.preflight(request, new ManifestPreflight.Callback() {
+                    @Override
+                    public void onResult(ManifestPreflight.Result result) {
+                        if (result.reason == null) {
+                            dispatch.run();
+                        } else if (pending.getAndSet(-1) > 0) {
+                            // Fail fast, the load is never dispatched
+                            ChromecastUtilities.rejectWithError(pluginCall, result.toError());
+                        }
+                    }
+                });
+            }
+        };
+        if (request.resolveRedirects) {
+            loadPipeline.resolveRedirects(request, preflight);
+        } else if (request.preflight) {
+            preflight.run();
         }
+        withReceiverApp(request.receiverAppId, pluginCall, pending, new Runnable() {
+            @Override
+            public void run() {
+                if (pending.get() > 1) {
+                    readyTime[0] = SystemClock.elapsedRealtime();
+                }
+                dispatch.run();
+            }
+        });
     }
 }
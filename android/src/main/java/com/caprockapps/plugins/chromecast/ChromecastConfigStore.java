@@ -0,0 +1,198 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.gms.cast.CastMediaControlIntent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single source of the plugin settings (app id, last session, ...).
+ * The settings are read from disk once and then served from memory, writes are applied to
+ * memory right away and written to disk asynchronously in batches.
+ */
+final class ChromecastConfigStore {
+    /** Tag for logging. */
+    private static final String TAG = "ChromecastConfigStore";
+    /** The settings file. */
+    private static final String PREFS_NAME = "CHROMECAST_SETTINGS";
+    /** The settings file used by previous versions of ChromecastConnection. */
+    private static final String LEGACY_PREFS_NAME = "CORDOVA-PLUGIN-CHROMECAST_ChromecastConnection";
+    /** Set once the legacy settings have been copied over. */
+    private static final String KEY_LEGACY_MIGRATED = "legacyMigrated";
+    /** How long we wait for more writes before writing a batch to disk (ms). */
+    private static final long FLUSH_DELAY = 500;
+
+    /** Receiver application id key. */
+    static final String KEY_APP_ID = "appId";
+    /** Last session id key. */
+    static final String KEY_LAST_SESSION_ID = "lastSessionId";
+    /** Last route id key. */
+    static final String KEY_LAST_ROUTE_ID = "lastRouteId";
+    /** Last receiver application id key. */
+    static final String KEY_LAST_APP_ID = "lastAppId";
+
+    /** The shared instance. */
+    private static ChromecastConfigStore instance;
+
+    /** The settings file. */
+    private final SharedPreferences prefs;
+    /** The app id to use when none was saved. */
+    private final String defaultAppId;
+    /** The in memory settings. */
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+    /** Keys changed since the last write, a null value means the key was removed. */
+    private final Map<String, String> dirty = new HashMap<>();
+    /** Writes the changed keys to disk. */
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Gets the shared store, the first call loads the settings from disk.
+     * @param context any context
+     * @return the shared store
+     */
+    static synchronized ChromecastConfigStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChromecastConfigStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ChromecastConfigStore(Context context) {
+        String resAppId;
+        try {
+            resAppId = context.getString(R.string.app_id);
+        } catch (RuntimeException e) {
+            resAppId = null;
+        }
+        defaultAppId = resAppId != null && !resAppId.isEmpty()
+                ? resAppId : CastMediaControlIntent.DEFAULT_MEDIA_RECEIVER_APPLICATION_ID;
+
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                values.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        if (!values.containsKey(KEY_LEGACY_MIGRATED)) {
+            migrateLegacySettings(context);
+        }
+    }
+
+    /**
+     * Copies the settings of the legacy file that we don't have yet, this is only done once.
+     * @param context any context
+     */
+    private void migrateLegacySettings(Context context) {
+        SharedPreferences legacy = context.getSharedPreferences(LEGACY_PREFS_NAME, 0);
+        for (Map.Entry<String, ?> entry : legacy.getAll().entrySet()) {
+            if (entry.getValue() instanceof String && !values.containsKey(entry.getKey())) {
+                put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        put(KEY_LEGACY_MIGRATED, "true");
+    }
+
+    /**
+     * @param key the setting
+     * @param defaultValue returned if the setting is not set
+     * @return the setting value
+     */
+    String get(String key, String defaultValue) {
+        String value = values.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Sets a setting, the disk write is batched with the other changes.
+     * @param key the setting
+     * @param value the new value, null removes the setting
+     */
+    void put(String key, String value) {
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+        synchronized (dirty) {
+            boolean scheduled = !dirty.isEmpty();
+            dirty.put(key, value);
+            if (!scheduled) {
+                writer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @param key the setting to remove
+     */
+    void remove(String key) {
+        put(key, null);
+    }
+
+    /**
+     * @return the receiver application id to use
+     */
+    String getAppId() {
+        return get(KEY_APP_ID, defaultAppId);
+    }
+
+    /**
+     * @param appId the receiver application id to use
+     */
+    void setAppId(String appId) {
+        put(KEY_APP_ID, appId);
+    }
+
+    /**
+     * @return the app id used when none was saved, ie. R.string.app_id
+     */
+    String getDefaultAppId() {
+        return defaultAppId;
+    }
+
+    /**
+     * Writes all of the changed settings to disk in a single edit.
+     */
+    private void flush() {
+        Map<String, String> batch;
+        synchronized (dirty) {
+            batch = new HashMap<>(dirty);
+            dirty.clear();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            if (entry.getValue() == null) {
+                editor.remove(entry.getKey());
+            } else {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!editor.commit()) {
+            Log.w(TAG, "Failed to write " + batch.size() + " settings");
+        }
+    }
+}
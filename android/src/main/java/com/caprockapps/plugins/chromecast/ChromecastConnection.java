@@ -3,21 +3,19 @@ package com.caprockapps.plugins.chromecast;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.arch.core.util.Function;
 import androidx.mediarouter.app.MediaRouteChooserDialog;
-import androidx.mediarouter.media.MediaRouteSelector;
 import androidx.mediarouter.media.MediaRouter;
 import androidx.mediarouter.media.MediaRouter.RouteInfo;
 
-import com.caprockapps.plugins.chromecast.lib.CastOptionsProvider;
 import com.getcapacitor.PluginCall;
 import com.google.android.gms.cast.CastDevice;
-import com.google.android.gms.cast.CastMediaControlIntent;
 import com.google.android.gms.cast.framework.CastContext;
 import com.google.android.gms.cast.framework.CastSession;
 import com.google.android.gms.cast.framework.CastState;
@@ -25,19 +23,36 @@ import com.google.android.gms.cast.framework.CastStateListener;
 import com.google.android.gms.cast.framework.Session;
 import com.google.android.gms.cast.framework.SessionManager;
 import com.google.android.gms.cast.framework.SessionManagerListener;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
 
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ChromecastConnection {
 
+    /** Auto join policies, these mirror chrome.cast.AutoJoinPolicy. */
+    static final String AUTO_JOIN_TAB_AND_ORIGIN_SCOPED = "tab_and_origin_scoped";
+    static final String AUTO_JOIN_ORIGIN_SCOPED = "origin_scoped";
+    static final String AUTO_JOIN_PAGE_SCOPED = "page_scoped";
+
+    /** How long we wait for a session to start once a route was picked (ms). */
+    static final long SESSION_START_TIMEOUT = 30000;
+
     /** Lifetime variable. */
     private Activity activity;
+    /** Runs our work on the main thread. */
+    private final MainThreadDispatcher mainThread = MainThreadDispatcher.getInstance();
     /** settings object. */
-    private SharedPreferences settings;
+    private ChromecastConfigStore settings;
     /** Controls the media. */
     private ChromecastSession media;
 
@@ -48,35 +63,286 @@ public class ChromecastConnection {
 
     /** Initialize lifetime variable. */
     private String appId;
+    /** The receiver application id new sessions are launched with. */
+    private String activeAppId;
+    /** The route selectors of the receiver applications we use. */
+    private final ReceiverAppRegistry receiverApps = new ReceiverAppRegistry();
+    /** The policy used to decide if we should rejoin an existing session. */
+    private String autoJoinPolicy = AUTO_JOIN_ORIGIN_SCOPED;
+    /** Keeps the last session and route ids up to date in the settings. */
+    private SessionListener sessionTracker;
+    /** Waits for the framework to resume a session after initialize. */
+    private SessionListener rejoinListener;
+    /** The id of the last session we notified the client of rejoining. */
+    private String rejoinedSessionId;
+    /**
+     * The end of the session stopped by a receiver application switch, held back from the client
+     * and the rejoin state while the new application starts, null if not switching. Main thread only.
+     */
+    private Runnable relaunchEnd;
+    /** relaunchEnd while the previous session has not ended yet. */
+    private static final Runnable RELAUNCH_STARTED = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    /** Incremented by each receiver application switch, only the last one can end it. Main thread only. */
+    private int relaunchGeneration = 0;
+    /** The deadline of the switch in progress, null if none. Main thread only. */
+    private TimeoutWheel.Timeout relaunchDeadline;
+    /** Told if the switch in progress is superseded by a newer one. Main thread only. */
+    private ReceiverAppCallback relaunchCallback;
+
+    /** The CastContext, null until its asynchronous initialization is complete. */
+    private volatile CastContext castContext;
+    /** Set if the CastContext failed to initialize. */
+    private volatile String initError;
+    /** Actions that were requested before the CastContext was ready. */
+    private final List<PendingAction> pendingActions = new ArrayList<>();
+    /** Whether the initialization was started, see startInit. */
+    private boolean initStarted = false;
+    /** When the initialization started (ms). */
+    private volatile long initStartTime;
+    /** How long the initialization took (ms), -1 while it is in progress. */
+    private volatile long initDuration = -1;
+    /** How many actions were queued while initializing. */
+    private volatile int queuedActionCount = 0;
 
     /**
      * Constructor.
+     * The CastContext and settings are loaded on the first call that needs them, see startInit.
      * @param act the current context
      * @param connectionListener client callbacks for specific events
      */
     ChromecastConnection(final Activity act, final Listener connectionListener) {
         this.activity = act;
+        this.listener = connectionListener;
+        this.media = new ChromecastSession(activity, listener);
+    }
 
-        act.runOnUiThread(new Runnable() {
+    /**
+     * Loads the CastContext and settings in the background, so that we don't block the main
+     * thread, actions requested in the meantime are replayed once they are ready.
+     * Called once, by the first runWhenReady.
+     */
+    private void startInit() {
+        initStartTime = SystemClock.elapsedRealtime();
+        final ExecutorService initExecutor = Executors.newSingleThreadExecutor();
+        initExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                settings = activity.getSharedPreferences("CORDOVA-PLUGIN-CHROMECAST_ChromecastConnection", 0);
-                appId = settings.getString("appId", CastMediaControlIntent.DEFAULT_MEDIA_RECEIVER_APPLICATION_ID);
-                listener = connectionListener;
-                media = new ChromecastSession(activity, listener);
+                // The first load of the settings, CastOptionsProvider reads the same store
+                settings = ChromecastConfigStore.getInstance(activity);
+                appId = settings.getAppId();
+                receiverApps.register(appId);
 
-                // Set the initial appId
-                CastOptionsProvider.setAppId(appId);
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // This starts up the CastContext on initExecutor and preps it for
+                        // searching for a session to rejoin
+                        CastContext.getSharedInstance(activity, initExecutor)
+                                .addOnCompleteListener(new Executor() {
+                                    @Override
+                                    public void execute(Runnable command) {
+                                        mainThread.post(command);
+                                    }
+                                }, new OnCompleteListener<CastContext>() {
+                                    @Override
+                                    public void onComplete(@NonNull Task<CastContext> task) {
+                                        initExecutor.shutdown();
+                                        if (task.isSuccessful()) {
+                                            onContextReady(task.getResult());
+                                        } else {
+                                            onContextFailed(task.getException());
+                                        }
+                                    }
+                                });
+                    }
+                });
+            }
+        });
+    }
 
-                // This is the first call to getContext which will start up the
-                // CastContext and prep it for searching for a session to rejoin
-                // Also adds the receiver update callback
-                getContext().addCastStateListener(listener);
+    /**
+     * Must be called from the main thread.
+     * Adds our listeners to the new CastContext, then replays the pending actions.
+     * @param context the initialized CastContext
+     */
+    private void onContextReady(CastContext context) {
+        // Adds the receiver update callback
+        context.addCastStateListener(listener);
+        activeAppId = context.getCastOptions().getReceiverApplicationId();
 
-                // Also adds the receiver update callback
-                getContext().getSessionManager().addSessionManagerListener(listener);
+        // Also adds the receiver update callback, without the end of the session a receiver
+        // application switch stops
+        context.getSessionManager().addSessionManagerListener(new SessionListener() {
+            @Override
+            public void onSessionStarting(CastSession castSession) {
+                listener.onSessionStarting(castSession);
             }
-        });
+            @Override
+            public void onSessionStarted(CastSession castSession, String sessionId) {
+                listener.onSessionStarted(castSession, sessionId);
+            }
+            @Override
+            public void onSessionStartFailed(CastSession castSession, int error) {
+                listener.onSessionStartFailed(castSession, error);
+            }
+            @Override
+            public void onSessionEnding(CastSession castSession) {
+                if (relaunchEnd == null) {
+                    listener.onSessionEnding(castSession);
+                }
+            }
+            @Override
+            public void onSessionEnded(final CastSession castSession, final int error) {
+                if (relaunchEnd == null) {
+                    listener.onSessionEnded(castSession, error);
+                    return;
+                }
+                relaunchEnd = new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSessionEnded(castSession, error);
+                    }
+                };
+            }
+            @Override
+            public void onSessionResuming(CastSession castSession, String sessionId) {
+                listener.onSessionResuming(castSession, sessionId);
+            }
+            @Override
+            public void onSessionResumed(CastSession castSession, boolean wasSuspended) {
+                listener.onSessionResumed(castSession, wasSuspended);
+            }
+            @Override
+            public void onSessionResumeFailed(CastSession castSession, int error) {
+                listener.onSessionResumeFailed(castSession, error);
+            }
+            @Override
+            public void onSessionSuspended(CastSession castSession, int reason) {
+                listener.onSessionSuspended(castSession, reason);
+            }
+        }, CastSession.class);
+
+        // Remember the session and route so that we can rejoin after a restart
+        sessionTracker = new SessionListener() {
+            @Override
+            public void onSessionStarted(CastSession castSession, String sessionId) {
+                saveLastSession(castSession);
+            }
+            @Override
+            public void onSessionResumed(CastSession castSession, boolean wasSuspended) {
+                saveLastSession(castSession);
+            }
+            @Override
+            public void onSessionEnded(CastSession castSession, int error) {
+                if (relaunchEnd == null) {
+                    clearLastSession();
+                }
+            }
+        };
+        context.getSessionManager().addSessionManagerListener(sessionTracker, CastSession.class);
+
+        List<PendingAction> actions;
+        synchronized (pendingActions) {
+            castContext = context;
+            initDuration = SystemClock.elapsedRealtime() - initStartTime;
+            actions = new ArrayList<>(pendingActions);
+            pendingActions.clear();
+        }
+        Log.d("ChromecastConnection", "CastContext initialized in " + initDuration + "ms, replaying "
+                + actions.size() + " queued actions");
+        for (PendingAction action : actions) {
+            action.action.run();
+        }
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Rejects all of the pending actions.
+     * @param e the reason the CastContext could not be initialized
+     */
+    private void onContextFailed(Exception e) {
+        List<PendingAction> actions;
+        synchronized (pendingActions) {
+            initError = "Could not initialize chromecast: " + (e != null ? e.getMessage() : "unknown error");
+            initDuration = SystemClock.elapsedRealtime() - initStartTime;
+            actions = new ArrayList<>(pendingActions);
+            pendingActions.clear();
+        }
+        Log.e("ChromecastConnection", initError, e);
+        for (PendingAction action : actions) {
+            action.fail(initError);
+        }
+    }
+
+    /**
+     * Runs the action on the main thread once the CastContext is ready.
+     * @param action the action to run
+     */
+    private void runWhenReady(Runnable action) {
+        runWhenReady(new PendingAction(action, null, null));
+    }
+
+    /**
+     * Runs the action on the main thread once the CastContext is ready.
+     * @param action the action to run
+     * @param pluginCall rejected if the CastContext can't be initialized
+     */
+    private void runWhenReady(Runnable action, PluginCall pluginCall) {
+        runWhenReady(new PendingAction(action, pluginCall, null));
+    }
+
+    /**
+     * Runs the action on the main thread once the CastContext is ready.
+     * @param action the action to run
+     * @param callback gets callback.onError if the CastContext can't be initialized
+     */
+    private void runWhenReady(Runnable action, ReceiverAppCallback callback) {
+        runWhenReady(new PendingAction(action, null, callback));
+    }
+
+    private void runWhenReady(PendingAction pending) {
+        boolean queued;
+        boolean start = false;
+        synchronized (pendingActions) {
+            queued = initError == null && castContext == null;
+            if (queued) {
+                queuedActionCount++;
+                pendingActions.add(pending);
+                start = !initStarted;
+                initStarted = true;
+            }
+        }
+        if (start) {
+            startInit();
+        }
+        if (queued) {
+            return;
+        }
+        if (initError != null) {
+            pending.fail(initError);
+            return;
+        }
+        mainThread.post(pending.action);
+    }
+
+    /**
+     * Gets the metrics of the CastContext initialization.
+     * @return the metrics
+     */
+    JSONObject getInitMetrics() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("ready", castContext != null);
+            out.put("initDuration", initDuration);
+            out.put("queuedActions", queuedActionCount);
+            out.put("error", initError);
+        } catch (JSONException e) {
+        }
+        return out;
     }
 
     /**
@@ -90,12 +356,15 @@ public class ChromecastConnection {
     /**
      * Must be called each time the appId changes and at least once before any other method is called.
      * @param applicationId the app id to use
+     * @param joinPolicy tab_and_origin_scoped | origin_scoped | page_scoped, defaults to origin_scoped
      * @param pluginCall called when initialization is complete
      */
-    public void initialize(final String applicationId, final PluginCall pluginCall) {
+    public void initialize(final String applicationId, final String joinPolicy, final PluginCall pluginCall) {
         Log.d("ChromecastConnection", "Initializing with applicationId: " + applicationId);
-        activity.runOnUiThread(new Runnable() {
+        runWhenReady(new Runnable() {
             public void run() {
+                autoJoinPolicy = joinPolicy != null ? joinPolicy : AUTO_JOIN_ORIGIN_SCOPED;
+
                 // If the app Id changed
                 if (applicationId == null || !applicationId.equals(appId)) {
                     Log.d("ChromecastConnection", "App ID changed from '" + appId + "' to '" + applicationId + "'");
@@ -104,11 +373,7 @@ public class ChromecastConnection {
                         // Set the new app Id IMMEDIATELY
                         setAppId(applicationId);
                         Log.d("ChromecastConnection", "App ID set successfully to: " + applicationId);
-                        
-                        // Verify it was saved
-                        String savedAppId = settings.getString("appId", "NOT_FOUND");
-                        Log.d("ChromecastConnection", "Verified saved App ID: " + savedAppId);
-                        
+
                     } else {
                         Log.e("ChromecastConnection", "Invalid app ID: " + applicationId);
                         // Else, just return
@@ -118,16 +383,30 @@ public class ChromecastConnection {
                 } else {
                     Log.d("ChromecastConnection", "App ID unchanged: " + applicationId);
                 }
+                // New sessions should launch the receiver application we were initialized with
+                CastSession currentSession = getSession();
+                if (currentSession == null || !currentSession.isConnected()) {
+                    setActiveAppId(appId);
+                }
 
                 // Tell the client that initialization was a success
                 pluginCall.resolve();
                 Log.d("ChromecastConnection", "Initialization completed successfully");
 
+                // Don't wait for the route scan, the session may already be resumed or resuming
+                listenForRejoin();
+
+                // Only try to join the last route once per initialize
+                final boolean[] triedLastRoute = {false};
+
                 // Check if there is any available receivers for 5 seconds
                 startRouteScan(5000L, new ScanCallback() {
                     @Override
                     void onRouteUpdate(List<RouteInfo> routes) {
                         Log.d("ChromecastConnection", "Route scan found " + routes.size() + " routes");
+                        if (!triedLastRoute[0] && getSession() == null) {
+                            triedLastRoute[0] = joinLastRoute(routes);
+                        }
                         // if the routes have changed, we may have an available device
                         // If there is at least one device available
                         if (getContext().getCastState() != CastState.NO_DEVICES_AVAILABLE) {
@@ -142,8 +421,7 @@ public class ChromecastConnection {
                             if (session != null) {
                                 Log.d("ChromecastConnection", "Found existing session: " + session.getSessionId());
                                 // Let the client know
-                                media.setSession(session);
-                                listener.onSessionRejoin(ChromecastUtilities.createSessionObject(session));
+                                rejoin(session);
                             } else {
                                 Log.d("ChromecastConnection", "No existing session found");
                             }
@@ -153,7 +431,7 @@ public class ChromecastConnection {
                     }
                 }, null);
             }
-        });
+        }, pluginCall);
     }
 
     private MediaRouter getMediaRouter() {
@@ -161,7 +439,7 @@ public class ChromecastConnection {
     }
 
     private CastContext getContext() {
-        return CastContext.getSharedInstance(activity);
+        return castContext;
     }
 
     private SessionManager getSessionManager() {
@@ -179,8 +457,286 @@ public class ChromecastConnection {
     private void setAppId(String applicationId) {
         Log.d("ChromecastConnection", "Setting app ID to: " + applicationId);
         this.appId = applicationId;
-        this.settings.edit().putString("appId", appId).apply();
-        Log.d("ChromecastConnection", "App ID saved to SharedPreferences: " + appId);
+        this.settings.setAppId(appId);
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Makes CastContext launch applicationId for new sessions, without restarting it.
+     * Note: This ends the current session if it is running another receiver application.
+     * @param applicationId the receiver application id
+     */
+    private void setActiveAppId(String applicationId) {
+        if (!applicationId.equals(activeAppId)) {
+            Log.d("ChromecastConnection", "Switching receiver application from '" + activeAppId + "' to '" + applicationId + "'");
+            activeAppId = applicationId;
+            getContext().setReceiverApplicationId(applicationId);
+        }
+    }
+
+    /**
+     * Makes sure the current session is running the given receiver application.
+     * If it is running another one, the receiver application is relaunched on the same
+     * route, CastContext and the route discovery are left untouched.
+     * If there is no session, callback.onReady is called so that the caller can fail as usual.
+     * A switch still waiting for its session when this is called is rejected with load_superseded.
+     * @param applicationId the receiver application id, or null for the initialized app id
+     * @param callback calls callback.onReady when the receiver application is running,
+     *                 or callback.onError if an error occurred
+     */
+    public void launchReceiverApp(final String applicationId, final ReceiverAppCallback callback) {
+        runWhenReady(new Runnable() {
+            public void run() {
+                final String targetAppId = applicationId != null ? applicationId : appId;
+                if (!receiverApps.register(targetAppId)) {
+                    callback.onError(ChromecastUtilities.createError("invalid_parameter",
+                            "Invalid receiver application id: " + targetAppId));
+                    return;
+                }
+                // Only the last switch waits for its session, the previous one is rejected
+                final boolean switching = supersedeRelaunch();
+                final int generation = relaunchGeneration;
+                CastSession session = getSession();
+                final RouteInfo route = getMediaRouter().getSelectedRoute();
+                boolean connected = session != null && session.isConnected();
+                if (route == null || route.isDefault() || (!connected && !switching)) {
+                    // Launched with the next session
+                    endRelaunch(generation);
+                    setActiveAppId(targetAppId);
+                    callback.onReady();
+                    return;
+                }
+                if (connected && session.getApplicationMetadata() != null
+                        && targetAppId.equals(session.getApplicationMetadata().getApplicationId())) {
+                    // The client sees the switch, if any, as an update of its session
+                    relaunchEnd = null;
+                    callback.onReady();
+                    return;
+                }
+
+                // We have to wait for the current receiver application to stop before
+                // launching the new one on the same route. A superseded switch may have
+                // stopped it already
+                final boolean[] previousEnded = {!connected};
+                final AtomicReference<TimeoutWheel.Timeout> deadline = new AtomicReference<>();
+                listenForConnection(new ConnectionCallback() {
+                    @Override
+                    public void onJoin(JSONObject jsonSession) {
+                        if (deadline.get().cancel()) {
+                            // The client sees the switch as an update of its session
+                            relaunchEnd = null;
+                            relaunchDeadline = null;
+                            callback.onReady();
+                        }
+                    }
+                    @Override
+                    public boolean onSessionStartFailed(int errorCode) {
+                        if (deadline.get().cancel()) {
+                            endRelaunch(generation);
+                            callback.onError(ChromecastUtilities.createError("session_error",
+                                    "Failed to launch receiver application " + targetAppId + " with error code: " + errorCode));
+                        }
+                        return true;
+                    }
+                    @Override
+                    public boolean onSessionEndedBeforeStart(int errorCode) {
+                        if (!previousEnded[0]) {
+                            previousEnded[0] = true;
+                            getMediaRouter().selectRoute(route);
+                            return false;
+                        }
+                        if (deadline.get().cancel()) {
+                            endRelaunch(generation);
+                            callback.onError(ChromecastUtilities.createError("session_error",
+                                    "Receiver application " + targetAppId + " ended before it started."));
+                        }
+                        return true;
+                    }
+                });
+                deadline.set(expireConnectionListener(newConnectionListener, new Runnable() {
+                    @Override
+                    public void run() {
+                        endRelaunch(generation);
+                        callback.onError(ChromecastUtilities.createTimeoutError("launchReceiverApp", SESSION_START_TIMEOUT));
+                    }
+                }));
+                relaunchDeadline = deadline.get();
+                relaunchCallback = callback;
+                // Set before the previous session ends, see onContextReady. The end a superseded
+                // switch held back is kept
+                if (relaunchEnd == null) {
+                    relaunchEnd = RELAUNCH_STARTED;
+                }
+                setActiveAppId(targetAppId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Starts a new receiver application switch generation. The switch in progress, if any, is
+     * rejected with load_superseded, the session it is waiting for is left to the new one.
+     * @return true if a switch was in progress
+     */
+    private boolean supersedeRelaunch() {
+        relaunchGeneration++;
+        TimeoutWheel.Timeout deadline = relaunchDeadline;
+        ReceiverAppCallback previous = relaunchCallback;
+        relaunchDeadline = null;
+        relaunchCallback = null;
+        if (deadline == null || !deadline.cancel()) {
+            return false;
+        }
+        previous.onError(ChromecastUtilities.createError(LoadDebouncer.SUPERSEDED,
+                "Superseded by a newer receiver application switch"));
+        return true;
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Ends a receiver application switch that failed: the client is told about the end of the
+     * previous session, which can't be rejoined anymore.
+     * @param generation the generation of the switch, nothing is done if a newer one superseded it
+     */
+    private void endRelaunch(int generation) {
+        if (generation != relaunchGeneration) {
+            return;
+        }
+        relaunchDeadline = null;
+        relaunchCallback = null;
+        Runnable end = relaunchEnd;
+        relaunchEnd = null;
+        if (end != null && end != RELAUNCH_STARTED) {
+            clearLastSession();
+            end.run();
+        }
+    }
+
+    /**
+     * Persists the ids of the session and route so we can rejoin after a restart.
+     * @param castSession the session to remember
+     */
+    private void saveLastSession(CastSession castSession) {
+        RouteInfo route = getMediaRouter().getSelectedRoute();
+        settings.put(ChromecastConfigStore.KEY_LAST_SESSION_ID, castSession.getSessionId());
+        settings.put(ChromecastConfigStore.KEY_LAST_APP_ID, castSession.getApplicationMetadata() != null
+                ? castSession.getApplicationMetadata().getApplicationId() : null);
+        settings.put(ChromecastConfigStore.KEY_LAST_ROUTE_ID, route != null && !route.isDefault() ? route.getId() : null);
+    }
+
+    /**
+     * Forgets the last session, it was ended so there is nothing to rejoin.
+     */
+    private void clearLastSession() {
+        settings.remove(ChromecastConfigStore.KEY_LAST_SESSION_ID);
+        settings.remove(ChromecastConfigStore.KEY_LAST_ROUTE_ID);
+        settings.remove(ChromecastConfigStore.KEY_LAST_APP_ID);
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Rejoins the current session right away if we have one, otherwise waits for the
+     * framework to resume the session it saved before the app was closed.
+     */
+    private void listenForRejoin() {
+        stopListeningForRejoin();
+        if (AUTO_JOIN_PAGE_SCOPED.equals(autoJoinPolicy)) {
+            return;
+        }
+        CastSession session = getSession();
+        if (session != null && session.isConnected()) {
+            rejoin(session);
+            return;
+        }
+        if (settings.get(ChromecastConfigStore.KEY_LAST_SESSION_ID, null) == null) {
+            // We ended the last session ourselves, so there is nothing to resume
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        rejoinListener = new SessionListener() {
+            @Override
+            public void onSessionResumed(CastSession castSession, boolean wasSuspended) {
+                Log.d("ChromecastConnection", "Session resumed after " + (System.currentTimeMillis() - startTime) + "ms");
+                stopListeningForRejoin();
+                rejoin(castSession);
+            }
+            @Override
+            public void onSessionStarted(CastSession castSession, String sessionId) {
+                // Started by joinLastRoute
+                stopListeningForRejoin();
+                rejoin(castSession);
+            }
+            @Override
+            public void onSessionResumeFailed(CastSession castSession, int error) {
+                Log.d("ChromecastConnection", "Session resume failed with error code: " + error);
+            }
+        };
+        getSessionManager().addSessionManagerListener(rejoinListener, CastSession.class);
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    private void stopListeningForRejoin() {
+        if (rejoinListener != null) {
+            getSessionManager().removeSessionManagerListener(rejoinListener, CastSession.class);
+            rejoinListener = null;
+        }
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Joins the route of the last session if the framework did not resume it on its own.
+     * Only done for origin_scoped, tab_and_origin_scoped requires the exact same session.
+     * @param routes the currently available routes
+     * @return true if we found the last route
+     */
+    private boolean joinLastRoute(List<RouteInfo> routes) {
+        String lastRouteId = settings.get(ChromecastConfigStore.KEY_LAST_ROUTE_ID, null);
+        if (lastRouteId == null || rejoinListener == null
+                || !AUTO_JOIN_ORIGIN_SCOPED.equals(autoJoinPolicy)) {
+            return false;
+        }
+        for (RouteInfo route : routes) {
+            if (route.getId().equals(lastRouteId)) {
+                Log.d("ChromecastConnection", "Joining last route: " + lastRouteId);
+                try {
+                    getMediaRouter().selectRoute(route);
+                } catch (NullPointerException e) {
+                    return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Must be called from the main thread.
+     * Lets the client know we are in a session if the autoJoinPolicy allows it.
+     * @param session the session to rejoin
+     */
+    private void rejoin(CastSession session) {
+        if (AUTO_JOIN_PAGE_SCOPED.equals(autoJoinPolicy)
+                || session.getSessionId() == null
+                || session.getSessionId().equals(rejoinedSessionId)) {
+            return;
+        }
+        if (AUTO_JOIN_TAB_AND_ORIGIN_SCOPED.equals(autoJoinPolicy)
+                && !session.getSessionId().equals(settings.get(ChromecastConfigStore.KEY_LAST_SESSION_ID, null))) {
+            return;
+        }
+        if (session.getApplicationMetadata() != null) {
+            String sessionAppId = session.getApplicationMetadata().getApplicationId();
+            if (!appId.equals(sessionAppId)
+                    && !sessionAppId.equals(settings.get(ChromecastConfigStore.KEY_LAST_APP_ID, null))) {
+                // Session belongs to a receiver application we did not launch
+                return;
+            }
+        }
+        rejoinedSessionId = session.getSessionId();
+        media.setSession(session);
+        listener.onSessionRejoin(ChromecastUtilities.createSessionObject(session));
     }
 
     /**
@@ -195,9 +751,7 @@ public class ChromecastConnection {
                 void onRouteUpdate(List<RouteInfo> routes) { }
             };
             // This will throw if the applicationId is invalid
-            getMediaRouter().addCallback(new MediaRouteSelector.Builder()
-                            .addControlCategory(CastMediaControlIntent.categoryForCast(applicationId))
-                            .build(),
+            getMediaRouter().addCallback(receiverApps.getSelector(applicationId),
                     cb,
                     MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN);
             // If no exception we passed, so remove the callback
@@ -216,7 +770,7 @@ public class ChromecastConnection {
      *                 or callback.onError if an error occurred
      */
     public void selectRoute(final String routeId, final SelectRouteCallback callback) {
-        activity.runOnUiThread(new Runnable() {
+        runWhenReady(new Runnable() {
             public void run() {
                 if (getSession() != null && getSession().isConnected()) {
                     callback.onError(ChromecastUtilities.createError("session_error",
@@ -351,22 +905,54 @@ public class ChromecastConnection {
      */
     public void requestSession(final RequestSessionCallback callback) {
         Log.d("ChromecastConnection", "requestSession called");
-        activity.runOnUiThread(new Runnable() {
+        runWhenReady(new Runnable() {
             public void run() {
                 CastSession session = getSession();
                 if (session == null) {
                     Log.d("ChromecastConnection", "No existing session, showing device chooser dialog");
                     // show the "choose a connection" dialog
 
-                    // Add the connection listener callback
-                    listenForConnection(callback);
+                    // Add the connection listener callback, once a route is picked the session
+                    // has SESSION_START_TIMEOUT to start
+                    final AtomicReference<TimeoutWheel.Timeout> deadline = new AtomicReference<>();
+                    listenForConnection(new RequestSessionCallback() {
+                        @Override
+                        public void onSessionStarting() {
+                            final SessionListener connectionListener = newConnectionListener;
+                            deadline.compareAndSet(null, expireConnectionListener(connectionListener, new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onTimeout(SESSION_START_TIMEOUT);
+                                }
+                            }));
+                        }
+                        @Override
+                        public void onJoin(JSONObject jsonSession) {
+                            if (settle(deadline)) {
+                                callback.onJoin(jsonSession);
+                            }
+                        }
+                        @Override
+                        void onError(int errorCode) {
+                            if (settle(deadline)) {
+                                callback.onError(errorCode);
+                            }
+                        }
+                        @Override
+                        void onCancel() {
+                            if (settle(deadline)) {
+                                callback.onCancel();
+                            }
+                        }
+                        @Override
+                        void onTimeout(long timeout) {
+                        }
+                    });
 
                     // Create the dialog
                     // TODO accept theme as a config.xml option
                     MediaRouteChooserDialog builder = new MediaRouteChooserDialog(activity, androidx.appcompat.R.style.Theme_AppCompat_NoActionBar);
-                    builder.setRouteSelector(new MediaRouteSelector.Builder()
-                            .addControlCategory(CastMediaControlIntent.categoryForCast(appId))
-                            .build());
+                    builder.setRouteSelector(receiverApps.getSelector(activeAppId));
                     builder.setCanceledOnTouchOutside(true);
                     builder.setOnCancelListener(new DialogInterface.OnCancelListener() {
                         @Override
@@ -406,19 +992,57 @@ public class ChromecastConnection {
         });
     }
 
+    /**
+     * Gives a connection listener SESSION_START_TIMEOUT to get a result, then removes it.
+     * @param connectionListener the listener installed by listenForConnection
+     * @param onExpired called (on the main thread) if the listener was removed
+     * @return the deadline, cancel it when the listener gets its result
+     */
+    private TimeoutWheel.Timeout expireConnectionListener(final SessionListener connectionListener, final Runnable onExpired) {
+        return TimeoutWheel.getInstance().schedule(SESSION_START_TIMEOUT, new Runnable() {
+            @Override
+            public void run() {
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        getSessionManager().removeSessionManagerListener(connectionListener, CastSession.class);
+                        onExpired.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Settles an operation that may have a deadline.
+     * @param deadline the deadline, unset if it was not started
+     * @return false if the deadline already expired, the result must then be dropped
+     */
+    private static boolean settle(AtomicReference<TimeoutWheel.Timeout> deadline) {
+        TimeoutWheel.Timeout timeout = deadline.get();
+        return timeout == null || timeout.cancel();
+    }
+
     /**
      * Must be called from the main thread.
      * @param callback calls callback.success when we have joined, or callback.error if an error occurred
      */
     private void listenForConnection(final ConnectionCallback callback) {
+        // The client is joining a session itself, so stop waiting to rejoin one
+        stopListeningForRejoin();
         // We should only ever have one of these listeners active at a time, so remove previous
         getSessionManager().removeSessionManagerListener(newConnectionListener, CastSession.class);
         newConnectionListener = new SessionListener() {
+            @Override
+            public void onSessionStarting(CastSession castSession) {
+                callback.onSessionStarting();
+            }
             @Override
             public void onSessionStarted(CastSession castSession, String sessionId) {
                 Log.d("ChromecastConnection", "Session started successfully. SessionId: " + sessionId + ", Device: " + 
                     (castSession.getCastDevice() != null ? castSession.getCastDevice().getFriendlyName() : "Unknown"));
                 getSessionManager().removeSessionManagerListener(this, CastSession.class);
+                rejoinedSessionId = sessionId;
                 media.setSession(castSession);
                 callback.onJoin(ChromecastUtilities.createSessionObject(castSession));
             }
@@ -498,7 +1122,7 @@ public class ChromecastConnection {
      */
     public void startRouteScan(final Long timeout, final ScanCallback callback, final Runnable onTimeout) {
         // Add the callback in active scan mode
-        activity.runOnUiThread(new Runnable() {
+        runWhenReady(new Runnable() {
             public void run() {
                 callback.setMediaRouter(getMediaRouter());
 
@@ -509,9 +1133,7 @@ public class ChromecastConnection {
                 }
 
                 // Add the callback in active scan mode
-                getMediaRouter().addCallback(new MediaRouteSelector.Builder()
-                        .addControlCategory(CastMediaControlIntent.categoryForCast(appId))
-                        .build(),
+                getMediaRouter().addCallback(receiverApps.getSelector(activeAppId),
                         callback,
                         MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN);
 
@@ -549,7 +1171,7 @@ public class ChromecastConnection {
             completionCallback.run();
             return;
         }
-        activity.runOnUiThread(new Runnable() {
+        runWhenReady(new Runnable() {
             public void run() {
                 callback.stop();
                 getMediaRouter().removeCallback(callback);
@@ -566,7 +1188,7 @@ public class ChromecastConnection {
      * @param pluginCall called with .success or .error depending on the initial result
      */
     void endSession(final boolean stopCasting, final PluginCall pluginCall) {
-        activity.runOnUiThread(new Runnable() {
+        runWhenReady(new Runnable() {
             public void run() {
                 getSessionManager().addSessionManagerListener(new SessionListener() {
                     @Override
@@ -582,7 +1204,7 @@ public class ChromecastConnection {
 
                 getSessionManager().endCurrentSession(stopCasting);
             }
-        });
+        }, pluginCall);
     }
 
     /**
@@ -610,6 +1232,40 @@ public class ChromecastConnection {
         public void onSessionSuspended(CastSession castSession, int reason) { }
     }
 
+    /**
+     * An action waiting for the CastContext to be initialized.
+     */
+    private static final class PendingAction {
+        /** The action to run. */
+        private final Runnable action;
+        /** Rejected if initialization fails, may be null. */
+        private final PluginCall pluginCall;
+        /** Gets onError if initialization fails, may be null. */
+        private final ReceiverAppCallback appCallback;
+
+        PendingAction(Runnable action, PluginCall pluginCall, ReceiverAppCallback appCallback) {
+            this.action = action;
+            this.pluginCall = pluginCall;
+            this.appCallback = appCallback;
+        }
+
+        /**
+         * @param error why the CastContext could not be initialized
+         */
+        void fail(String error) {
+            if (pluginCall != null) {
+                pluginCall.reject(error);
+            } else if (appCallback != null) {
+                appCallback.onError(ChromecastUtilities.createError("session_error", error));
+            }
+        }
+    }
+
+    interface ReceiverAppCallback {
+        void onReady();
+        void onError(JSONObject message);
+    }
+
     interface SelectRouteCallback {
         void onJoin(JSONObject jsonSession);
         void onError(JSONObject message);
@@ -618,6 +1274,11 @@ public class ChromecastConnection {
     abstract static class RequestSessionCallback implements ConnectionCallback {
         abstract void onError(int errorCode);
         abstract void onCancel();
+        /**
+         * The session did not start in time after a route was picked.
+         * @param timeout the deadline it missed (ms)
+         */
+        abstract void onTimeout(long timeout);
         @Override
         public final boolean onSessionEndedBeforeStart(int errorCode) {
             onSessionStartFailed(errorCode);
@@ -631,6 +1292,11 @@ public class ChromecastConnection {
     }
 
     interface ConnectionCallback {
+        /**
+         * A route was picked and its session is starting.
+         */
+        default void onSessionStarting() { }
+
         /**
          * Successfully joined a session on a route.
          * @param jsonSession the session we joined
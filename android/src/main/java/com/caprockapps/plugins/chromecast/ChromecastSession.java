@@ -1,7 +1,15 @@
 package com.caprockapps.plugins.chromecast;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 import org.json.JSONArray;
@@ -12,6 +20,7 @@ import com.getcapacitor.JSObject;
 import com.getcapacitor.PluginCall;
 import com.google.android.gms.cast.ApplicationMetadata;
 import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaLoadRequestData;
 import com.google.android.gms.cast.MediaQueueItem;
@@ -22,6 +31,7 @@ import com.google.android.gms.cast.framework.SessionManagerListener;
 import com.google.android.gms.cast.framework.media.MediaQueue;
 import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.android.gms.cast.framework.media.RemoteMediaClient.MediaChannelResult;
+import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 
@@ -33,22 +43,97 @@ import androidx.annotation.NonNull;
  * All of the Chromecast session specific functions should start here.
  */
 public class ChromecastSession {
+    /** How long a loadMedia call may wait for the media to be loaded (ms). */
+    static final long LOAD_TIMEOUT = 30000;
+
     /** The current context. */
     private Activity activity;
+    /** Runs our work on the main thread. */
+    private final MainThreadDispatcher mainThread = MainThreadDispatcher.getInstance();
+    /** Key of the pending setSession command, only the last one needs to run. */
+    private final Object setSessionKey = new Object();
     /** A registered callback that we will un-register and re-register each time the session changes. */
     private Listener clientListener;
-    /** The current session. */
-    private CastSession session;
-    /** The current session's client for controlling playback. */
-    private RemoteMediaClient client;
-    /** Indicates whether we are requesting media or not. **/
-    private boolean requestingMedia = false;
-    /** Handles and used to trigger queue updates. **/
-    private MediaQueueController mediaQueueCallback;
-    /** Stores a callback that should be called when the queue is loaded. **/
-    private Runnable queueReloadCallback;
-    /** Stores a callback that should be called when the queue status is updated. **/
-    private Runnable queueStatusUpdatedCallback;
+    /** The session, client, queue and pending operations, see SessionState. */
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.EMPTY);
+    /** Sends the namespace messages. */
+    private final MessageSender sender = new MessageSender();
+    /** Sends the messages by priority and within the rate limits, see OutboundScheduler. */
+    private final OutboundScheduler scheduler = new OutboundScheduler(new MessageTransport() {
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            sender.send(state.get().session, namespace, message, callback);
+        }
+    });
+    /** Splits the messages too large for the Cast channel, and reassembles the received ones. */
+    private final MessageChunker chunker = new MessageChunker(new MessageTransport() {
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            scheduler.send(namespace, message, callback);
+        }
+    });
+    /** Compresses the large messages, and decompresses the received ones. */
+    private final MessageCompressor compressor = new MessageCompressor(new MessageTransport() {
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            chunker.send(namespace, message, callback);
+        }
+    });
+    /** Coalesces the messages of the namespaces batching is enabled on. */
+    private final MessageBatcher batcher = new MessageBatcher(new MessageTransport() {
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            compressor.send(namespace, message, callback);
+        }
+    });
+    /** Calls the receiver methods, see RpcClient. */
+    private final RpcClient rpc = new RpcClient(new MessageTransport() {
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            route(namespace, message, callback);
+        }
+    });
+    /**
+     * Dispatches the received messages, after their reassembly and decompression.
+     * The RPC responses are given to their call only.
+     */
+    private final MessageRouter router = new MessageRouter(new MessageRouter.Inbound() {
+        @Override
+        public String process(String namespace, String message) {
+            String complete = chunker.reassemble(namespace, message);
+            if (complete != null) {
+                complete = compressor.decompress(namespace, complete);
+            }
+            if (complete == null || rpc.onMessage(namespace, complete)) {
+                return null;
+            }
+            return complete;
+        }
+    });
+    /** Keeps the RPC namespaces registered, the responses never get to the subscribers. */
+    private final Cast.MessageReceivedCallback rpcSubscriber = new Cast.MessageReceivedCallback() {
+        @Override
+        public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        }
+    };
+    /** The loadMedia calls waiting to be resolved, by request id. */
+    private final Map<Integer, PendingLoad> pendingLoads = new ConcurrentHashMap<>();
+    /** Generates the loadMedia request ids. */
+    private final AtomicInteger nextLoadId = new AtomicInteger();
+    /** Holds the loads of rapid channel zapping and measures the time to play. */
+    private final LoadDebouncer debouncer = new LoadDebouncer();
+    /**
+     * Converts the status snapshots taken on the main thread to JSON and notifies the listener.
+     * It is single threaded so the updates are delivered in order.
+     */
+    private final ExecutorService serializer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ChromecastSerializer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /**
      * ChromecastSession constructor.
@@ -65,193 +150,626 @@ public class ChromecastSession {
      * @param castSession the session to use
      */
     public void setSession(final CastSession castSession) {
-        activity.runOnUiThread(new Runnable() {
+        mainThread.post(setSessionKey, new Runnable() {
             public void run() {
-                if (castSession == null) {
-                    client = null;
+                // Only the main thread changes the session, other threads only change the
+                // pending operations of the current one
+                SessionState current = state.get();
+                if (castSession != null && castSession.equals(current.session)) {
+                    // Don't client and listeners if session did not change
                     return;
                 }
-                if (castSession.equals(session)) {
-                    // Don't client and listeners if session did not change
+                unregisterCallbacks(current);
+                // They were sent to the previous session
+                cancelLoads(null, "session_error");
+                rpc.cancelAll("session_error");
+                router.attach(castSession);
+                if (castSession == null) {
+                    state.set(SessionState.EMPTY);
                     return;
                 }
-                session = castSession;
-                client = session.getRemoteMediaClient();
+                Cast.Listener castListener = createCastListener(castSession);
+                castSession.addCastListener(castListener);
+                RemoteMediaClient client = castSession.getRemoteMediaClient();
                 if (client == null) {
+                    state.set(new SessionState(castSession, null, null, null, castListener,
+                            null, null));
                     return;
                 }
-                setupQueue();
-                client.registerCallback(new RemoteMediaClient.Callback() {
-                    private Integer prevItemId;
-                    @Override
-                    public void onStatusUpdated() {
-                        final MediaStatus status = client.getMediaStatus();
-                        if (requestingMedia
-                                || queueStatusUpdatedCallback != null
-                                || queueReloadCallback != null) {
-                            return;
-                        }
+                MediaQueueController queue = new MediaQueueController(client, client.getMediaQueue());
+                RemoteMediaClient.Callback clientCallback = createClientCallback(client);
+                state.set(new SessionState(castSession, client, queue, clientCallback, castListener,
+                        null, null));
+                client.getMediaQueue().registerCallback(queue);
+                client.registerCallback(clientCallback);
+            }
+        });
+    }
 
-                        if (status != null) {
-                            if (prevItemId == null) {
-                                prevItemId = status.getCurrentItemId();
-                            }
-                            boolean shouldSkipUpdate = false;
-                            if (status.getPlayerState() == MediaStatus.PLAYER_STATE_LOADING) {
-                                // It appears the queue has advanced to the next item
-                                // So send an update to indicate the previous has finished
-                                clientListener.onMediaUpdate(createMediaObject(MediaStatus.IDLE_REASON_FINISHED));
-                                shouldSkipUpdate = true;
-                            }
-                            if (prevItemId != null && prevItemId != status.getCurrentItemId() && mediaQueueCallback.getCurrentItemIndex() != -1) {
-                                // The currentItem has changed, so update the current queue items
-                                setQueueReloadCallback(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        prevItemId = status.getCurrentItemId();
-                                    }
-                                });
-                                mediaQueueCallback.refreshQueueItems();
-                                shouldSkipUpdate = true;
-                            }
-                            if (shouldSkipUpdate) {
-                                return;
-                            }
-                        }
-                        // Send update
-                        clientListener.onMediaUpdate(createMediaObject());
+    /**
+     * Removes the callbacks we registered on a previous session, so that it can't send
+     * us updates anymore.
+     * @param previous the previous state
+     */
+    private void unregisterCallbacks(SessionState previous) {
+        if (previous.client != null) {
+            if (previous.clientCallback != null) {
+                previous.client.unregisterCallback(previous.clientCallback);
+            }
+            if (previous.queue != null) {
+                previous.client.getMediaQueue().unregisterCallback(previous.queue);
+            }
+        }
+        if (previous.session != null && previous.castListener != null) {
+            previous.session.removeCastListener(previous.castListener);
+        }
+    }
+
+    private RemoteMediaClient.Callback createClientCallback(final RemoteMediaClient client) {
+        return new RemoteMediaClient.Callback() {
+            private Integer prevItemId;
+            @Override
+            public void onStatusUpdated() {
+                SessionState current = state.get();
+                if (current.client != client) {
+                    // From a previous session
+                    return;
+                }
+                final MediaStatus status = client.getMediaStatus();
+                if (status != null && status.getPlayerState() == MediaStatus.PLAYER_STATE_PLAYING
+                        && status.getMediaInfo() != null) {
+                    debouncer.onPlaying(status.getMediaInfo().getContentId());
+                }
+                if (isRequestingMedia()
+                        || current.queueStatusUpdatedCallback != null
+                        || current.queueReloadCallback != null) {
+                    return;
+                }
+
+                if (status != null) {
+                    if (prevItemId == null) {
+                        prevItemId = status.getCurrentItemId();
                     }
-                    @Override
-                    public void onQueueStatusUpdated() {
-                        if (queueStatusUpdatedCallback != null) {
-                            queueStatusUpdatedCallback.run();
-                            setQueueStatusUpdatedCallback(null);
-                        }
+                    boolean shouldSkipUpdate = false;
+                    if (status.getPlayerState() == MediaStatus.PLAYER_STATE_LOADING) {
+                        // It appears the queue has advanced to the next item
+                        // So send an update to indicate the previous has finished
+                        notifyMediaUpdate(MediaStatus.IDLE_REASON_FINISHED);
+                        shouldSkipUpdate = true;
                     }
-                });
-                session.addCastListener(new Cast.Listener() {
-                    @Override
-                    public void onApplicationStatusChanged() {
-                        clientListener.onSessionUpdate(createSessionObject());
+                    if (prevItemId != null && prevItemId != status.getCurrentItemId() && current.queue.getCurrentItemIndex() != -1) {
+                        // The currentItem has changed, so update the current queue items
+                        setQueueReloadCallback(new Runnable() {
+                            @Override
+                            public void run() {
+                                prevItemId = status.getCurrentItemId();
+                            }
+                        });
+                        current.queue.refreshQueueItems();
+                        shouldSkipUpdate = true;
                     }
-                    @Override
-                    public void onApplicationMetadataChanged(ApplicationMetadata appMetadata) {
-                        clientListener.onSessionUpdate(createSessionObject());
+                    if (shouldSkipUpdate) {
+                        return;
                     }
-                    @Override
-                    public void onApplicationDisconnected(int i) {
+                }
+                // Send update
+                notifyMediaUpdate(null);
+            }
+            @Override
+            public void onQueueStatusUpdated() {
+                if (state.get().client != client) {
+                    return;
+                }
+                Runnable callback = takeQueueStatusUpdatedCallback();
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        };
+    }
+
+    private Cast.Listener createCastListener(final CastSession castSession) {
+        return new Cast.Listener() {
+            @Override
+            public void onApplicationStatusChanged() {
+                notifySessionUpdate();
+            }
+            @Override
+            public void onApplicationMetadataChanged(ApplicationMetadata appMetadata) {
+                notifySessionUpdate();
+            }
+            @Override
+            public void onApplicationDisconnected(int i) {
+                final StatusSnapshot snapshot = StatusSnapshot.capture(castSession, ChromecastUtilities.getQueueItems());
+                serializer.execute(new Runnable() {
+                    public void run() {
                         clientListener.onSessionEnd(
-                                ChromecastUtilities.createSessionObject(session, "stopped"));
-                    }
-                    @Override
-                    public void onActiveInputStateChanged(int i) {
-                        clientListener.onSessionUpdate(createSessionObject());
-                    }
-                    @Override
-                    public void onStandbyStateChanged(int i) {
-                        clientListener.onSessionUpdate(createSessionObject());
-                    }
-                    @Override
-                    public void onVolumeChanged() {
-                        clientListener.onSessionUpdate(createSessionObject());
+                                ChromecastUtilities.createSessionObject(snapshot, "stopped"));
                     }
                 });
             }
+            @Override
+            public void onActiveInputStateChanged(int i) {
+                notifySessionUpdate();
+            }
+            @Override
+            public void onStandbyStateChanged(int i) {
+                notifySessionUpdate();
+            }
+            @Override
+            public void onVolumeChanged() {
+                notifySessionUpdate();
+            }
+        };
+    }
+
+    /**
+     * Subscribes the client to the messages of a namespace, see MessageRouter.
+     * The subscription is kept across session changes.
+     * @param namespace namespace
+     * @param types the message types to receive, null for all
+     */
+    public void addMessageListener(final String namespace, final Set<String> types) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                router.subscribe(namespace, clientListener, types);
+            }
         });
     }
 
     /**
-     * Adds a message listener if one does not already exist.
+     * Removes the subscription added with addMessageListener.
      * @param namespace namespace
      */
-    public void addMessageListener(final String namespace) {
-        if (client == null || session == null) {
-            return;
-        }
-        activity.runOnUiThread(new Runnable() {
+    public void removeMessageListener(final String namespace) {
+        mainThread.post(new Runnable() {
             public void run() {
-                try {
-                    session.setMessageReceivedCallbacks(namespace, clientListener);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                router.unsubscribe(namespace, clientListener);
             }
         });
     }
 
+    /**
+     * Adds a listener for a namespace reserved to the plugin, its messages are not sent to the client.
+     * The listener is kept across session changes.
+     * @param namespace namespace
+     * @param callback called with the received messages
+     */
+    void addInternalMessageListener(final String namespace, final Cast.MessageReceivedCallback callback) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                router.subscribe(namespace, callback, null);
+            }
+        });
+    }
+
+    /**
+     * Removes a listener added with addInternalMessageListener.
+     * @param namespace namespace
+     * @param callback the listener
+     */
+    void removeInternalMessageListener(final String namespace, final Cast.MessageReceivedCallback callback) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                router.unsubscribe(namespace, callback);
+            }
+        });
+    }
+
+    /**
+     * @return true if we have a connected session
+     */
+    boolean isConnected() {
+        SessionState current = state.get();
+        return current.client != null && current.session.isConnected();
+    }
+
     /**
      * Sends a message to a specified namespace.
+     * Messages are not held back by the previous ones, their callbacks are called in order.
+     * Messages are compressed if enabled, see MessageCompressor, and sent in chunks if they are
+     * still too large for the Cast channel, see MessageChunker.
      * @param namespace namespace
      * @param message the message to send
-     * @param callback called with success or error
+     * @param callback called with the result of the send, fails if there is no session
      */
     public void sendMessage(final String namespace, final String message, final ResultCallback<Status> callback) {
-        if (client == null || session == null) {
-            //callback.error("session_error");
-            return;
+        mainThread.post(new Runnable() {
+            public void run() {
+                route(namespace, message, callback);
+            }
+        });
+    }
+
+    /**
+     * Sends a message through the batching if enabled on its namespace, must be called from the main thread.
+     */
+    private void route(String namespace, String message, ResultCallback<Status> callback) {
+        if (batcher.isEnabled(namespace)) {
+            batcher.add(namespace, message, callback);
+        } else {
+            compressor.send(namespace, message, callback);
         }
-        activity.runOnUiThread(new Runnable() {
+    }
+
+    /**
+     * Calls a method of the receiver, see RpcClient.
+     * The response is not sent to the message listeners.
+     * @param namespace namespace
+     * @param method method
+     * @param params params, may be null
+     * @param timeout deadline of the call (ms)
+     * @param pluginCall resolved with {result}, or rejected with the error of the receiver
+     */
+    void rpc(final String namespace, final String method, final Object params, final long timeout, final PluginCall pluginCall) {
+        mainThread.post(new Runnable() {
             public void run() {
-                session.sendMessage(namespace, message).setResultCallback(callback);
+                router.subscribe(namespace, rpcSubscriber, Collections.<String>emptySet());
+                rpc.call(namespace, method, params, timeout, pluginCall);
+            }
+        });
+    }
 
+    /**
+     * Puts the messages of a namespace in a lane of the outbound scheduler.
+     * @param namespace namespace
+     * @param lane the lane, see OutboundScheduler.LANES
+     */
+    void setMessageLane(final String namespace, final int lane) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                scheduler.setLane(namespace, lane);
             }
         });
     }
 
+    /**
+     * Changes the rate limit of a lane of the outbound scheduler.
+     * @param lane the lane, see OutboundScheduler.LANES
+     * @param rate messages per second, 0 for no limit
+     * @param burst messages that can be sent at once after a pause
+     */
+    void setLaneRateLimit(final int lane, final double rate, final int burst) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                scheduler.setRateLimit(lane, rate, burst);
+            }
+        });
+    }
+
+    /**
+     * @return the queue depth and counters of the lanes
+     */
+    JSONObject getSchedulerStats() {
+        return scheduler.getStats();
+    }
+
+    /**
+     * @return the per namespace counters of the received messages
+     */
+    JSONObject getRouterStats() {
+        return router.getStats();
+    }
+
+    /**
+     * @return the RPC stats
+     */
+    JSONObject getRpcStats() {
+        return rpc.getStats();
+    }
+
+    /**
+     * Enables or disables the batching of the messages of a namespace, see MessageBatcher.
+     * @param namespace namespace
+     * @param enabled whether to batch
+     * @param window time messages wait for others to join their batch (ms)
+     * @param maxBytes budget of a batch (bytes)
+     */
+    void setMessageBatching(final String namespace, final boolean enabled, final long window, final int maxBytes) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                if (enabled) {
+                    batcher.enable(namespace, window, maxBytes);
+                } else {
+                    batcher.disable(namespace);
+                }
+            }
+        });
+    }
+
+    /**
+     * Configures the chunking of the large messages.
+     * @param chunkSize size of the data of a chunk (bytes)
+     * @param window number of chunks in flight
+     */
+    void setMessageChunking(final int chunkSize, final int window) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                chunker.configure(chunkSize, window);
+            }
+        });
+    }
+
+    /**
+     * Configures the compression of the large messages.
+     * @param enabled whether to compress the outgoing messages
+     * @param threshold size from which messages are compressed (bytes)
+     */
+    void setMessageCompression(final boolean enabled, final int threshold) {
+        mainThread.post(new Runnable() {
+            public void run() {
+                compressor.configure(enabled, threshold);
+            }
+        });
+    }
+
+    /**
+     * @return the message compression stats
+     */
+    JSONObject getCompressionStats() {
+        return compressor.getStats();
+    }
+
+    /**
+     * @return the message chunking stats
+     */
+    JSONObject getChunkingStats() {
+        return chunker.getStats();
+    }
+
+    /**
+     * @return the message batching stats
+     */
+    JSONObject getBatchingStats() {
+        return batcher.getStats();
+    }
+
+    /**
+     * @return the per namespace counters of the sent messages
+     */
+    JSONObject getMessageStats() {
+        return sender.getStats();
+    }
+
 /* ------------------------------------   MEDIA FNs   ------------------------------------------- */
 
+    /**
+     * Reserves the request id of a load before it goes through the load pipeline, so that a load
+     * the pipeline finishes after a newer one doesn't replace it.
+     * @return the request id to pass to loadMedia
+     */
+    int reserveLoad() {
+        return nextLoadId.incrementAndGet();
+    }
+
+    /**
+     * @param ms loads closer than this to the previous one are held (ms), see LoadDebouncer
+     */
+    void setLoadDebounce(long ms) {
+        debouncer.setWindow(ms);
+    }
+
+    /**
+     * @return the debounce and time to play stats
+     */
+    JSONObject getLoadStats() {
+        return debouncer.getStats();
+    }
+
     /**
      * Loads media over the media API.
-     * @param contentId      - The URL of the content
-     * @param customData     - CustomData
-     * @param contentType    - The MIME type of the content
-     * @param duration       - The length of the video (if known)
-     * @param streamType     - The stream type
+     * Only the newest load is sent, the other pending ones are rejected with load_superseded.
+     * @param requestId      - The request id given by reserveLoad
+     * @param mediaInfo      - The media, see LoadPipeline
      * @param autoPlay       - Whether or not to start the video playing or not
-     * @param currentTime    - Where in the video to begin playing from
-     * @param metadata       - Metadata
-     * @param textTrackStyle - The text track style
+     * @param currentTime    - Where in the video to begin playing from (s)
+     * @param startTime      - When the loadMedia call was made (ns), for the time to play
+     * @param onAccepted     - Run on the main thread once the receiver accepted the load, unless it
+     *                         was superseded meanwhile. May be null
      * @param callback called with success or error
      */
-    public void loadMedia(final String contentId, final JSONObject customData, final String contentType, final long duration, final String streamType, final boolean autoPlay, final double currentTime, final JSONObject metadata, final JSONObject textTrackStyle, final PluginCall callback) {
-        if (client == null || session == null) {
-            callback.reject("session_error");
-            return;
-        }
-        activity.runOnUiThread(new Runnable() {
+    public void loadMedia(final int requestId, final MediaInfo mediaInfo, final boolean autoPlay, final double currentTime,
+                          final long startTime, final Runnable onAccepted, final PluginCall callback) {
+        // The load pipeline calls it from several threads, the check and the supersession
+        // must happen together on the main thread
+        mainThread.post(new Runnable() {
             public void run() {
-                MediaInfo mediaInfo = ChromecastUtilities.createMediaInfo(contentId, customData, contentType, duration, streamType, metadata, textTrackStyle);
+                if (requestId != nextLoadId.get()) {
+                    // A newer load was made while this one was in the pipeline
+                    debouncer.reject(callback);
+                    return;
+                }
+                if (state.get().client == null) {
+                    callback.reject("session_error");
+                    return;
+                }
+                PendingLoad load = new PendingLoad(requestId, mediaInfo.getContentId(), callback,
+                        TimeoutWheel.getInstance().schedule(LOAD_TIMEOUT, new Runnable() {
+                            @Override
+                            public void run() {
+                                PendingLoad expired = pendingLoads.remove(requestId);
+                                if (expired != null) {
+                                    ChromecastUtilities.rejectTimeout(expired.call, "loadMedia", LOAD_TIMEOUT);
+                                }
+                            }
+                        }));
+                // Only the last load can end up playing
+                cancelLoads(requestId, LoadDebouncer.SUPERSEDED);
+                pendingLoads.put(requestId, load);
+                startLoad(load, mediaInfo, autoPlay, currentTime, startTime, onAccepted);
+            }
+        });
+    }
+
+    /**
+     * Sends a pending load, right away or once the debounce window is over. On the main thread.
+     */
+    private void startLoad(final PendingLoad load, final MediaInfo mediaInfo, final boolean autoPlay,
+                           final double currentTime, final long startTime, final Runnable onAccepted) {
+        final Runnable send = new Runnable() {
+            public void run() {
+                if (!pendingLoads.containsKey(load.requestId)) {
+                    // Superseded before we got to send it
+                    return;
+                }
+                RemoteMediaClient client = state.get().client;
+                if (client == null) {
+                    rejectLoad(load.requestId, "session_error");
+                    return;
+                }
                 MediaLoadRequestData loadRequest = new MediaLoadRequestData.Builder()
                         .setMediaInfo(mediaInfo)
                         .setAutoplay(autoPlay)
-                        .setCurrentTime((long) currentTime * 1000)
+                        .setCurrentTime((long) (currentTime * 1000))
                         .build();
 
-                requestingMedia = true;
-                setQueueReloadCallback(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            callback.resolve(JSObject.fromJSONObject(createMediaObject()));
-                        } catch (JSONException e) {
-                            callback.reject(e.getMessage(), e);
-                        }
-                    }
-                });
-                client.load(loadRequest).setResultCallback(new ResultCallback<MediaChannelResult>() {
+                debouncer.onSent(load.contentId, startTime);
+                load.result = client.load(loadRequest);
+                load.result.setResultCallback(new ResultCallback<MediaChannelResult>() {
                     @Override
                     public void onResult(@NonNull MediaChannelResult result) {
-                        requestingMedia = false;
                         if (!result.getStatus().isSuccess()) {
-                            callback.reject("session_error");
-                            setQueueReloadCallback(null);
+                            rejectLoad(load.requestId, "session_error");
+                        } else {
+                            // Resolved by the queue reload
+                            load.resultReceived = true;
+                            if (onAccepted != null && pendingLoads.containsKey(load.requestId)) {
+                                onAccepted.run();
+                            }
                         }
                     }
                 });
+                if (!pendingLoads.containsKey(load.requestId)) {
+                    // Superseded while we were sending it
+                    load.result.cancel();
+                }
+            }
+        };
+        long delay = debouncer.submit();
+        if (delay == 0) {
+            send.run();
+            return;
+        }
+        // Zapping, it is only sent if no newer load comes in the meantime
+        TimeoutWheel.getInstance().schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                if (pendingLoads.containsKey(load.requestId)) {
+                    mainThread.post(send);
+                }
             }
         });
     }
 
+    /**
+     * A loadMedia call, it is resolved once the queue is reloaded with its media.
+     */
+    private static final class PendingLoad {
+        final int requestId;
+        final String contentId;
+        final PluginCall call;
+        /** Rejects the call if it is still pending at the deadline. */
+        final TimeoutWheel.Timeout timeout;
+        /** Set once the receiver accepted the load. */
+        volatile boolean resultReceived = false;
+        /** The load sent to the receiver, null until it is sent. */
+        volatile PendingResult<MediaChannelResult> result;
+
+        PendingLoad(int requestId, String contentId, PluginCall call, TimeoutWheel.Timeout timeout) {
+            this.requestId = requestId;
+            this.contentId = contentId;
+            this.call = call;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * @return true if a load was sent and the receiver did not answer yet
+     */
+    private boolean isRequestingMedia() {
+        for (PendingLoad load : pendingLoads.values()) {
+            if (!load.resultReceived) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rejects a pending load, unless it was already resolved or rejected.
+     * @param requestId the load request id
+     * @param code the error code
+     */
+    private void rejectLoad(int requestId, String code) {
+        PendingLoad load = pendingLoads.remove(requestId);
+        if (load == null) {
+            return;
+        }
+        load.timeout.cancel();
+        PendingResult<MediaChannelResult> result = load.result;
+        if (result != null && !load.resultReceived) {
+            // Abandoned, its result doesn't matter anymore
+            result.cancel();
+        }
+        if (LoadDebouncer.SUPERSEDED.equals(code)) {
+            debouncer.reject(load.call);
+        } else {
+            load.call.reject(code);
+        }
+    }
+
+    /**
+     * Rejects all of the pending loads but one.
+     * @param keepRequestId the load to keep, null to reject all of them
+     * @param code the error code
+     */
+    private void cancelLoads(Integer keepRequestId, String code) {
+        for (Integer requestId : pendingLoads.keySet()) {
+            if (!requestId.equals(keepRequestId)) {
+                rejectLoad(requestId, code);
+            }
+        }
+    }
+
+    /**
+     * Resolves the pending loads that are done, ie. the ones of the media that is now loaded
+     * and the ones the receiver accepted. Called on the main thread when the queue is reloaded.
+     * @param client the client of the reloaded queue
+     */
+    private void resolveLoads(RemoteMediaClient client) {
+        if (pendingLoads.isEmpty()) {
+            return;
+        }
+        MediaInfo mediaInfo = client.getMediaInfo();
+        String loadedContentId = mediaInfo != null ? mediaInfo.getContentId() : null;
+        StatusSnapshot snapshot = null;
+        for (PendingLoad load : pendingLoads.values()) {
+            // A held load was never sent, the reload is not for it
+            boolean loaded = load.result != null
+                    && (load.resultReceived
+                    || loadedContentId == null
+                    || loadedContentId.equals(load.contentId));
+            if (!loaded || pendingLoads.remove(load.requestId) == null) {
+                continue;
+            }
+            load.timeout.cancel();
+            if (snapshot == null) {
+                snapshot = captureStatus();
+            }
+            final StatusSnapshot loadedSnapshot = snapshot;
+            final PluginCall callback = load.call;
+            serializer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        callback.resolve(JSObject.fromJSONObject(createMediaObject(loadedSnapshot, null)));
+                    } catch (JSONException e) {
+                        callback.reject(e.getMessage(), e);
+                    }
+                }
+            });
+        }
+    }
+
 
 
 
@@ -262,36 +780,127 @@ public class ChromecastSession {
 
 /* ------------------------------------   QUEUE FNs   ------------------------------------------- */
 
+    /**
+     * The state of the current session, it is immutable and only ever replaced as a whole,
+     * so that any thread reads a consistent session, client and queue without locking.
+     * The pending operations are changed with compareAndSet, see the helpers below.
+     */
+    private static final class SessionState {
+        static final SessionState EMPTY = new SessionState(null, null, null, null, null, null, null);
+
+        /** The current session. */
+        final CastSession session;
+        /** The current session's client for controlling playback. */
+        final RemoteMediaClient client;
+        /** Handles and used to trigger queue updates. **/
+        final MediaQueueController queue;
+        /** Our callbacks on the session and client, removed when the session changes. **/
+        final RemoteMediaClient.Callback clientCallback;
+        final Cast.Listener castListener;
+        /** Stores a callback that should be called when the queue is loaded. **/
+        final Runnable queueReloadCallback;
+        /** Stores a callback that should be called when the queue status is updated. **/
+        final Runnable queueStatusUpdatedCallback;
+
+        SessionState(CastSession session, RemoteMediaClient client, MediaQueueController queue,
+                     RemoteMediaClient.Callback clientCallback, Cast.Listener castListener,
+                     Runnable queueReloadCallback, Runnable queueStatusUpdatedCallback) {
+            this.session = session;
+            this.client = client;
+            this.queue = queue;
+            this.clientCallback = clientCallback;
+            this.castListener = castListener;
+            this.queueReloadCallback = queueReloadCallback;
+            this.queueStatusUpdatedCallback = queueStatusUpdatedCallback;
+        }
+
+        SessionState withQueueReloadCallback(Runnable callback) {
+            return new SessionState(session, client, queue, clientCallback, castListener,
+                    callback, queueStatusUpdatedCallback);
+        }
+
+        SessionState withQueueStatusUpdatedCallback(Runnable callback) {
+            return new SessionState(session, client, queue, clientCallback, castListener,
+                    queueReloadCallback, callback);
+        }
+    }
+
     private void setQueueReloadCallback(Runnable callback) {
-        this.queueReloadCallback = callback;
+        SessionState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withQueueReloadCallback(callback)));
     }
 
-    private void setQueueStatusUpdatedCallback(Runnable callback) {
-        this.queueStatusUpdatedCallback = callback;
+    /**
+     * Sets the queue reload callback only if there is none.
+     * @param callback the callback
+     * @return false if there already was one
+     */
+    private boolean setQueueReloadCallbackIfNone(Runnable callback) {
+        SessionState current;
+        do {
+            current = state.get();
+            if (current.queueReloadCallback != null) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, current.withQueueReloadCallback(callback)));
+        return true;
     }
 
     /**
-     * Sets up the objects and listeners required for queue functionality.
+     * Removes the queue reload callback, so that only the caller runs it.
+     * @return the callback, or null
      */
-    private void setupQueue() {
-        MediaQueue queue = client.getMediaQueue();
-        setQueueReloadCallback(null);
-        mediaQueueCallback = new MediaQueueController(queue);
-        queue.registerCallback(mediaQueueCallback);
+    private Runnable takeQueueReloadCallback() {
+        SessionState current;
+        do {
+            current = state.get();
+            if (current.queueReloadCallback == null) {
+                return null;
+            }
+        } while (!state.compareAndSet(current, current.withQueueReloadCallback(null)));
+        return current.queueReloadCallback;
+    }
+
+    /**
+     * Removes the queue status updated callback, so that only the caller runs it.
+     * @return the callback, or null
+     */
+    private Runnable takeQueueStatusUpdatedCallback() {
+        SessionState current;
+        do {
+            current = state.get();
+            if (current.queueStatusUpdatedCallback == null) {
+                return null;
+            }
+        } while (!state.compareAndSet(current, current.withQueueStatusUpdatedCallback(null)));
+        return current.queueStatusUpdatedCallback;
     }
 
     private class MediaQueueController extends MediaQueue.Callback {
+        /** The client the queue belongs to. **/
+        private final RemoteMediaClient client;
         /** The MediaQueue object. **/
-        private MediaQueue queue;
+        private final MediaQueue queue;
+        // The following are only used on the main thread
         /** Contains the item indexes that we need before sending out an update. **/
         private ArrayList<Integer> lookingForIndexes = new ArrayList<Integer>();
         /** Keeps track of the queueItems. **/
         private JSONArray queueItems;
 
-        MediaQueueController(MediaQueue q) {
+        MediaQueueController(RemoteMediaClient c, MediaQueue q) {
+            this.client = c;
             this.queue = q;
         }
 
+        /**
+         * @return false if the session changed since this controller was created
+         */
+        private boolean isCurrent() {
+            return state.get().queue == this;
+        }
+
         /**
          * Given i == currentItemId, get items [i-1, i, i+1].
          * Note: Exclude items out of range, eg. < 0 and > queue.length.
@@ -347,60 +956,73 @@ public class ChromecastSession {
         private void updateFinished() {
             // Update the queueItems
             ChromecastUtilities.setQueueItems(queueItems);
-            if (queueReloadCallback != null && queue.getItemCount() > 0) {
-                queueReloadCallback.run();
-                setQueueReloadCallback(null);
+            if (queue.getItemCount() > 0) {
+                resolveLoads(client);
+                Runnable callback = takeQueueReloadCallback();
+                if (callback != null) {
+                    callback.run();
+                }
             }
-            clientListener.onMediaUpdate(createMediaObject());
+            notifyMediaUpdate(null);
         }
 
         @Override
         public void itemsReloaded() {
-            synchronized (queue) {
-                int itemCount = queue.getItemCount();
-                if (itemCount == 0) {
-                    return;
-                }
-                if (queueReloadCallback == null) {
-                    setQueueReloadCallback(new Runnable() {
-                        @Override
+            if (!isCurrent()) {
+                return;
+            }
+            int itemCount = queue.getItemCount();
+            if (itemCount == 0) {
+                return;
+            }
+            if (!pendingLoads.isEmpty()) {
+                // Ours, resolved by updateFinished
+                refreshQueueItems();
+                return;
+            }
+            setQueueReloadCallbackIfNone(new Runnable() {
+                @Override
+                public void run() {
+                    // This was externally loaded
+                    final StatusSnapshot snapshot = captureStatus();
+                    serializer.execute(new Runnable() {
                         public void run() {
-                            // This was externally loaded
-                            clientListener.onMediaLoaded(createMediaObject());
+                            clientListener.onMediaLoaded(createMediaObject(snapshot, null));
                         }
                     });
                 }
-                refreshQueueItems();
-            }
+            });
+            refreshQueueItems();
         }
         @Override
         public void itemsUpdatedAtIndexes(int[] ints) {
-            synchronized (queue) {
-                // Check if we were looking for all the ints
-                for (int i = 0; i < ints.length; i++) {
-                    // If we weren't looking for an ints, that means it was changed
-                    // (rather than just retrieved from the cache)
-                    if (lookingForIndexes.indexOf(ints[i]) == -1) {
-                        // So refresh the queue (the changed item might not be part
-                        // of the items we want to output anyways, so let refresh
-                        // handle it.
-                        refreshQueueItems();
-                        return;
-                    }
+            if (!isCurrent()) {
+                return;
+            }
+            // Check if we were looking for all the ints
+            for (int i = 0; i < ints.length; i++) {
+                // If we weren't looking for an ints, that means it was changed
+                // (rather than just retrieved from the cache)
+                if (lookingForIndexes.indexOf(ints[i]) == -1) {
+                    // So refresh the queue (the changed item might not be part
+                    // of the items we want to output anyways, so let refresh
+                    // handle it.
+                    refreshQueueItems();
+                    return;
                 }
-                // Else, we got new items from the cache
-                checkLookingForIndexes();
             }
+            // Else, we got new items from the cache
+            checkLookingForIndexes();
         }
         @Override
         public void itemsInsertedInRange(int startIndex, int insertCount) {
-            synchronized (queue) {
+            if (isCurrent()) {
                 refreshQueueItems();
             }
         }
         @Override
         public void itemsRemovedAtIndexes(int[] ints) {
-            synchronized (queue) {
+            if (isCurrent()) {
                 refreshQueueItems();
             }
         }
@@ -408,17 +1030,42 @@ public class ChromecastSession {
 
 /* ------------------------------------   HELPERS  ---------------------------------------------- */
 
-    private JSONObject createSessionObject() {
-        return ChromecastUtilities.createSessionObject(session);
+    /**
+     * Captures the session and media status, call this on the main thread.
+     */
+    private StatusSnapshot captureStatus() {
+        return StatusSnapshot.capture(state.get().session, ChromecastUtilities.getQueueItems());
     }
 
-    /** Last sent media object. **/
-    private JSONObject lastMediaObject;
-    private JSONObject createMediaObject() {
-        return createMediaObject(null);
+    /**
+     * Captures the status and sends the session update from the serializer.
+     */
+    private void notifySessionUpdate() {
+        final StatusSnapshot snapshot = captureStatus();
+        serializer.execute(new Runnable() {
+            public void run() {
+                clientListener.onSessionUpdate(ChromecastUtilities.createSessionObject(snapshot));
+            }
+        });
+    }
+
+    /**
+     * Captures the status and sends the media update from the serializer.
+     * @param idleReason if set, the last media object is sent again as idle with this reason
+     */
+    private void notifyMediaUpdate(final Integer idleReason) {
+        final StatusSnapshot snapshot = captureStatus();
+        serializer.execute(new Runnable() {
+            public void run() {
+                clientListener.onMediaUpdate(createMediaObject(snapshot, idleReason));
+            }
+        });
     }
 
-    private JSONObject createMediaObject(Integer idleReason) {
+    /** Last sent media object, only used on the serializer. **/
+    private JSONObject lastMediaObject;
+
+    private JSONObject createMediaObject(StatusSnapshot snapshot, Integer idleReason) {
         if (idleReason != null && lastMediaObject != null) {
             try {
                 lastMediaObject.put("playerState", ChromecastUtilities.getMediaPlayerState(MediaStatus.PLAYER_STATE_IDLE));
@@ -427,7 +1074,7 @@ public class ChromecastSession {
             } catch (JSONException e) {
             }
         }
-        JSONObject out = ChromecastUtilities.createMediaObject(session);
+        JSONObject out = ChromecastUtilities.createMediaObject(snapshot);
         lastMediaObject = out;
         return out;
     }
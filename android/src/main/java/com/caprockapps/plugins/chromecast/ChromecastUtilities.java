@@ -6,11 +6,12 @@ import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.mediarouter.media.MediaRouter;
 
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
 import com.google.android.gms.cast.ApplicationMetadata;
 import com.google.android.gms.cast.CastDevice;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
-import com.google.android.gms.cast.MediaQueueData;
 import com.google.android.gms.cast.MediaQueueItem;
 import com.google.android.gms.cast.MediaStatus;
 import com.google.android.gms.cast.MediaTrack;
@@ -44,6 +45,13 @@ final class ChromecastUtilities {
         queueItems = items;
     }
 
+    /**
+     * @return the cached queueItems
+     */
+    static JSONArray getQueueItems() {
+        return queueItems;
+    }
+
     static String getMediaIdleReason(int idleReason) {
         switch (idleReason) {
             case MediaStatus.IDLE_REASON_CANCELED:
@@ -414,7 +422,11 @@ final class ChromecastUtilities {
     }
 
     static JSONObject createSessionObject(CastSession session, String state) {
-        JSONObject s = createSessionObject(session);
+        return createSessionObject(StatusSnapshot.capture(session, queueItems), state);
+    }
+
+    static JSONObject createSessionObject(StatusSnapshot snapshot, String state) {
+        JSONObject s = createSessionObject(snapshot);
         if (state != null) {
             try {
                 s.put("status", state);
@@ -425,19 +437,28 @@ final class ChromecastUtilities {
     }
 
     static JSONObject createSessionObject(CastSession session) {
+        return createSessionObject(StatusSnapshot.capture(session, queueItems));
+    }
+
+    /**
+     * Creates the session object from a snapshot, this can run on any thread.
+     * @param snapshot the captured status
+     * @return the session object
+     */
+    static JSONObject createSessionObject(StatusSnapshot snapshot) {
         JSONObject out = new JSONObject();
 
         try {
-            ApplicationMetadata metadata = session.getApplicationMetadata();
+            ApplicationMetadata metadata = snapshot.appMetadata;
             out.put("appId", metadata.getApplicationId());
             try {
                 out.put("appImages", createImagesArray(metadata.getImages()));
             } catch (NullPointerException e) {
             }
             out.put("displayName", metadata.getName());
-            out.put("media", createMediaArray(session));
-            out.put("receiver", createReceiverObject(session));
-            out.put("sessionId", session.getSessionId());
+            out.put("media", createMediaArray(snapshot));
+            out.put("receiver", createReceiverObject(snapshot));
+            out.put("sessionId", snapshot.sessionId);
 
         } catch (JSONException e) {
         } catch (NullPointerException e) {
@@ -458,16 +479,16 @@ final class ChromecastUtilities {
         return appImages;
     }
 
-    private static JSONObject createReceiverObject(CastSession session) {
+    private static JSONObject createReceiverObject(StatusSnapshot snapshot) {
         JSONObject out = new JSONObject();
         try {
-            out.put("friendlyName", session.getCastDevice().getFriendlyName());
-            out.put("label", session.getCastDevice().getDeviceId());
+            out.put("friendlyName", snapshot.device.getFriendlyName());
+            out.put("label", snapshot.device.getDeviceId());
 
             JSONObject volume = new JSONObject();
             try {
-                volume.put("level", session.getVolume());
-                volume.put("muted", session.isMute());
+                volume.put("level", snapshot.volume);
+                volume.put("muted", snapshot.muted);
             } catch (JSONException e) {
             }
             out.put("volume", volume);
@@ -478,9 +499,9 @@ final class ChromecastUtilities {
         return out;
     }
 
-    static JSONArray createMediaArray(CastSession session) {
+    static JSONArray createMediaArray(StatusSnapshot snapshot) {
         JSONArray out = new JSONArray();
-        JSONObject mediaInfoObj = createMediaObject(session);
+        JSONObject mediaInfoObj = createMediaObject(snapshot);
         if (mediaInfoObj != null) {
             out.put(mediaInfoObj);
         }
@@ -492,42 +513,51 @@ final class ChromecastUtilities {
     };
 
     static JSONObject createMediaObject(CastSession session, JSONArray items) {
+        return createMediaObject(StatusSnapshot.capture(session, items));
+    }
+
+    /**
+     * Creates the media object from a snapshot, this can run on any thread.
+     * @param snapshot the captured status
+     * @return the media object, null if there is no media
+     */
+    static JSONObject createMediaObject(StatusSnapshot snapshot) {
         JSONObject out = new JSONObject();
 
         try {
-            MediaStatus mediaStatus = session.getRemoteMediaClient().getMediaStatus();
+            StatusSnapshot.Media mediaStatus = snapshot.media;
 
             // TODO: Missing attributes are commented out.
             //  These are returned by the chromecast desktop SDK, we should probbaly return them too
             //out.put("breakStatus",);
-            out.put("currentItemId", mediaStatus.getCurrentItemId());
-            out.put("currentTime", mediaStatus.getStreamPosition() / 1000.0);
-            out.put("customData", mediaStatus.getCustomData());
+            out.put("currentItemId", mediaStatus.currentItemId);
+            out.put("currentTime", mediaStatus.streamPosition / 1000.0);
+            out.put("customData", mediaStatus.customData);
             //out.put("extendedStatus",);
-            String idleReason = ChromecastUtilities.getMediaIdleReason(mediaStatus.getIdleReason());
+            String idleReason = ChromecastUtilities.getMediaIdleReason(mediaStatus.idleReason);
             if (idleReason != null) {
                 out.put("idleReason", idleReason);
             }
-            out.put("items", items);
-            out.put("isAlive", mediaStatus.getPlayerState() != MediaStatus.PLAYER_STATE_IDLE);
+            out.put("items", mediaStatus.items);
+            out.put("isAlive", mediaStatus.playerState != MediaStatus.PLAYER_STATE_IDLE);
             //out.put("liveSeekableRange",);
-            out.put("loadingItemId", mediaStatus.getLoadingItemId());
-            out.put("media", createMediaInfoObject(session.getRemoteMediaClient().getMediaInfo()));
+            out.put("loadingItemId", mediaStatus.loadingItemId);
+            out.put("media", createMediaInfoObject(mediaStatus.mediaInfo));
             out.put("mediaSessionId", 1);
-            out.put("playbackRate", mediaStatus.getPlaybackRate());
-            out.put("playerState", ChromecastUtilities.getMediaPlayerState(mediaStatus.getPlayerState()));
-            out.put("preloadedItemId", mediaStatus.getPreloadedItemId());
+            out.put("playbackRate", mediaStatus.playbackRate);
+            out.put("playerState", ChromecastUtilities.getMediaPlayerState(mediaStatus.playerState));
+            out.put("preloadedItemId", mediaStatus.preloadedItemId);
             out.put("queueData", createQueueData(mediaStatus));
-            out.put("repeatMode", getRepeatMode(mediaStatus.getQueueRepeatMode()));
-            out.put("sessionId", session.getSessionId());
+            out.put("repeatMode", getRepeatMode(mediaStatus.queueRepeatMode));
+            out.put("sessionId", snapshot.sessionId);
             //out.put("supportedMediaCommands", );
             //out.put("videoInfo", );
 
             JSONObject volume = new JSONObject();
-            volume.put("level", mediaStatus.getStreamVolume());
-            volume.put("muted", mediaStatus.isMute());
+            volume.put("level", mediaStatus.streamVolume);
+            volume.put("muted", mediaStatus.muted);
             out.put("volume", volume);
-            out.put("activeTrackIds", createActiveTrackIds(mediaStatus.getActiveTrackIds()));
+            out.put("activeTrackIds", createActiveTrackIds(mediaStatus.activeTrackIds));
         } catch (JSONException e) {
         } catch (NullPointerException e) {
             return null;
@@ -551,16 +581,15 @@ final class ChromecastUtilities {
         return out;
     }
 
-    static JSONObject createQueueData(MediaStatus status) {
+    static JSONObject createQueueData(StatusSnapshot.Media status) {
         JSONObject out = new JSONObject();
         try {
-            MediaQueueData data = status.getQueueData();
-            if (data == null) {
+            if (!status.hasQueueData) {
                 return null;
             }
-            out.put("repeatMode", ChromecastUtilities.getRepeatMode(data.getRepeatMode()));
-            out.put("shuffle", data.getRepeatMode() == MediaStatus.REPEAT_MODE_REPEAT_ALL_AND_SHUFFLE);
-            out.put("startIndex", data.getStartIndex());
+            out.put("repeatMode", ChromecastUtilities.getRepeatMode(status.queueDataRepeatMode));
+            out.put("shuffle", status.queueDataRepeatMode == MediaStatus.REPEAT_MODE_REPEAT_ALL_AND_SHUFFLE);
+            out.put("startIndex", status.queueDataStartIndex);
         } catch (JSONException e) {
             e.printStackTrace();
             throw new RuntimeException("See above stack trace for error: " + e.getMessage());
@@ -773,6 +802,47 @@ final class ChromecastUtilities {
         return out;
     }
 
+    /**
+     * Creates the error of an operation that did not complete in time.
+     * @param operation the operation, eg. "loadMedia"
+     * @param timeout the deadline it missed (ms)
+     * @return {code: "timeout", description, operation, timeout}
+     */
+    static JSONObject createTimeoutError(String operation, long timeout) {
+        JSONObject out = createError("timeout", operation + " timed out after " + timeout + "ms");
+        try {
+            out.put("operation", operation);
+            out.put("timeout", timeout);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * Rejects a call with the timeout error, see createTimeoutError.
+     * @param call the call
+     * @param operation the operation
+     * @param timeout the deadline it missed (ms)
+     */
+    static void rejectTimeout(PluginCall call, String operation, long timeout) {
+        rejectWithError(call, createTimeoutError(operation, timeout));
+    }
+
+    /**
+     * Rejects a call with an error made by createError, the whole error is passed as data.
+     * @param call the call
+     * @param error the error
+     */
+    static void rejectWithError(PluginCall call, JSONObject error) {
+        JSObject data;
+        try {
+            data = JSObject.fromJSONObject(error);
+        } catch (JSONException e) {
+            data = null;
+        }
+        call.reject(error.optString("description"), error.optString("code"), data);
+    }
+
 /* -------------------   Create NON-JSON (non-output) Objects  ---------------------------------- */
 
     /**
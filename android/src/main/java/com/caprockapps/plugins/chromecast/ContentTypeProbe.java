@@ -0,0 +1,308 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds the content type of the media URLs whose extension doesn't tell it (eg. signed CDN URLs).
+ * A HEAD request gives the Content-Type header. If it is missing or generic, the first bytes
+ * are fetched with a ranged GET and sniffed. Only successful responses are trusted, an error page
+ * (eg. an expired signed URL) is not taken for the media.
+ * The results are cached per host and path pattern, the path segments that look like ids or
+ * tokens being ignored, so the other URLs of the same CDN don't need a probe.
+ * Probes run on a background thread, the load runs them while the receiver application starts.
+ */
+final class ContentTypeProbe {
+    /** Tag for logging. */
+    private static final String TAG = "ContentTypeProbe";
+    /** How long a result is kept (ms). */
+    private static final long TTL = 10 * 60 * 1000;
+    /** Number of cached results. */
+    private static final int MAX_ENTRIES = 256;
+    /**
+     * Connect and read timeout of each request (ms). A probe makes up to two requests, so it can
+     * delay a load by up to four times this.
+     */
+    static final int TIMEOUT = 2000;
+    /** Number of bytes sniffed. */
+    private static final int SNIFF_SIZE = 512;
+
+    /**
+     * Receives the result of a probe, on the probe thread.
+     */
+    interface Callback {
+        /**
+         * @param contentType the content type, null if it could not be found
+         */
+        void onResult(String contentType);
+    }
+
+    /** The results, by pattern. */
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Stats. */
+    private volatile long probeCount = 0;
+    private volatile long cacheHitCount = 0;
+    private volatile long sniffCount = 0;
+    private volatile long failedCount = 0;
+    private volatile long totalTime = 0;
+
+    /**
+     * Finds the content type of a URL.
+     * @param url the media URL
+     * @param headers HTTP headers to send (eg. authentication), may be null
+     * @param callback called with the result, right away if it is cached
+     */
+    void probe(final String url, final JSONObject headers, final Callback callback) {
+        final String key = patternOf(url);
+        Entry entry = key == null ? null : cache.get(key);
+        if (entry != null && entry.expires > SystemClock.elapsedRealtime()) {
+            cacheHitCount++;
+            callback.onResult(entry.contentType);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                String contentType = null;
+                try {
+                    contentType = fetch(url, headers);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Probe failed: " + e.getMessage());
+                }
+                probeCount++;
+                totalTime += SystemClock.elapsedRealtime() - start;
+                if (contentType == null) {
+                    failedCount++;
+                } else if (key != null) {
+                    put(key, contentType);
+                }
+                callback.onResult(contentType);
+            }
+        });
+    }
+
+    private void put(String key, String contentType) {
+        long now = SystemClock.elapsedRealtime();
+        if (cache.size() >= MAX_ENTRIES) {
+            Iterator<Entry> it = cache.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expires <= now) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(key, new Entry(contentType, now + TTL));
+    }
+
+    /**
+     * @return the content type from the headers or the first bytes, null if unknown
+     */
+    private String fetch(String url, JSONObject headers) throws IOException {
+        HttpURLConnection connection = open(url, "HEAD", headers);
+        String contentType = null;
+        try {
+            // Some signed URLs are only valid for GET, an error is not the end
+            if (isSuccess(connection.getResponseCode())) {
+                contentType = normalize(connection.getContentType());
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (contentType != null) {
+            return contentType;
+        }
+        // Missing or generic, look at the content
+        sniffCount++;
+        connection = open(url, "GET", headers);
+        connection.setRequestProperty("Range", "bytes=0-" + (SNIFF_SIZE - 1));
+        try {
+            int status = connection.getResponseCode();
+            if (!isSuccess(status)) {
+                Log.w(TAG, "Probe got HTTP " + status);
+                return null;
+            }
+            contentType = normalize(connection.getContentType());
+            if (contentType != null) {
+                return contentType;
+            }
+            byte[] head = new byte[SNIFF_SIZE];
+            int length = 0;
+            InputStream in = connection.getInputStream();
+            try {
+                int count;
+                while (length < SNIFF_SIZE && (count = in.read(head, length, SNIFF_SIZE - length)) != -1) {
+                    length += count;
+                }
+            } finally {
+                in.close();
+            }
+            return sniff(head, length);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return whether the response is the media: 2xx, including 206 for the ranged GET
+     */
+    static boolean isSuccess(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    private static HttpURLConnection open(String url, String method, JSONObject headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setInstanceFollowRedirects(true);
+        if (headers != null) {
+            Iterator<String> keys = headers.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                connection.setRequestProperty(key, headers.optString(key));
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return the content type the receiver expects, null if missing or too generic
+     */
+    static String normalize(String header) {
+        if (header == null) {
+            return null;
+        }
+        int params = header.indexOf(';');
+        String type = (params == -1 ? header : header.substring(0, params)).trim().toLowerCase(Locale.ROOT);
+        if (type.isEmpty() || type.equals("application/octet-stream") || type.equals("binary/octet-stream")
+                || type.startsWith("text/")) {
+            return null;
+        }
+        if (type.contains("mpegurl")) {
+            return LoadPipeline.HLS_CONTENT_TYPE;
+        }
+        if (type.equals("application/dash+xml")) {
+            return "application/dash+xml";
+        }
+        return type;
+    }
+
+    /**
+     * @return the content type from the magic bytes, null if unknown
+     */
+    static String sniff(byte[] head, int length) {
+        String text = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+        // With or without an UTF-8 BOM
+        if (text.startsWith("#EXTM3U") || text.startsWith("ï»¿#EXTM3U")) {
+            return LoadPipeline.HLS_CONTENT_TYPE;
+        }
+        if (text.contains("<MPD")) {
+            return "application/dash+xml";
+        }
+        if (length >= 8 && text.startsWith("ftyp", 4)) {
+            return "video/mp4";
+        }
+        if (length >= 4 && (head[0] & 0xFF) == 0x1A && (head[1] & 0xFF) == 0x45
+                && (head[2] & 0xFF) == 0xDF && (head[3] & 0xFF) == 0xA3) {
+            return text.contains("webm") ? "video/webm" : "video/x-matroska";
+        }
+        if (length > 188 && head[0] == 0x47 && head[188] == 0x47) {
+            return "video/mp2t";
+        }
+        if (text.startsWith("ID3") || (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xE0) == 0xE0)) {
+            return "audio/mpeg";
+        }
+        return null;
+    }
+
+    /**
+     * @return the cache key of a URL: its host and its path without the segments that look
+     *         like ids or tokens, null if it is not a URL
+     */
+    static String patternOf(String url) {
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (IOException e) {
+            return null;
+        }
+        StringBuilder out = new StringBuilder(parsed.getHost());
+        for (String segment : parsed.getPath().split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            out.append('/');
+            out.append(isVariable(segment) ? "*" : segment);
+        }
+        return out.toString();
+    }
+
+    private static boolean isVariable(String segment) {
+        if (segment.length() >= 24) {
+            return true;
+        }
+        int digits = 0;
+        for (int i = 0; i < segment.length(); i++) {
+            if (Character.isDigit(segment.charAt(i))) {
+                digits++;
+            }
+        }
+        return digits > 0 && (digits == segment.length() || segment.length() >= 8);
+    }
+
+    /**
+     * @return the probe stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("probes", probeCount);
+            out.put("cacheHits", cacheHitCount);
+            out.put("sniffed", sniffCount);
+            out.put("failed", failedCount);
+            out.put("cached", cache.size());
+            out.put("averageTime", probeCount == 0 ? 0 : (double) totalTime / probeCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    private static final class Entry {
+        final String contentType;
+        final long expires;
+
+        Entry(String contentType, long expires) {
+            this.contentType = contentType;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip time, jitter and message loss between us and the receiver by
+ * sending PING messages on a reserved namespace, which the receiver answers with PONG.
+ * The matching handler is in custom-receiver/index.html, a receiver that never answers is reported
+ * as unsupported rather than as a degraded link.
+ */
+final class HeartbeatMonitor implements Cast.MessageReceivedCallback {
+    /** Tag for logging. */
+    private static final String TAG = "HeartbeatMonitor";
+    /** The reserved namespace, messages on it are never sent to the client. */
+    static final String NAMESPACE = "urn:x-cast:com.caprockapps.chromecast.heartbeat";
+    /** How many consecutive degraded checks are required to consider the link degraded. */
+    private static final int SUSTAINED_CHECKS = 3;
+
+    /** Session used to send and receive the heartbeats. */
+    private final ChromecastSession media;
+    /** Notified when the link quality changes. */
+    private final Listener listener;
+    /** Runs the heartbeats. */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /** The scheduled heartbeat, null if stopped. */
+    private ScheduledFuture<?> heartbeat;
+
+    /** Time between heartbeats (ms). */
+    private long interval;
+    /** Average RTT above which the link is degraded (ms). */
+    private long degradedRtt;
+    /** A ping not answered after this long is lost (ms). */
+    private long lossTimeout;
+
+    /** Sequence number of the next ping. */
+    private int nextSeq = 0;
+    /** Send time of the pings waiting for an answer, by sequence number. */
+    private final Map<Integer, Long> pendingPings = new HashMap<>();
+    /** The last RTTs (ms), -1 for lost pings. */
+    private long[] samples = new long[0];
+    /** Number of samples recorded, samples is used as a ring buffer. */
+    private long sampleCount = 0;
+    /** Last RTT (ms). */
+    private long lastRtt = -1;
+    /** Interarrival jitter as in RFC 3550 (ms). */
+    private double jitter = 0;
+    /** Totals since start. */
+    private long sentCount = 0;
+    private long receivedCount = 0;
+    private long lostCount = 0;
+    /** Number of consecutive checks above/below the degraded threshold. */
+    private int degradedChecks = 0;
+    private int recoveredChecks = 0;
+    /** Whether we reported the link as degraded. */
+    private boolean degraded = false;
+    /** Whether the receiver left enough pings unanswered without ever answering one. */
+    private boolean unsupported = false;
+
+    /**
+     * @param session the session to monitor
+     * @param linkListener notified when the link quality changes
+     */
+    HeartbeatMonitor(ChromecastSession session, Listener linkListener) {
+        this.media = session;
+        this.listener = linkListener;
+    }
+
+    /**
+     * Starts (or restarts) sending heartbeats, resets the statistics.
+     * @param intervalMs time between heartbeats (ms)
+     * @param degradedRttMs average RTT above which the link is degraded (ms)
+     * @param windowSize number of heartbeats the rolling statistics are computed over
+     */
+    synchronized void start(long intervalMs, long degradedRttMs, int windowSize) {
+        stop();
+        this.interval = intervalMs;
+        this.degradedRtt = degradedRttMs;
+        this.lossTimeout = Math.max(intervalMs * 2, degradedRttMs * 2);
+        this.samples = new long[Math.max(windowSize, 1)];
+        this.sampleCount = 0;
+        this.lastRtt = -1;
+        this.jitter = 0;
+        this.sentCount = 0;
+        this.receivedCount = 0;
+        this.lostCount = 0;
+        this.degradedChecks = 0;
+        this.recoveredChecks = 0;
+        this.degraded = false;
+        this.unsupported = false;
+        this.pendingPings.clear();
+
+        // The pings must not wait behind the other messages, or we would measure the queue
+        media.setMessageLane(NAMESPACE, OutboundScheduler.CONTROL);
+        media.addInternalMessageListener(NAMESPACE, this);
+        heartbeat = timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                beat();
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sending heartbeats, the statistics are kept.
+     */
+    synchronized void stop() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+            media.removeInternalMessageListener(NAMESPACE, this);
+        }
+    }
+
+    /**
+     * @return whether heartbeats are being sent
+     */
+    synchronized boolean isRunning() {
+        return heartbeat != null;
+    }
+
+    /**
+     * Expires the unanswered pings, checks the link quality and sends the next ping.
+     * The listener is called and the ping sent without holding the lock.
+     */
+    private void beat() {
+        JSONObject report;
+        boolean nowDegraded;
+        final int seq;
+        JSONObject ping = new JSONObject();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            Iterator<Map.Entry<Integer, Long>> it = pendingPings.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().getValue() > lossTimeout) {
+                    it.remove();
+                    lostCount++;
+                    addSample(-1);
+                }
+            }
+            report = checkLink();
+            nowDegraded = degraded;
+
+            if (media.isConnected()) {
+                seq = nextSeq++;
+                try {
+                    ping.put("type", "PING");
+                    ping.put("seq", seq);
+                    ping.put("sentAt", System.currentTimeMillis());
+                    pendingPings.put(seq, now);
+                    sentCount++;
+                } catch (JSONException e) {
+                    ping = null;
+                }
+            } else {
+                seq = -1;
+                ping = null;
+            }
+        }
+
+        if (report != null) {
+            if (nowDegraded) {
+                listener.onLinkDegraded(report);
+            } else {
+                listener.onLinkRecovered(report);
+            }
+        }
+        if (ping == null) {
+            return;
+        }
+        media.sendMessage(NAMESPACE, ping.toString(), new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status result) {
+                if (!result.isSuccess()) {
+                    // It will never be answered, so count it as lost right away
+                    synchronized (HeartbeatMonitor.this) {
+                        if (pendingPings.remove(seq) != null) {
+                            lostCount++;
+                            addSample(-1);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        long now = SystemClock.elapsedRealtime();
+        int seq;
+        try {
+            JSONObject pong = new JSONObject(message);
+            if (!"PONG".equals(pong.optString("type"))) {
+                return;
+            }
+            seq = pong.getInt("seq");
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid heartbeat message: " + message);
+            return;
+        }
+        synchronized (this) {
+            Long sentAt = pendingPings.remove(seq);
+            if (sentAt == null) {
+                // Too late, it was already counted as lost
+                return;
+            }
+            long rtt = now - sentAt;
+            if (lastRtt >= 0) {
+                jitter += (Math.abs(rtt - lastRtt) - jitter) / 16.0;
+            }
+            lastRtt = rtt;
+            receivedCount++;
+            unsupported = false;
+            addSample(rtt);
+        }
+    }
+
+    private void addSample(long rtt) {
+        samples[(int) (sampleCount % samples.length)] = rtt;
+        sampleCount++;
+    }
+
+    /**
+     * Marks the link as degraded, or recovered, once it has been so for a few checks in a row.
+     * @return the stats to report if it changed, null otherwise
+     */
+    private JSONObject checkLink() {
+        if (sampleCount < samples.length / 2 + 1) {
+            // Not enough samples yet
+            return null;
+        }
+        if (receivedCount == 0) {
+            // The receiver doesn't answer the pings (no handler for the namespace), the link says nothing
+            if (!unsupported) {
+                unsupported = true;
+                Log.w(TAG, "No answer to " + sentCount + " heartbeats, the receiver doesn't support them");
+            }
+            return null;
+        }
+        JSONObject stats = getStatsLocked();
+        boolean aboveThreshold = stats.optDouble("rttAverage", 0) > degradedRtt
+                || stats.optDouble("lossRate", 0) >= 0.5;
+        if (aboveThreshold) {
+            recoveredChecks = 0;
+            if (!degraded && ++degradedChecks >= SUSTAINED_CHECKS) {
+                degraded = true;
+                return stats;
+            }
+        } else {
+            degradedChecks = 0;
+            if (degraded && ++recoveredChecks >= SUSTAINED_CHECKS) {
+                degraded = false;
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the rolling statistics
+     */
+    synchronized JSONObject getStats() {
+        return getStatsLocked();
+    }
+
+    private JSONObject getStatsLocked() {
+        int size = (int) Math.min(sampleCount, samples.length);
+        long[] rtts = new long[size];
+        int rttCount = 0;
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            if (samples[i] >= 0) {
+                rtts[rttCount++] = samples[i];
+                total += samples[i];
+            }
+        }
+        Arrays.sort(rtts, 0, rttCount);
+
+        JSONObject out = new JSONObject();
+        try {
+            out.put("running", heartbeat != null);
+            out.put("interval", interval);
+            out.put("degraded", degraded);
+            out.put("supported", !unsupported);
+            out.put("sent", sentCount);
+            out.put("received", receivedCount);
+            out.put("lost", lostCount);
+            out.put("windowSize", size);
+            out.put("lossRate", size == 0 ? 0 : (double) (size - rttCount) / size);
+            out.put("rttLast", lastRtt);
+            if (rttCount > 0) {
+                out.put("rttAverage", (double) total / rttCount);
+                out.put("rttMin", rtts[0]);
+                out.put("rttMax", rtts[rttCount - 1]);
+                out.put("rttP95", rtts[Math.min(rttCount - 1, (int) Math.ceil(rttCount * 0.95) - 1)]);
+            }
+            out.put("jitter", jitter);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    interface Listener {
+        void onLinkDegraded(JSONObject stats);
+        void onLinkRecovered(JSONObject stats);
+    }
+}
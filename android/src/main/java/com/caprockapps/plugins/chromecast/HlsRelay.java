@@ -0,0 +1,540 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Relays an HLS stream through the LocalMediaServer, so that any receiver can play streams whose
+ * playlists and segments need HTTP headers (authentication) the receiver can't send.
+ * The relay adds the headers upstream, and the query of the master playlist (its token) to the
+ * URLs of the same host that have none. The other hosts (ads, other CDNs, redirect targets) get
+ * the headers without the credentials. The playlists are rewritten so that all their URIs go
+ * through the relay.
+ * Segments are streamed to the receiver as they arrive, without waiting for the whole segment.
+ * The segments that follow the one requested are prefetched into a bounded LRU cache.
+ */
+final class HlsRelay implements LocalMediaServer.Route {
+    /** Tag for logging. */
+    private static final String TAG = "HlsRelay";
+    /** Path prefix of the relay on the LocalMediaServer. */
+    private static final String PREFIX = "/relay/";
+    /** Largest size of the cached segments. */
+    private static final long MAX_CACHE_SIZE = 32 * 1024 * 1024;
+    /** Larger segments are not prefetched. */
+    private static final int MAX_ENTRY_SIZE = 8 * 1024 * 1024;
+    /** Largest playlist relayed. */
+    private static final int MAX_PLAYLIST_SIZE = 4 * 1024 * 1024;
+    /** Number of segments prefetched after the one requested. */
+    private static final int PREFETCH_COUNT = 2;
+    /** Connect and read timeout upstream (ms). */
+    private static final int TIMEOUT = 5000;
+    /** Number of redirects followed upstream. */
+    private static final int MAX_REDIRECTS = 5;
+    /** Size of the chunks streamed to the receiver. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Number of streams kept, the oldest stop working. */
+    private static final int MAX_STREAMS = 16;
+    private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+
+    /** The shared instance. */
+    private static HlsRelay instance;
+
+    /** The relayed streams, by id, least recently used first. */
+    private final Map<String, Stream> streams = Collections.synchronizedMap(new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    });
+    /** The prefetched segments, by upstream URL, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize = 0;
+    /** The prefetches running, by upstream URL. */
+    private final Map<String, CountDownLatch> prefetching = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /** Tokens replaced by a fresher one (see TokenRefreshManager), applied to all the upstream URLs. */
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+    /** URL of the relay on the LocalMediaServer, null until the first stream. */
+    private String baseUrl;
+
+    /** Stats. */
+    private volatile long playlistCount = 0;
+    private volatile long segmentCount = 0;
+    private volatile long cacheHitCount = 0;
+    private volatile long prefetchCount = 0;
+    private volatile long bytesRelayed = 0;
+    private volatile long upstreamErrorCount = 0;
+
+    /**
+     * @return the shared relay
+     */
+    static synchronized HlsRelay getInstance() {
+        if (instance == null) {
+            instance = new HlsRelay();
+        }
+        return instance;
+    }
+
+    private HlsRelay() {
+    }
+
+    /**
+     * Gives the relay URL of an HLS stream.
+     * @param url the master or media playlist
+     * @param headers HTTP headers added upstream, may be null
+     * @return the URL the receiver can play
+     * @throws IOException if the LocalMediaServer could not start
+     */
+    synchronized String relay(String url, JSONObject headers) throws IOException {
+        if (baseUrl == null) {
+            baseUrl = LocalMediaServer.getInstance().addRoute(PREFIX, this);
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes) {
+            id.append(String.format("%02x", b & 0xFF));
+        }
+        Stream stream = new Stream(id.toString(), url, headers);
+        streams.put(stream.id, stream);
+        return local(stream, "p", url);
+    }
+
+    /**
+     * Replaces a token in the upstream URLs, including the URLs already given to the receiver.
+     * @param previous the expired token, nothing is done if null or empty
+     * @param fresh the token to use instead
+     */
+    void replaceToken(String previous, String fresh) {
+        if (previous == null || previous.isEmpty() || previous.equals(fresh)) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : tokens.entrySet()) {
+            if (entry.getValue().equals(previous)) {
+                entry.setValue(fresh);
+            }
+        }
+        tokens.put(previous, fresh);
+    }
+
+    /**
+     * @return the relay URL of an upstream URL, kind p for playlists and s for the rest
+     */
+    private String local(Stream stream, String kind, String upstream) {
+        String name = upstream;
+        int query = name.indexOf('?');
+        if (query != -1) {
+            name = name.substring(0, query);
+        }
+        name = name.substring(name.lastIndexOf('/') + 1);
+        String encoded = Base64.encodeToString(upstream.getBytes(StandardCharsets.UTF_8),
+                Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+        return baseUrl + stream.id + "/" + kind + "/" + encoded + "/" + (name.isEmpty() ? "index" : name);
+    }
+
+    @Override
+    public void handle(String path, final String range, final LocalMediaServer.Exchange exchange) {
+        String[] parts = path.split("/");
+        final Stream stream = parts.length >= 3 ? streams.get(parts[0]) : null;
+        if (stream == null || !(parts[1].equals("p") || parts[1].equals("s"))) {
+            exchange.fail(404, "Not Found");
+            return;
+        }
+        final String upstream;
+        try {
+            upstream = new String(Base64.decode(parts[2], Base64.URL_SAFE), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            exchange.fail(400, "Bad Request");
+            return;
+        }
+        final boolean playlist = parts[1].equals("p");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (playlist) {
+                    servePlaylist(stream, upstream, exchange);
+                } else {
+                    serveSegment(stream, upstream, range, exchange);
+                }
+            }
+        });
+    }
+
+    private void servePlaylist(Stream stream, String upstream, LocalMediaServer.Exchange exchange) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(stream, upstream, "GET", null);
+            int status = connection.getResponseCode();
+            if (status >= 400) {
+                upstreamErrorCount++;
+                exchange.fail(status, "Upstream Error");
+                return;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1 && out.size() < MAX_PLAYLIST_SIZE) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            // Relative URIs are relative to the URL after the redirects
+            String base = connection.getURL().toString();
+            byte[] body = rewrite(stream, base, new String(out.toByteArray(), StandardCharsets.UTF_8))
+                    .getBytes(StandardCharsets.UTF_8);
+            playlistCount++;
+            exchange.respond(200, "OK", "Content-Type: application/vnd.apple.mpegurl\r\nCache-Control: no-cache\r\n", body.length);
+            exchange.write(body, 0, body.length);
+            exchange.finish();
+        } catch (IOException e) {
+            upstreamErrorCount++;
+            Log.w(TAG, "Playlist failed: " + e.getMessage());
+            exchange.fail(502, "Bad Gateway");
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return the playlist with all its URIs going through the relay
+     */
+    private String rewrite(Stream stream, String base, String playlist) {
+        boolean master = playlist.contains("#EXT-X-STREAM-INF");
+        List<String> segments = new ArrayList<>();
+        StringBuilder out = new StringBuilder(playlist.length() + 1024);
+        for (String line : playlist.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                out.append('\n');
+                continue;
+            }
+            if (trimmed.startsWith("#")) {
+                Matcher uri = URI_ATTRIBUTE.matcher(trimmed);
+                if (uri.find()) {
+                    // Renditions are playlists, keys, maps and parts are fetched as they are
+                    boolean isPlaylist = trimmed.startsWith("#EXT-X-MEDIA:") || trimmed.startsWith("#EXT-X-I-FRAME-STREAM-INF:")
+                            || trimmed.startsWith("#EXT-X-RENDITION-REPORT:");
+                    String upstream = upstreamOf(stream, base, uri.group(1));
+                    trimmed = trimmed.substring(0, uri.start(1)) + local(stream, isPlaylist ? "p" : "s", upstream)
+                            + trimmed.substring(uri.end(1));
+                }
+                out.append(trimmed).append('\n');
+                continue;
+            }
+            String upstream = upstreamOf(stream, base, trimmed);
+            if (!master) {
+                segments.add(upstream);
+            }
+            out.append(local(stream, master ? "p" : "s", upstream)).append('\n');
+        }
+        if (!master) {
+            stream.segments.put(base, segments);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the absolute upstream URL of a playlist URI, with the query of the stream if it has none
+     */
+    private static String upstreamOf(Stream stream, String base, String uri) {
+        try {
+            URL url = new URL(new URL(base), uri);
+            if (url.getQuery() == null && stream.query != null && url.getHost().equals(stream.host)) {
+                return url.toString() + "?" + stream.query;
+            }
+            return url.toString();
+        } catch (IOException e) {
+            return uri;
+        }
+    }
+
+    private void serveSegment(Stream stream, String upstream, String range, LocalMediaServer.Exchange exchange) {
+        segmentCount++;
+        if (range == null) {
+            prefetchAfter(stream, upstream);
+            CountDownLatch running = prefetching.get(upstream);
+            if (running != null) {
+                // Already on its way, better than a second download
+                try {
+                    running.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] cached;
+            synchronized (cache) {
+                cached = cache.get(upstream);
+            }
+            if (cached != null) {
+                cacheHitCount++;
+                try {
+                    exchange.respond(200, "OK", "Content-Type: " + LocalMediaServer.guessContentType(upstream.split("\\?")[0])
+                            + "\r\nAccept-Ranges: bytes\r\n", cached.length);
+                    exchange.write(cached, 0, cached.length);
+                    bytesRelayed += cached.length;
+                } catch (IOException e) {
+                    // The receiver closed the connection
+                }
+                exchange.finish();
+                return;
+            }
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = open(stream, upstream, exchange.head ? "HEAD" : "GET", range);
+            int status = connection.getResponseCode();
+            if (status >= 400) {
+                upstreamErrorCount++;
+                exchange.fail(status, "Upstream Error");
+                return;
+            }
+            StringBuilder headers = new StringBuilder();
+            String type = connection.getContentType();
+            headers.append("Content-Type: ").append(type != null ? type : "application/octet-stream").append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\n");
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null) {
+                headers.append("Content-Range: ").append(contentRange).append("\r\n");
+            }
+            exchange.respond(status == 206 ? 206 : 200, status == 206 ? "Partial Content" : "OK", headers.toString(),
+                    connection.getContentLength());
+            if (!exchange.head) {
+                InputStream in = connection.getInputStream();
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        exchange.write(buffer, 0, count);
+                        bytesRelayed += count;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            exchange.finish();
+        } catch (IOException e) {
+            upstreamErrorCount++;
+            Log.w(TAG, "Segment failed: " + e.getMessage());
+            exchange.fail(502, "Bad Gateway");
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Prefetches the segments that follow a segment in its playlist.
+     */
+    private void prefetchAfter(final Stream stream, String upstream) {
+        for (List<String> segments : stream.segments.values()) {
+            int index = segments.indexOf(upstream);
+            if (index == -1) {
+                continue;
+            }
+            for (int i = index + 1; i <= index + PREFETCH_COUNT && i < segments.size(); i++) {
+                final String next = segments.get(i);
+                synchronized (cache) {
+                    if (cache.containsKey(next) || prefetching.containsKey(next)) {
+                        continue;
+                    }
+                    prefetching.put(next, new CountDownLatch(1));
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetch(stream, next);
+                    }
+                });
+            }
+            return;
+        }
+    }
+
+    private void prefetch(Stream stream, String upstream) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(stream, upstream, "GET", null);
+            if (connection.getResponseCode() >= 400 || connection.getContentLength() > MAX_ENTRY_SIZE) {
+                return;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 8192));
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    if (out.size() > MAX_ENTRY_SIZE) {
+                        return;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            put(upstream, out.toByteArray());
+            prefetchCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Prefetch failed: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            CountDownLatch done = prefetching.remove(upstream);
+            if (done != null) {
+                done.countDown();
+            }
+        }
+    }
+
+    private void put(String upstream, byte[] data) {
+        synchronized (cache) {
+            cache.put(upstream, data);
+            cacheSize += data.length;
+            Iterator<byte[]> it = cache.values().iterator();
+            while (cacheSize > MAX_CACHE_SIZE && it.hasNext()) {
+                cacheSize -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends an upstream request, following the redirects.
+     * @param range the Range header, may be null
+     * @return the connection, its response received
+     */
+    private HttpURLConnection open(Stream stream, String url, String method, String range) throws IOException {
+        for (Map.Entry<String, String> token : tokens.entrySet()) {
+            url = url.replace(token.getKey(), token.getValue());
+        }
+        for (int hop = 0; ; hop++) {
+            URL target = new URL(url);
+            HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            // Followed here, so that the credentials don't go to the other hosts
+            connection.setInstanceFollowRedirects(false);
+            JSONObject headers = headersFor(stream.host, stream.headers, target.getHost());
+            if (headers != null) {
+                Iterator<String> keys = headers.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    connection.setRequestProperty(key, headers.optString(key));
+                }
+            }
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            int status = connection.getResponseCode();
+            String location = connection.getHeaderField("Location");
+            if (status < 300 || status >= 400 || location == null || hop == MAX_REDIRECTS) {
+                return connection;
+            }
+            connection.disconnect();
+            url = new URL(target, location).toString();
+        }
+    }
+
+    /**
+     * @param streamHost the host of the master playlist
+     * @param headers the headers of the stream, may be null
+     * @param host the host of the request
+     * @return the headers to send, without the credentials for another host
+     */
+    static JSONObject headersFor(String streamHost, JSONObject headers, String host) {
+        if (streamHost != null && streamHost.equalsIgnoreCase(host)) {
+            return headers;
+        }
+        return RedirectResolver.withoutCredentials(headers);
+    }
+
+    /**
+     * @return the relay stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("streams", streams.size());
+            out.put("playlists", playlistCount);
+            out.put("segments", segmentCount);
+            out.put("cacheHits", cacheHitCount);
+            out.put("prefetched", prefetchCount);
+            synchronized (cache) {
+                out.put("cachedSegments", cache.size());
+                out.put("cachedBytes", cacheSize);
+            }
+            out.put("bytesRelayed", bytesRelayed);
+            out.put("upstreamErrors", upstreamErrorCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * A relayed stream.
+     */
+    private static final class Stream {
+        final String id;
+        final JSONObject headers;
+        /** Host and query of the master playlist. */
+        final String host;
+        final String query;
+        /** The segments of the media playlists, by playlist URL. */
+        final Map<String, List<String>> segments = new ConcurrentHashMap<>();
+
+        Stream(String id, String url, JSONObject headers) {
+            this.id = id;
+            this.headers = headers;
+            String streamHost = null;
+            String streamQuery = null;
+            try {
+                URL parsed = new URL(url);
+                streamHost = parsed.getHost();
+                streamQuery = parsed.getQuery();
+            } catch (IOException e) {
+            }
+            this.host = streamHost;
+            this.query = streamQuery;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getcapacitor.PluginCall;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps rapid channel zapping from thrashing the receiver.
+ * A load that comes less than the window after the previous one is held for the window, and only
+ * the newest one is sent: the ones it replaces are rejected with load_superseded, whether they were
+ * held, in the load pipeline or already sent. The first load after a quiet period is sent right away.
+ * The time to play is measured for the loads that end up playing, from the loadMedia call to the
+ * receiver reporting them as playing.
+ */
+final class LoadDebouncer {
+    /** Tag for logging. */
+    private static final String TAG = "LoadDebouncer";
+    /** Error code of the replaced loads. */
+    static final String SUPERSEDED = "load_superseded";
+    /** Default window (ms). */
+    static final long DEFAULT_WINDOW = 300;
+
+    /** Loads closer than this to the previous one are held (ms), 0 to send them all right away. */
+    private long window = DEFAULT_WINDOW;
+    /** When the previous load was submitted (elapsedRealtime ms), 0 if none. */
+    private long lastSubmit = 0;
+    /** The content id of the load waiting to play, null if none. */
+    private String awaitingContentId;
+    /** When its loadMedia call was made (ns). */
+    private long awaitingStart;
+
+    /** Stats. */
+    private long submittedCount = 0;
+    private long heldCount = 0;
+    private long supersededCount = 0;
+    private long playedCount = 0;
+    private long lastTimeToPlay = 0;
+    private long maxTimeToPlay = 0;
+    private long totalTimeToPlay = 0;
+
+    /**
+     * @param ms the new window (ms), 0 to never hold the loads
+     */
+    synchronized void setWindow(long ms) {
+        window = Math.max(0, ms);
+    }
+
+    /**
+     * Records a load handed to the session.
+     * @return how long to hold it before sending it (ms), 0 to send it right away
+     */
+    long submit() {
+        return submit(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param now the current time (elapsedRealtime ms)
+     * @see #submit()
+     */
+    synchronized long submit(long now) {
+        boolean zapping = lastSubmit != 0 && now - lastSubmit < window;
+        lastSubmit = now;
+        submittedCount++;
+        if (zapping) {
+            heldCount++;
+            return window;
+        }
+        return 0;
+    }
+
+    /**
+     * Records a load sent to the receiver, it replaces the one waiting to play.
+     * @param contentId the URL of the media
+     * @param startTime when its loadMedia call was made (ns)
+     */
+    synchronized void onSent(String contentId, long startTime) {
+        awaitingContentId = contentId;
+        awaitingStart = startTime;
+    }
+
+    /**
+     * Records the time to play if the media is the last one sent.
+     * @param contentId the URL of the media the receiver is playing
+     */
+    synchronized void onPlaying(String contentId) {
+        if (awaitingContentId == null || !awaitingContentId.equals(contentId)) {
+            return;
+        }
+        long elapsed = (System.nanoTime() - awaitingStart) / 1000000;
+        awaitingContentId = null;
+        playedCount++;
+        lastTimeToPlay = elapsed;
+        maxTimeToPlay = Math.max(maxTimeToPlay, elapsed);
+        totalTimeToPlay += elapsed;
+        Log.d(TAG, "Playing " + elapsed + "ms after the load");
+    }
+
+    /**
+     * Rejects a replaced load.
+     * @param call its call
+     */
+    void reject(PluginCall call) {
+        synchronized (this) {
+            supersededCount++;
+        }
+        call.reject("Superseded by a newer loadMedia call", SUPERSEDED);
+    }
+
+    /**
+     * @return the load stats, times in ms
+     */
+    synchronized JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("window", window);
+            out.put("submitted", submittedCount);
+            out.put("held", heldCount);
+            out.put("superseded", supersededCount);
+            out.put("played", playedCount);
+            out.put("lastTimeToPlay", lastTimeToPlay);
+            out.put("maxTimeToPlay", maxTimeToPlay);
+            out.put("averageTimeToPlay", playedCount == 0 ? 0 : (double) totalTimeToPlay / playedCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+}
@@ -0,0 +1,348 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.util.Log;
+
+import com.getcapacitor.PluginCall;
+import com.google.android.gms.cast.MediaInfo;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The steps shared by all the load methods: the call is parsed once into a Request, which is
+ * then normalized (content type detection, stream type), validated, and turned into the
+ * MediaInfo that is dispatched to the session.
+ * When neither the call nor the URL extension give the content type, it is probed on the
+ * network while the receiver application starts, and the MediaInfo is built once both are done.
+ * Local files are served to the receiver by the LocalMediaServer, and HLS streams can be relayed
+ * through it by the HlsRelay.
+ * The load methods only fill the Request, and measure the time taken by these steps.
+ */
+final class LoadPipeline {
+    /** Tag for logging. */
+    private static final String TAG = "LoadPipeline";
+    /** Content type of the HLS streams. */
+    static final String HLS_CONTENT_TYPE = "application/x-mpegURL";
+
+    /** Stats. */
+    private volatile long preparedCount = 0;
+    private volatile long rejectedCount = 0;
+    private volatile long dispatchedCount = 0;
+    private volatile long totalTime = 0;
+    private volatile long maxTime = 0;
+    private volatile long lastTime = 0;
+    private volatile long probeWaitCount = 0;
+    private volatile long totalProbeWait = 0;
+
+    /** Finds the content types the URL doesn't tell. */
+    private final ContentTypeProbe probe = new ContentTypeProbe();
+    /** Checks the manifests of the loads that ask for it. */
+    private final ManifestPreflight preflight = new ManifestPreflight();
+    /** Follows the redirects of the loads that ask for it. */
+    private final RedirectResolver resolver = new RedirectResolver();
+
+    /**
+     * A load, as read from the call.
+     */
+    static final class Request {
+        /** The load method, for logging. */
+        final String operation;
+        /** When the parse started (ns). */
+        final long startTime = System.nanoTime();
+        String contentId;
+        JSONObject customData = new JSONObject();
+        /** Null to use the detected one, or video/mp4. */
+        String contentType;
+        long duration = 0;
+        /** buffered, live, or empty for none. */
+        String streamType = "";
+        boolean autoPlay = false;
+        /** Start position (s). */
+        double currentTime = 0;
+        JSONObject metadata = new JSONObject();
+        JSONObject textTrackStyle = new JSONObject();
+        /** Null for the receiver application passed to initialize. */
+        String receiverAppId;
+        /** Whether the manifest is checked before the load, see ManifestPreflight. */
+        boolean preflight = false;
+        /** Whether the redirects of the URL are followed here, the receiver getting the final URL. */
+        boolean resolveRedirects = false;
+        /** Whether an HLS stream goes through the HlsRelay, which adds the headers upstream. */
+        boolean relay = false;
+        /** HTTP headers the media URL needs, for the probe and preflight, may be null. */
+        JSONObject headers;
+        /** Set by prepare when the content type must be probed. */
+        boolean needsProbe = false;
+        /** Time spent in the pipeline (ns), without the probe. */
+        long overhead = 0;
+        /** Built by build. */
+        MediaInfo mediaInfo;
+
+        Request(String operation) {
+            this.operation = operation;
+        }
+
+        /**
+         * Reads the fields shared by the load methods, missing fields keep their defaults.
+         * @param operation the load method
+         * @param call the call
+         * @return the request
+         */
+        static Request fromCall(String operation, PluginCall call) {
+            Request request = new Request(operation);
+            JSONObject data = call.getData();
+            request.contentId = getString(data, "contentId", null);
+            request.customData = getObject(data, "customData", request.customData);
+            request.contentType = getString(data, "contentType", null);
+            Object duration = data.opt("duration");
+            if (duration instanceof Number) {
+                request.duration = ((Number) duration).longValue();
+            }
+            request.streamType = getString(data, "streamType", request.streamType);
+            Object autoPlay = data.opt("autoPlay");
+            if (autoPlay instanceof Boolean) {
+                request.autoPlay = (Boolean) autoPlay;
+            }
+            Object currentTime = data.opt("currentTime");
+            if (currentTime instanceof Number) {
+                request.currentTime = ((Number) currentTime).doubleValue();
+            }
+            request.metadata = getObject(data, "metadata", request.metadata);
+            request.textTrackStyle = getObject(data, "textTrackStyle", request.textTrackStyle);
+            request.receiverAppId = getString(data, "receiverAppId", null);
+            request.preflight = data.optBoolean("preflight", false);
+            request.resolveRedirects = data.optBoolean("resolveRedirects", false);
+            request.relay = data.optBoolean("relay", false);
+            return request;
+        }
+
+        /**
+         * Adds a field to the custom data sent to the receiver.
+         */
+        void putCustomData(String key, Object value) {
+            try {
+                customData.put(key, value);
+            } catch (JSONException e) {
+                Log.w(TAG, "Could not add " + key + " to customData", e);
+            }
+        }
+    }
+
+    static String getString(JSONObject data, String key, String fallback) {
+        Object value = data.opt(key);
+        return value instanceof String ? (String) value : fallback;
+    }
+
+    static JSONObject getObject(JSONObject data, String key, JSONObject fallback) {
+        Object value = data.opt(key);
+        return value instanceof JSONObject ? (JSONObject) value : fallback;
+    }
+
+    /**
+     * Normalizes and validates the request.
+     * @param request the request
+     * @return null if the request can go on, else the error message
+     */
+    String prepare(Request request) {
+        if (request.contentId == null || request.contentId.isEmpty()) {
+            rejectedCount++;
+            return "contentId est requis";
+        }
+        if (LocalMediaServer.isLocal(request.contentId)) {
+            String error = serveLocal(request);
+            if (error != null) {
+                rejectedCount++;
+                return error;
+            }
+        }
+        if (request.contentType == null || request.contentType.isEmpty()) {
+            request.contentType = typeFromExtension(request.contentId);
+            request.needsProbe = request.contentType == null;
+        }
+        // createMediaInfo expects lower case stream types
+        request.streamType = request.streamType == null ? "" : request.streamType.toLowerCase(Locale.ROOT);
+        preparedCount++;
+        request.overhead = System.nanoTime() - request.startTime;
+        return null;
+    }
+
+    /**
+     * Replaces the local path of a request by an URL of the LocalMediaServer.
+     * The checks of remote URLs are skipped.
+     * @return null if served, else the error message
+     */
+    private static String serveLocal(Request request) {
+        File file = LocalMediaServer.toFile(request.contentId);
+        if (!file.isFile() || !file.canRead()) {
+            return "Fichier introuvable : " + file.getPath();
+        }
+        if (request.contentType == null || request.contentType.isEmpty()) {
+            request.contentType = LocalMediaServer.guessContentType(file.getName());
+        }
+        try {
+            request.contentId = LocalMediaServer.getInstance().serve(file, request.contentType);
+        } catch (IOException e) {
+            return "Serveur local indisponible : " + e.getMessage();
+        }
+        request.preflight = false;
+        request.resolveRedirects = false;
+        request.relay = false;
+        return null;
+    }
+
+    /**
+     * Probes the content type of a request prepared with needsProbe.
+     * @param request the request, its content type is set before done runs
+     * @param done called once the probe is over, on the probe thread
+     */
+    void probe(final Request request, final Runnable done) {
+        probe.probe(request.contentId, request.headers, new ContentTypeProbe.Callback() {
+            @Override
+            public void onResult(String contentType) {
+                request.contentType = contentType;
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Replaces the URL of a request prepared with resolveRedirects by its final URL.
+     * @param request the request, its contentId is set before done runs
+     * @param done called once resolved, on the resolver thread
+     */
+    void resolveRedirects(final Request request, final Runnable done) {
+        resolver.resolve(request.contentId, request.headers, new RedirectResolver.Callback() {
+            @Override
+            public void onResolved(String url, long saved) {
+                request.contentId = url;
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Checks the manifest of a request prepared with preflight.
+     * @param request the request
+     * @param callback called with the result, on the check thread
+     */
+    void preflight(Request request, ManifestPreflight.Callback callback) {
+        preflight.check(request.contentId, request.headers, callback);
+    }
+
+    /**
+     * @return the manifest checks, also used by testUrl
+     */
+    ManifestPreflight getPreflight() {
+        return preflight;
+    }
+
+    /**
+     * Records how long a load waited for its probe after its receiver application was running.
+     * @param wait the wait (ms), 0 if the probe was over first
+     */
+    void onProbeWait(long wait) {
+        probeWaitCount++;
+        totalProbeWait += wait;
+    }
+
+    /**
+     * Builds the MediaInfo of a prepared request, once its content type is known.
+     * @param request the request
+     */
+    void build(Request request) {
+        long start = System.nanoTime();
+        if (request.contentType == null) {
+            request.contentType = "video/mp4";
+        }
+        if (request.streamType.isEmpty() && HLS_CONTENT_TYPE.equals(request.contentType)) {
+            request.streamType = "live";
+        }
+        if (request.relay && HLS_CONTENT_TYPE.equals(request.contentType)) {
+            try {
+                request.contentId = HlsRelay.getInstance().relay(request.contentId, request.headers);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not relay " + request.contentId + ", loading it directly", e);
+            }
+        }
+        request.mediaInfo = ChromecastUtilities.createMediaInfo(request.contentId, request.customData,
+                request.contentType, request.duration, request.streamType, request.metadata, request.textTrackStyle);
+        request.overhead += System.nanoTime() - start;
+        Log.d(TAG, request.operation + ": " + request.contentType + (request.needsProbe ? " (probed)" : "")
+                + ", stream type '" + request.streamType + "', autoPlay " + request.autoPlay + ", at " + request.currentTime + "s");
+    }
+
+    /**
+     * Records the overhead of a request, once it is handed to the session.
+     * @param request the request
+     */
+    void onDispatched(Request request) {
+        long elapsed = request.overhead;
+        dispatchedCount++;
+        totalTime += elapsed;
+        lastTime = elapsed;
+        maxTime = Math.max(maxTime, elapsed);
+    }
+
+    /**
+     * Detects the content type from the extension of the URL, the query is ignored.
+     * @param url the media URL
+     * @param providedContentType used when the extension is not known, may be null
+     * @return the content type, video/mp4 if unknown and none was provided
+     */
+    static String detectContentType(String url, String providedContentType) {
+        String detected = typeFromExtension(url);
+        if (detected != null) {
+            return detected;
+        }
+        return providedContentType != null ? providedContentType : "video/mp4";
+    }
+
+    /**
+     * @param url the media URL, may be null
+     * @return the content type of its extension, null if unknown
+     */
+    static String typeFromExtension(String url) {
+        if (url == null) {
+            return null;
+        }
+        int end = url.indexOf('?');
+        String path = (end == -1 ? url : url.substring(0, end)).toLowerCase(Locale.ROOT);
+        if (path.endsWith(".m3u8")) {
+            return HLS_CONTENT_TYPE;
+        } else if (path.endsWith(".mpd")) {
+            return "application/dash+xml";
+        } else if (path.endsWith(".mp4")) {
+            return "video/mp4";
+        } else if (path.endsWith(".webm")) {
+            return "video/webm";
+        } else if (path.endsWith(".mkv")) {
+            return "video/x-matroska";
+        }
+        return null;
+    }
+
+    /**
+     * @return the load overhead stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("prepared", preparedCount);
+            out.put("rejected", rejectedCount);
+            out.put("dispatched", dispatchedCount);
+            out.put("lastOverhead", lastTime / 1e6);
+            out.put("maxOverhead", maxTime / 1e6);
+            out.put("averageOverhead", dispatchedCount == 0 ? 0 : totalTime / 1e6 / dispatchedCount);
+            out.put("averageProbeWait", probeWaitCount == 0 ? 0 : (double) totalProbeWait / probeWaitCount);
+            out.put("probe", probe.getStats());
+            out.put("preflight", preflight.getStats());
+            out.put("redirects", resolver.getStats());
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+}
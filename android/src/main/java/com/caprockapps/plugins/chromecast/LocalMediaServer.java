@@ -0,0 +1,842 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves files of the phone to the receiver over HTTP, so that they can be cast like remote media.
+ * Each file gets an URL with a random token, only the files given to serve can be fetched.
+ * The siblings of a served playlist (HLS segments, DASH fragments) can be fetched with the same
+ * token, relative to it.
+ * The server is shared by the plugin instances, it starts with the first file served.
+ * A token is forgotten once it hasn't been fetched for FILE_TTL, or when there are too many.
+ * One thread runs all the connections with a selector. Range requests are supported, and the
+ * files are sent with FileChannel.transferTo so that their content is not copied by the CPU.
+ * Other path prefixes can be answered by a Route, whose body is produced on another thread and
+ * streamed as it comes (see HlsRelay).
+ */
+final class LocalMediaServer implements Runnable {
+    /** Tag for logging. */
+    private static final String TAG = "LocalMediaServer";
+    /** Path prefix of the served files. */
+    private static final String PREFIX = "/media/";
+    /** Largest request header. */
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    /** Bytes given to transferTo at once. */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+    /** Connections idle for longer are closed (ms). */
+    private static final long IDLE_TIMEOUT = 30000;
+    /** Bytes a Route can queue before its writes block. */
+    private static final int MAX_QUEUED = 512 * 1024;
+    /** Tokens not fetched for longer are forgotten (ms). */
+    private static final long FILE_TTL = 4 * 60 * 60 * 1000;
+    /** Largest number of tokens, the least recently fetched ones are forgotten first. */
+    private static final int MAX_FILES = 256;
+    /** Prefix of the URLs Capacitor.convertFileSrc gives for local files. */
+    private static final String CAPACITOR_FILE = "/_capacitor_file_";
+
+    /** The shared instance. */
+    private static LocalMediaServer instance;
+
+    /**
+     * Answers the requests of a path prefix.
+     */
+    interface Route {
+        /**
+         * Called on the server thread, must not block. The exchange can be used from any thread.
+         * @param path the path after the prefix, without the query
+         * @param range the Range header, null if none
+         * @param exchange sends the response
+         */
+        void handle(String path, String range, Exchange exchange);
+    }
+
+    /** The files, by token. */
+    private final Map<String, Served> files = new ConcurrentHashMap<>();
+    /** The routes, by path prefix. */
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    /** Connections a Route queued data for, written by the server thread. */
+    private final ConcurrentLinkedQueue<Connection> wakeups = new ConcurrentLinkedQueue<>();
+    private final SecureRandom random = new SecureRandom();
+    private Selector selector;
+    private ServerSocketChannel server;
+    private volatile boolean running = false;
+    private volatile int port = 0;
+
+    /** Stats. */
+    private volatile long connectionCount = 0;
+    private volatile int openConnections = 0;
+    private volatile long requestCount = 0;
+    private volatile long rangeRequestCount = 0;
+    private volatile long bytesSent = 0;
+    private volatile long errorCount = 0;
+
+    /**
+     * @return the shared server
+     */
+    static synchronized LocalMediaServer getInstance() {
+        if (instance == null) {
+            instance = new LocalMediaServer();
+        }
+        return instance;
+    }
+
+    private LocalMediaServer() {
+    }
+
+    /**
+     * @param contentId a load URL
+     * @return whether it is a file of the phone
+     */
+    static boolean isLocal(String contentId) {
+        return (contentId.startsWith("/") && !contentId.startsWith("//")) || contentId.startsWith("file:")
+                || (contentId.startsWith("http://localhost") && contentId.contains(CAPACITOR_FILE))
+                || (contentId.startsWith("https://localhost") && contentId.contains(CAPACITOR_FILE));
+    }
+
+    /**
+     * @param contentId a local load URL, see isLocal
+     * @return the file
+     */
+    static File toFile(String contentId) {
+        String path = contentId;
+        int capacitor = path.indexOf(CAPACITOR_FILE);
+        if (capacitor != -1) {
+            path = path.substring(capacitor + CAPACITOR_FILE.length());
+        } else if (path.startsWith("file://")) {
+            path = path.substring(7);
+        } else if (path.startsWith("file:")) {
+            path = path.substring(5);
+        }
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (IOException | IllegalArgumentException e) {
+            // Not encoded
+        }
+        return new File(path);
+    }
+
+    /**
+     * @param name a file name
+     * @return its content type, video/mp4 if unknown
+     */
+    static String guessContentType(String name) {
+        String type = LoadPipeline.typeFromExtension(name);
+        if (type != null) {
+            return type;
+        }
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".ts")) {
+            return "video/mp2t";
+        } else if (lower.endsWith(".m4s")) {
+            return "video/iso.segment";
+        } else if (lower.endsWith(".vtt")) {
+            return "text/vtt";
+        } else if (lower.endsWith(".m4a")) {
+            return "audio/mp4";
+        } else if (lower.endsWith(".aac")) {
+            return "audio/aac";
+        }
+        type = URLConnection.guessContentTypeFromName(name);
+        return type != null ? type : "video/mp4";
+    }
+
+    /**
+     * Gives an URL to a file, starting the server if needed.
+     * @param file the file
+     * @param contentType sent in the responses, guessed from the name if null
+     * @return the URL the receiver can fetch it from
+     * @throws IOException if the server could not start
+     */
+    synchronized String serve(File file, String contentType) throws IOException {
+        start();
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b & 0xFF));
+        }
+        if (files.size() >= MAX_FILES) {
+            evict(Long.MAX_VALUE);
+        }
+        files.put(token.toString(), new Served(file, contentType != null ? contentType : guessContentType(file.getName())));
+        return "http://" + getAddress() + ":" + port + PREFIX + token + "/"
+                + URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20");
+    }
+
+    /**
+     * Answers the requests of a path prefix with a route, starting the server if needed.
+     * @param prefix the path prefix, eg. "/relay/"
+     * @param route answers the requests
+     * @return the URL of the prefix
+     * @throws IOException if the server could not start
+     */
+    synchronized String addRoute(String prefix, Route route) throws IOException {
+        start();
+        routes.put(prefix, route);
+        return "http://" + getAddress() + ":" + port + prefix;
+    }
+
+    private void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(0));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        port = server.socket().getLocalPort();
+        running = true;
+        Thread thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+        Log.d(TAG, "Listening on port " + port);
+    }
+
+    /**
+     * @return the IPv4 address of the phone on the local network, Wi-Fi first
+     */
+    private static String getAddress() throws IOException {
+        String fallback = null;
+        for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!network.isUp() || network.isLoopback()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(network.getInetAddresses())) {
+                if (!(address instanceof Inet4Address) || address.isLoopbackAddress()) {
+                    continue;
+                }
+                if (network.getName().startsWith("wlan")) {
+                    return address.getHostAddress();
+                }
+                if (fallback == null) {
+                    fallback = address.getHostAddress();
+                }
+            }
+        }
+        if (fallback == null) {
+            throw new IOException("No local network address");
+        }
+        return fallback;
+    }
+
+    @Override
+    public void run() {
+        Selector selector = this.selector;
+        ServerSocketChannel server = this.server;
+        try {
+            loop(selector);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Server stopped", e);
+        } finally {
+            // The next file served starts it again
+            running = false;
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Runs the connections until the selector fails. A connection that fails is closed, the
+     * others keep going.
+     */
+    private void loop(Selector selector) throws IOException {
+        long lastSweep = SystemClock.elapsedRealtime();
+        while (true) {
+            selector.select(IDLE_TIMEOUT / 3);
+            Connection woken;
+            while ((woken = wakeups.poll()) != null) {
+                try {
+                    if (woken.key.isValid()) {
+                        woken.key.interestOps(SelectionKey.OP_WRITE);
+                        write(woken);
+                    }
+                } catch (IOException e) {
+                    close(woken);
+                } catch (RuntimeException e) {
+                    abort(woken, e);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        read(connection);
+                    } else if (key.isWritable()) {
+                        write(connection);
+                    }
+                } catch (IOException e) {
+                    // Usually the receiver closing the connection after a seek
+                    close(connection);
+                } catch (RuntimeException e) {
+                    abort(connection, e);
+                }
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastSweep > IDLE_TIMEOUT / 3) {
+                lastSweep = now;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection
+                            && now - ((Connection) key.attachment()).lastActivity > IDLE_TIMEOUT) {
+                        close((Connection) key.attachment());
+                    }
+                }
+                evict(now - FILE_TTL);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection whose request could not be handled.
+     */
+    private void abort(Connection connection, RuntimeException e) {
+        Log.w(TAG, "Request failed", e);
+        errorCount++;
+        close(connection);
+    }
+
+    /**
+     * Forgets the tokens not fetched since a time, or the least recently fetched one.
+     * @param before tokens last fetched before it are forgotten (elapsedRealtime ms),
+     *               Long.MAX_VALUE to forget the least recently fetched one only
+     */
+    private void evict(long before) {
+        if (before == Long.MAX_VALUE) {
+            Map.Entry<String, Served> oldest = null;
+            for (Map.Entry<String, Served> entry : files.entrySet()) {
+                if (oldest == null || entry.getValue().lastAccess < oldest.getValue().lastAccess) {
+                    oldest = entry;
+                }
+            }
+            if (oldest != null) {
+                files.remove(oldest.getKey());
+            }
+            return;
+        }
+        Iterator<Served> it = files.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().lastAccess < before) {
+                it.remove();
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+            openConnections++;
+        } catch (IOException e) {
+            errorCount++;
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) == -1) {
+            close(connection);
+            return;
+        }
+        connection.lastActivity = SystemClock.elapsedRealtime();
+        handle(connection);
+    }
+
+    /**
+     * Answers the request in the input buffer, if it is complete.
+     */
+    private void handle(Connection connection) throws IOException {
+        byte[] data = connection.in.array();
+        int length = connection.in.position();
+        int end = -1;
+        for (int i = 3; i < length; i++) {
+            if (data[i - 3] == '\r' && data[i - 2] == '\n' && data[i - 1] == '\r' && data[i] == '\n') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end == -1) {
+            if (length == data.length) {
+                respondError(connection, 431, "Request Header Fields Too Large");
+            }
+            return;
+        }
+        String header = new String(data, 0, end, StandardCharsets.ISO_8859_1);
+        // Keep what follows for the next request
+        System.arraycopy(data, end, data, 0, length - end);
+        connection.in.position(length - end);
+        requestCount++;
+
+        String[] lines = header.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            respondError(connection, 400, "Bad Request");
+            return;
+        }
+        String method = requestLine[0];
+        String range = null;
+        connection.keepAlive = !requestLine[2].equals("HTTP/1.0");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("range")) {
+                range = value;
+            } else if (name.equals("connection")) {
+                connection.keepAlive = !value.equalsIgnoreCase("close");
+            }
+        }
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            respondError(connection, 405, "Method Not Allowed");
+            return;
+        }
+        Served served = null;
+        File file = null;
+        String path = requestLine[1];
+        int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        for (Map.Entry<String, Route> route : routes.entrySet()) {
+            if (path.startsWith(route.getKey())) {
+                // Nothing to do until the route queues its response
+                connection.key.interestOps(0);
+                connection.streaming = true;
+                route.getValue().handle(path.substring(route.getKey().length()), range, new Exchange(connection, head));
+                return;
+            }
+        }
+        if (path.startsWith(PREFIX)) {
+            int slash = path.indexOf('/', PREFIX.length());
+            String token = slash == -1 ? path.substring(PREFIX.length()) : path.substring(PREFIX.length(), slash);
+            served = files.get(token);
+            if (served != null) {
+                served.lastAccess = SystemClock.elapsedRealtime();
+                String name;
+                try {
+                    name = slash == -1 ? "" : URLDecoder.decode(path.substring(slash + 1), "UTF-8");
+                } catch (IllegalArgumentException e) {
+                    respondError(connection, 400, "Bad Request");
+                    return;
+                }
+                file = resolve(served, name);
+            }
+        }
+        if (file == null || !file.isFile()) {
+            respondError(connection, 404, "Not Found");
+            return;
+        }
+
+        long size = file.length();
+        long start = 0;
+        long last = size - 1;
+        int status = 200;
+        long[] part = parseRange(range, size);
+        if (part != null) {
+            if (part.length == 0) {
+                respond(connection, 416, "Range Not Satisfiable", "Content-Range: bytes */" + size + "\r\n", null, 0, 0);
+                return;
+            }
+            start = part[0];
+            last = part[1];
+            status = 206;
+            rangeRequestCount++;
+        }
+        String type = file == served.file ? served.contentType : guessContentType(file.getName());
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: ").append(type).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (status == 206) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(last).append('/').append(size).append("\r\n");
+        }
+        respond(connection, status, status == 206 ? "Partial Content" : "OK", headers.toString(),
+                head ? null : file, start, last - start + 1);
+    }
+
+    /**
+     * Parses a single byte range, multiple ranges are not supported and get the whole file.
+     * @param range the Range header, may be null
+     * @param size the file size
+     * @return the first and last bytes, null to send the whole file, empty if not satisfiable
+     */
+    static long[] parseRange(String range, long size) {
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        long start;
+        long last = size - 1;
+        try {
+            if (dash == 0) {
+                // The last bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, size - suffix);
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash < spec.length() - 1) {
+                    last = Math.min(last, Long.parseLong(spec.substring(dash + 1)));
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        if (start >= size || start > last) {
+            return new long[0];
+        }
+        return new long[] {start, last};
+    }
+
+    /**
+     * @return the file asked for with a token, null if not allowed
+     */
+    private static File resolve(Served served, String name) throws IOException {
+        if (name.isEmpty() || name.equals(served.file.getName())) {
+            return served.file;
+        }
+        if (!served.isPlaylist()) {
+            return null;
+        }
+        // A segment of the playlist, it must be in its folder
+        File folder = served.file.getCanonicalFile().getParentFile();
+        File file = new File(folder, name).getCanonicalFile();
+        return file.getPath().startsWith(folder.getPath() + File.separator) ? file : null;
+    }
+
+    private void respondError(Connection connection, int status, String reason) throws IOException {
+        errorCount++;
+        connection.keepAlive = false;
+        respond(connection, status, reason, "", null, 0, 0);
+    }
+
+    /**
+     * Starts sending a response, the body is the given part of the file.
+     */
+    private void respond(Connection connection, int status, String reason, String headers,
+                         File file, long position, long length) throws IOException {
+        StringBuilder out = new StringBuilder();
+        out.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        out.append(headers);
+        out.append("Content-Length: ").append(status < 300 ? length : 0).append("\r\n");
+        out.append("Access-Control-Allow-Origin: *\r\n");
+        out.append("Connection: ").append(connection.keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        connection.header = ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (file != null && length > 0) {
+            connection.file = new RandomAccessFile(file, "r").getChannel();
+            connection.position = position;
+            connection.remaining = length;
+        }
+        connection.key.interestOps(SelectionKey.OP_WRITE);
+        write(connection);
+    }
+
+    private void write(Connection connection) throws IOException {
+        connection.lastActivity = SystemClock.elapsedRealtime();
+        if (connection.header != null && connection.header.hasRemaining()) {
+            connection.channel.write(connection.header);
+            if (connection.header.hasRemaining()) {
+                return;
+            }
+        }
+        if (connection.streaming && !writeChunks(connection)) {
+            return;
+        }
+        while (connection.remaining > 0) {
+            long sent = connection.file.transferTo(connection.position,
+                    Math.min(connection.remaining, TRANSFER_SIZE), connection.channel);
+            if (sent == 0) {
+                // The socket buffer is full, wait until it is writable
+                return;
+            }
+            connection.position += sent;
+            connection.remaining -= sent;
+            bytesSent += sent;
+        }
+        connection.closeFile();
+        if (!connection.keepAlive) {
+            close(connection);
+            return;
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        if (connection.in.position() > 0) {
+            // A pipelined request
+            handle(connection);
+        }
+    }
+
+    /**
+     * Writes the chunks queued by a route.
+     * @return true once the response is complete
+     */
+    private boolean writeChunks(Connection connection) throws IOException {
+        while (true) {
+            ByteBuffer chunk;
+            synchronized (connection) {
+                chunk = connection.chunks.peek();
+                if (chunk == null) {
+                    if (!connection.streamDone) {
+                        // Wait for the route
+                        connection.key.interestOps(0);
+                        return false;
+                    }
+                    connection.streaming = false;
+                    connection.streamDone = false;
+                    return true;
+                }
+            }
+            int sent = connection.channel.write(chunk);
+            if (chunk.hasRemaining()) {
+                return false;
+            }
+            synchronized (connection) {
+                connection.chunks.poll();
+                connection.queued -= chunk.limit();
+                connection.notifyAll();
+            }
+            bytesSent += sent;
+        }
+    }
+
+    private void close(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        synchronized (connection) {
+            connection.chunks.clear();
+            connection.notifyAll();
+        }
+        connection.closeFile();
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+        }
+        openConnections--;
+    }
+
+    /**
+     * @return the server stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("running", running);
+            out.put("port", port);
+            out.put("files", files.size());
+            out.put("connections", connectionCount);
+            out.put("openConnections", openConnections);
+            out.put("requests", requestCount);
+            out.put("rangeRequests", rangeRequestCount);
+            out.put("bytesSent", bytesSent);
+            out.put("errors", errorCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * The response of a route to a request. Can be used from any thread.
+     */
+    final class Exchange {
+        private final Connection connection;
+        /** Whether only the headers are wanted. */
+        final boolean head;
+        private boolean responded = false;
+
+        private Exchange(Connection connection, boolean head) {
+            this.connection = connection;
+            this.head = head;
+        }
+
+        /**
+         * Sends the status and headers.
+         * @param status HTTP status
+         * @param reason HTTP reason
+         * @param headers header lines, each ending with CRLF
+         * @param length the body length, -1 if unknown (the connection is then closed after the body)
+         */
+        void respond(int status, String reason, String headers, long length) {
+            StringBuilder out = new StringBuilder();
+            out.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            out.append(headers);
+            if (length >= 0) {
+                out.append("Content-Length: ").append(length).append("\r\n");
+            } else {
+                connection.keepAlive = false;
+            }
+            out.append("Access-Control-Allow-Origin: *\r\n");
+            out.append("Connection: ").append(connection.keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            responded = true;
+            queue(ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        }
+
+        /**
+         * Sends a part of the body, blocks while too much is waiting to be sent.
+         * @throws IOException if the receiver closed the connection
+         */
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (head || length == 0) {
+                return;
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            chunk.put(data, offset, length);
+            chunk.flip();
+            synchronized (connection) {
+                while (connection.queued > MAX_QUEUED && connection.channel.isOpen()) {
+                    try {
+                        connection.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+            }
+            if (!connection.channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+            queue(chunk);
+        }
+
+        /**
+         * Ends the response.
+         */
+        void finish() {
+            synchronized (connection) {
+                connection.streamDone = true;
+            }
+            wakeups.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Ends the request with an error, or closes the connection if the response has started.
+         */
+        void fail(int status, String reason) {
+            errorCount++;
+            if (!responded) {
+                connection.keepAlive = false;
+                respond(status, reason, "", 0);
+            } else {
+                connection.keepAlive = false;
+            }
+            finish();
+        }
+
+        private void queue(ByteBuffer chunk) {
+            synchronized (connection) {
+                connection.chunks.add(chunk);
+                connection.queued += chunk.limit();
+                connection.lastActivity = SystemClock.elapsedRealtime();
+            }
+            wakeups.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    private static final class Served {
+        final File file;
+        final String contentType;
+        /** When it was last fetched (elapsedRealtime ms). */
+        volatile long lastAccess = SystemClock.elapsedRealtime();
+
+        Served(File file, String contentType) {
+            this.file = file;
+            this.contentType = contentType;
+        }
+
+        boolean isPlaylist() {
+            return LoadPipeline.HLS_CONTENT_TYPE.equals(contentType) || "application/dash+xml".equals(contentType);
+        }
+    }
+
+    /**
+     * A connection with the receiver, and the response being sent.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        ByteBuffer header;
+        FileChannel file;
+        long position;
+        long remaining;
+        volatile boolean keepAlive;
+        volatile long lastActivity = SystemClock.elapsedRealtime();
+        /** The response of a route, guarded by the connection. */
+        final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        int queued = 0;
+        boolean streaming = false;
+        boolean streamDone = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void closeFile() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+                file = null;
+            }
+            remaining = 0;
+        }
+    }
+}
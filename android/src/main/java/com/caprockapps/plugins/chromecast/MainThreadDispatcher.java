@@ -0,0 +1,239 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the plugin work on the main thread, batched into a single drain per frame.
+ * Commands posted with a key replace the pending command with the same key (eg. repeated
+ * setSession calls only run the last one).
+ * A drain stops once it used its time budget, the remaining commands run on the next frame.
+ * There are no frames while the screen is off, which is usual while casting, so a drain also
+ * runs from the main looper if no frame came within FRAME_FALLBACK.
+ * A command that throws is not caught, as with Activity.runOnUiThread, the pending commands
+ * still run.
+ */
+final class MainThreadDispatcher {
+    /** Tag for logging. */
+    private static final String TAG = "MainThreadDispatcher";
+    /** Main thread time we allow ourselves per frame (ns). */
+    private static final long FRAME_BUDGET = 4_000_000;
+    /** How long a drain waits for a frame before running from the main looper (ms). */
+    private static final long FRAME_FALLBACK = 50;
+
+    /** The shared instance. */
+    private static MainThreadDispatcher instance;
+
+    /** Used to get on the main thread to schedule the frame callback. */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /** The pending commands, in order. */
+    private final ArrayDeque<Command> pending = new ArrayDeque<>();
+    /** The pending keyed commands, by key. */
+    private final Map<Object, Command> pendingByKey = new HashMap<>();
+    /** Whether a drain is scheduled. */
+    private boolean scheduled = false;
+
+    /** Stats, guarded by pending. */
+    private long frameCount = 0;
+    private long commandCount = 0;
+    private long collapsedCount = 0;
+    private long deferredFrameCount = 0;
+    private long fallbackCount = 0;
+    private long totalFrameTime = 0;
+    private long maxFrameTime = 0;
+    private long lastFrameTime = 0;
+
+    /** Drains the commands on the next frame. */
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mainHandler.removeCallbacks(fallback);
+            drain();
+        }
+    };
+    /** Drains the commands when no frame came. */
+    private final Runnable fallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            synchronized (pending) {
+                fallbackCount++;
+            }
+            drain();
+        }
+    };
+    /** Schedules the frame callback, it must be done from the main thread. */
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+            mainHandler.postDelayed(fallback, FRAME_FALLBACK);
+        }
+    };
+
+    /**
+     * @return the shared dispatcher
+     */
+    static synchronized MainThreadDispatcher getInstance() {
+        if (instance == null) {
+            instance = new MainThreadDispatcher();
+        }
+        return instance;
+    }
+
+    private MainThreadDispatcher() {
+    }
+
+    /**
+     * Runs the command on the main thread.
+     * If we are on the main thread with nothing pending it runs right away, like
+     * Activity.runOnUiThread, otherwise on the next frame.
+     * @param command the command
+     */
+    void post(Runnable command) {
+        post(null, command);
+    }
+
+    /**
+     * Runs the command on the main thread, replacing the pending command with the same key.
+     * The command keeps the position of the one it replaces.
+     * @param key identifies idempotent commands, null to never collapse
+     * @param command the command
+     */
+    void post(Object key, Runnable command) {
+        synchronized (pending) {
+            if (pending.isEmpty() && Looper.getMainLooper().isCurrentThread()) {
+                commandCount++;
+            } else {
+                if (key != null) {
+                    Command previous = pendingByKey.get(key);
+                    if (previous != null) {
+                        previous.runnable = command;
+                        collapsedCount++;
+                        return;
+                    }
+                }
+                Command cmd = new Command(key, command);
+                pending.add(cmd);
+                if (key != null) {
+                    pendingByKey.put(key, cmd);
+                }
+                schedule();
+                return;
+            }
+        }
+        command.run();
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        if (Looper.getMainLooper().isCurrentThread()) {
+            scheduleFrame.run();
+        } else {
+            mainHandler.post(scheduleFrame);
+        }
+    }
+
+    /**
+     * Runs the pending commands until the frame budget is used.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        int ran = 0;
+        while (true) {
+            Command cmd;
+            synchronized (pending) {
+                cmd = pending.poll();
+                if (cmd == null) {
+                    scheduled = false;
+                    break;
+                }
+                if (cmd.key != null) {
+                    pendingByKey.remove(cmd.key);
+                }
+            }
+            boolean failed = true;
+            try {
+                cmd.runnable.run();
+                failed = false;
+            } finally {
+                if (failed) {
+                    // The exception goes on, the other commands run on the next frame
+                    Log.e(TAG, "Command failed");
+                    continueNextFrame();
+                }
+            }
+            ran++;
+            if (System.nanoTime() - start > FRAME_BUDGET) {
+                continueNextFrame();
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (pending) {
+            frameCount++;
+            commandCount += ran;
+            totalFrameTime += elapsed;
+            lastFrameTime = elapsed;
+            maxFrameTime = Math.max(maxFrameTime, elapsed);
+        }
+    }
+
+    /**
+     * Schedules the next drain if commands are left, from the main thread.
+     */
+    private void continueNextFrame() {
+        synchronized (pending) {
+            if (!pending.isEmpty()) {
+                deferredFrameCount++;
+                scheduleFrame.run();
+            } else {
+                scheduled = false;
+            }
+        }
+    }
+
+    /**
+     * @return the main thread cost of the plugin work
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        synchronized (pending) {
+            try {
+                out.put("frames", frameCount);
+                out.put("commands", commandCount);
+                out.put("collapsed", collapsedCount);
+                out.put("deferredFrames", deferredFrameCount);
+                out.put("fallbackDrains", fallbackCount);
+                out.put("pending", pending.size());
+                out.put("lastFrameTime", lastFrameTime / 1e6);
+                out.put("maxFrameTime", maxFrameTime / 1e6);
+                out.put("averageFrameTime", frameCount == 0 ? 0 : totalFrameTime / 1e6 / frameCount);
+            } catch (JSONException e) {
+            }
+        }
+        return out;
+    }
+
+    private static final class Command {
+        final Object key;
+        Runnable runnable;
+
+        Command(Object key, Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks a media URL before it is cast, so that the load fails in a second with a reason instead
+ * of failing on the receiver after 10 to 20 seconds.
+ * The HLS master playlist or DASH MPD is fetched and parsed (variants and codecs), the first
+ * segment must be reachable, and the expiry of the token in the query must not be passed.
+ * The results are cached by URL so that a retry is instant. Failures that can come from the
+ * network (unreachable, HTTP errors) are not cached.
+ * Checks run on a background thread, the load runs them while the receiver application starts.
+ */
+final class ManifestPreflight {
+    /** Tag for logging. */
+    private static final String TAG = "ManifestPreflight";
+    /** How long a result is kept (ms), less if the token expires before. */
+    private static final long TTL = 5 * 60 * 1000;
+    /** Number of cached results. */
+    private static final int MAX_ENTRIES = 64;
+    /** Connect and read timeout of each request (ms). */
+    private static final int TIMEOUT = 3000;
+    /** Largest manifest read. */
+    private static final int MAX_MANIFEST_SIZE = 2 * 1024 * 1024;
+    /** A token expiring sooner than this (s) gets a warning. */
+    private static final long EXPIRY_WARNING = 60;
+    /** Prefixes of the codecs the Cast devices play, some only on recent devices. */
+    private static final String[] SUPPORTED_CODECS = {"avc1", "avc3", "mp4a", "hvc1", "hev1", "vp09", "vp9", "vp8",
+            "opus", "flac", "ac-3", "ec-3", "wvtt", "stpp"};
+    /** Query parameters holding the expiry of a token (s or ms since the epoch). */
+    private static final Pattern EXPIRY = Pattern.compile("(?:^|[&?~])(?:exp|expires|expiry|expire|hdnts=[^&]*?exp)=(\\d{9,13})",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile("([A-Za-z-]+)=(\"[^\"]*\"|[^,]*)");
+    private static final Pattern XML_TAG = Pattern.compile("<(Representation|AdaptationSet|SegmentTemplate|BaseURL)\\b([^>]*)>([^<]*)");
+    private static final Pattern XML_ATTRIBUTE = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    /** Reasons of the failures. */
+    static final String UNREACHABLE = "unreachable";
+    static final String HTTP_ERROR = "http_error";
+    static final String TOKEN_EXPIRED = "token_expired";
+    static final String INVALID_MANIFEST = "invalid_manifest";
+    static final String UNSUPPORTED_CODEC = "unsupported_codec";
+    static final String SEGMENT_UNREACHABLE = "segment_unreachable";
+
+    /**
+     * Receives the result of a check, on the check thread or right away if it is cached.
+     */
+    interface Callback {
+        void onResult(Result result);
+    }
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Stats. */
+    private volatile long checkCount = 0;
+    private volatile long cacheHitCount = 0;
+    private volatile long failedCount = 0;
+    private volatile long totalTime = 0;
+    private final Map<String, Long> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Checks a media URL.
+     * @param url the media URL
+     * @param headers HTTP headers to send (eg. authentication), may be null
+     * @param callback called with the result
+     */
+    void check(final String url, final JSONObject headers, final Callback callback) {
+        Entry entry = cache.get(url);
+        if (entry != null && entry.expires > SystemClock.elapsedRealtime()) {
+            cacheHitCount++;
+            callback.onResult(entry.result.cached());
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                Result result;
+                try {
+                    result = inspect(url, headers);
+                } catch (RuntimeException e) {
+                    // eg. a header value setRequestProperty refuses, the load must still settle
+                    result = new Result(url).fail(UNREACHABLE, "Manifeste inaccessible : " + e.getMessage());
+                }
+                result.time = SystemClock.elapsedRealtime() - start;
+                checkCount++;
+                totalTime += result.time;
+                if (result.reason != null) {
+                    failedCount++;
+                    Long count = failures.get(result.reason);
+                    failures.put(result.reason, count == null ? 1 : count + 1);
+                    Log.w(TAG, result.reason + ": " + result.message);
+                }
+                if (result.reason == null || TOKEN_EXPIRED.equals(result.reason)
+                        || INVALID_MANIFEST.equals(result.reason) || UNSUPPORTED_CODEC.equals(result.reason)) {
+                    put(url, result);
+                }
+                callback.onResult(result);
+            }
+        });
+    }
+
+    private void put(String url, Result result) {
+        long now = SystemClock.elapsedRealtime();
+        long ttl = TTL;
+        if (result.tokenExpiry > 0 && result.reason == null) {
+            ttl = Math.min(ttl, (result.tokenExpiry - System.currentTimeMillis() / 1000 - EXPIRY_WARNING) * 1000);
+            if (ttl <= 0) {
+                return;
+            }
+        }
+        if (cache.size() >= MAX_ENTRIES) {
+            Iterator<Entry> it = cache.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expires <= now) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(url, new Entry(result, now + ttl));
+    }
+
+    private Result inspect(String url, JSONObject headers) {
+        Result result = new Result(url);
+        // The token, before any request
+        result.tokenExpiry = tokenExpiry(url);
+        if (result.tokenExpiry > 0) {
+            long left = result.tokenExpiry - System.currentTimeMillis() / 1000;
+            if (left <= 0) {
+                return result.fail(TOKEN_EXPIRED, "Le token de l'URL a expiré il y a " + -left + "s");
+            } else if (left < EXPIRY_WARNING) {
+                result.warnings.put("Le token de l'URL expire dans " + left + "s");
+            }
+        }
+        String manifest;
+        try {
+            manifest = fetch(url, headers, result);
+        } catch (IOException e) {
+            return result.fail(UNREACHABLE, "Manifeste inaccessible : " + e.getMessage());
+        }
+        if (manifest == null) {
+            return result.fail(HTTP_ERROR, "Le serveur a répondu " + result.status);
+        }
+        try {
+            if (manifest.startsWith("#EXTM3U") || manifest.startsWith("\uFEFF#EXTM3U")) {
+                result.type = "hls";
+                checkHls(url, manifest, headers, result);
+            } else if (manifest.contains("<MPD")) {
+                result.type = "dash";
+                checkDash(url, manifest, result);
+            } else if (LoadPipeline.HLS_CONTENT_TYPE.equals(LoadPipeline.typeFromExtension(url))
+                    || "application/dash+xml".equals(LoadPipeline.typeFromExtension(url))) {
+                return result.fail(INVALID_MANIFEST, "La réponse n'est pas un manifeste HLS ou DASH");
+            } else {
+                // Progressive media, reachable is all we can tell
+                result.type = "progressive";
+                return result;
+            }
+        } catch (IOException e) {
+            return result.fail(UNREACHABLE, "Playlist inaccessible : " + e.getMessage());
+        }
+        if (result.reason != null) {
+            return result;
+        }
+        if (result.variants.length() == 0 && result.firstSegment == null) {
+            return result.fail(INVALID_MANIFEST, "Le manifeste ne contient ni variante ni segment");
+        }
+        if (result.variants.length() > 0 && result.playableVariants == 0) {
+            return result.fail(UNSUPPORTED_CODEC, "Aucune variante n'a des codecs lisibles par le Chromecast");
+        }
+        if (result.firstSegment != null) {
+            try {
+                int status = reach(result.firstSegment, headers);
+                result.segmentStatus = status;
+                if (status >= 400) {
+                    return result.fail(SEGMENT_UNREACHABLE, "Le premier segment a répondu " + status);
+                }
+            } catch (IOException e) {
+                return result.fail(SEGMENT_UNREACHABLE, "Premier segment inaccessible : " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param url a media URL
+     * @return the expiry of the token in its query (s since the epoch), 0 if none
+     */
+    static long tokenExpiry(String url) {
+        Matcher expiry = EXPIRY.matcher(url);
+        if (!expiry.find()) {
+            return 0;
+        }
+        long value = Long.parseLong(expiry.group(1));
+        return value > 100000000000L ? value / 1000 : value;
+    }
+
+    void checkHls(String url, String playlist, JSONObject headers, Result result) throws IOException {
+        String[] lines = playlist.split("\r?\n");
+        String mediaPlaylist = null;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                JSONObject variant = new JSONObject();
+                Matcher attribute = ATTRIBUTE.matcher(line.substring(18));
+                String codecs = null;
+                try {
+                    while (attribute.find()) {
+                        String name = attribute.group(1).toUpperCase(Locale.ROOT);
+                        String value = attribute.group(2).replace("\"", "");
+                        if (name.equals("BANDWIDTH")) {
+                            variant.put("bandwidth", Long.parseLong(value));
+                        } else if (name.equals("RESOLUTION")) {
+                            variant.put("resolution", value);
+                        } else if (name.equals("CODECS")) {
+                            codecs = value;
+                            variant.put("codecs", value);
+                        }
+                    }
+                    // The URI is on the next line that is not a tag
+                    while (i + 1 < lines.length && (lines[i + 1].trim().isEmpty() || lines[i + 1].startsWith("#"))) {
+                        i++;
+                    }
+                    if (i + 1 < lines.length) {
+                        i++;
+                        variant.put("url", resolve(url, lines[i].trim()));
+                    }
+                } catch (JSONException | NumberFormatException e) {
+                }
+                addVariant(result, variant, codecs);
+                if (mediaPlaylist == null && variant.optBoolean("playable") && variant.has("url")) {
+                    mediaPlaylist = variant.optString("url");
+                }
+            } else if (line.startsWith("#EXTINF") && result.variants.length() == 0) {
+                // Media playlist, the first segment follows
+                while (i + 1 < lines.length && (lines[i + 1].trim().isEmpty() || lines[i + 1].startsWith("#"))) {
+                    i++;
+                }
+                if (i + 1 < lines.length) {
+                    result.firstSegment = resolve(url, lines[i + 1].trim());
+                }
+                return;
+            }
+        }
+        if (mediaPlaylist != null) {
+            Result segments = new Result(mediaPlaylist);
+            String media = fetch(mediaPlaylist, headers, segments);
+            if (media == null) {
+                // Can come from the network or the token, not cached
+                result.fail(HTTP_ERROR, "La playlist de la première variante a répondu " + segments.status);
+                return;
+            }
+            if (!media.contains("#EXTINF")) {
+                result.fail(INVALID_MANIFEST, "La playlist de la première variante est invalide");
+                return;
+            }
+            checkHls(mediaPlaylist, media, headers, segments);
+            result.firstSegment = segments.firstSegment;
+        }
+    }
+
+    void checkDash(String url, String mpd, Result result) {
+        String adaptationCodecs = null;
+        String baseUrl = url;
+        String template = null;
+        String firstId = null;
+        String firstBandwidth = null;
+        Matcher tag = XML_TAG.matcher(mpd);
+        while (tag.find()) {
+            Map<String, String> attributes = new HashMap<>();
+            Matcher attribute = XML_ATTRIBUTE.matcher(tag.group(2));
+            while (attribute.find()) {
+                attributes.put(attribute.group(1), attribute.group(2));
+            }
+            switch (tag.group(1)) {
+                case "AdaptationSet":
+                    adaptationCodecs = attributes.get("codecs");
+                    break;
+                case "BaseURL":
+                    if (firstId == null && !tag.group(3).trim().isEmpty()) {
+                        baseUrl = resolve(url, tag.group(3).trim());
+                    }
+                    break;
+                case "SegmentTemplate":
+                    if (template == null) {
+                        template = attributes.get("initialization");
+                    }
+                    break;
+                default:
+                    String codecs = attributes.containsKey("codecs") ? attributes.get("codecs") : adaptationCodecs;
+                    JSONObject variant = new JSONObject();
+                    try {
+                        if (attributes.containsKey("id")) {
+                            variant.put("id", attributes.get("id"));
+                        }
+                        if (attributes.containsKey("bandwidth")) {
+                            variant.put("bandwidth", Long.parseLong(attributes.get("bandwidth")));
+                        }
+                        if (attributes.containsKey("width") && attributes.containsKey("height")) {
+                            variant.put("resolution", attributes.get("width") + "x" + attributes.get("height"));
+                        }
+                        if (codecs != null) {
+                            variant.put("codecs", codecs);
+                        }
+                    } catch (JSONException | NumberFormatException e) {
+                    }
+                    addVariant(result, variant, codecs);
+                    if (firstId == null && variant.optBoolean("playable")) {
+                        firstId = attributes.get("id");
+                        firstBandwidth = attributes.get("bandwidth");
+                    }
+                    break;
+            }
+        }
+        if (template != null && firstId != null) {
+            String init = template.replace("$RepresentationID$", firstId)
+                    .replace("$Bandwidth$", firstBandwidth == null ? "" : firstBandwidth);
+            if (!init.contains("$")) {
+                result.firstSegment = resolve(baseUrl, init);
+            }
+        }
+    }
+
+    private static void addVariant(Result result, JSONObject variant, String codecs) {
+        boolean playable = true;
+        if (codecs != null) {
+            for (String codec : codecs.split(",")) {
+                codec = codec.trim().toLowerCase(Locale.ROOT);
+                if (codec.isEmpty()) {
+                    continue;
+                }
+                boolean supported = false;
+                for (String prefix : SUPPORTED_CODECS) {
+                    if (codec.startsWith(prefix)) {
+                        supported = true;
+                        break;
+                    }
+                }
+                if (!supported) {
+                    playable = false;
+                }
+                if (!contains(result.codecs, codec)) {
+                    result.codecs.put(codec);
+                }
+            }
+        }
+        try {
+            variant.put("playable", playable);
+        } catch (JSONException e) {
+        }
+        if (playable) {
+            result.playableVariants++;
+        }
+        result.variants.put(variant);
+    }
+
+    private static boolean contains(JSONArray array, String value) {
+        for (int i = 0; i < array.length(); i++) {
+            if (value.equals(array.optString(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String resolve(String base, String relative) {
+        try {
+            return new URL(new URL(base), relative).toString();
+        } catch (IOException e) {
+            return relative;
+        }
+    }
+
+    private static HttpURLConnection open(String url, String method, JSONObject headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setInstanceFollowRedirects(true);
+        if (headers != null) {
+            Iterator<String> keys = headers.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                connection.setRequestProperty(key, headers.optString(key));
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @param result gets the HTTP status, may be null
+     * @return the body, null if the status is an error
+     */
+    private static String fetch(String url, JSONObject headers, Result result) throws IOException {
+        HttpURLConnection connection = open(url, "GET", headers);
+        try {
+            int status = connection.getResponseCode();
+            if (result != null) {
+                result.status = status;
+            }
+            if (status >= 400) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                boolean sniffed = false;
+                while ((count = in.read(buffer)) != -1 && out.size() < MAX_MANIFEST_SIZE) {
+                    out.write(buffer, 0, count);
+                    if (!sniffed && out.size() >= 64) {
+                        sniffed = true;
+                        if (!isManifest(out.toByteArray())) {
+                            // Progressive media, the start is enough
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return whether the first bytes of a body are those of a playlist or an XML document
+     */
+    private static boolean isManifest(byte[] head) {
+        String text = new String(head, 0, Math.min(head.length, 64), StandardCharsets.UTF_8).trim();
+        return text.startsWith("#EXTM3U") || text.startsWith("\uFEFF") || text.startsWith("<");
+    }
+
+    /**
+     * @return the HTTP status of a HEAD on the URL, or of a one byte GET if HEAD is not allowed
+     */
+    private static int reach(String url, JSONObject headers) throws IOException {
+        HttpURLConnection connection = open(url, "HEAD", headers);
+        int status;
+        try {
+            status = connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+        if (status != HttpURLConnection.HTTP_BAD_METHOD && status != HttpURLConnection.HTTP_FORBIDDEN) {
+            return status;
+        }
+        // Some CDNs only sign GET requests
+        connection = open(url, "GET", headers);
+        connection.setRequestProperty("Range", "bytes=0-0");
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the check stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("checks", checkCount);
+            out.put("cacheHits", cacheHitCount);
+            out.put("failed", failedCount);
+            out.put("failures", new JSONObject(failures));
+            out.put("cached", cache.size());
+            out.put("averageTime", checkCount == 0 ? 0 : (double) totalTime / checkCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * The result of a check.
+     */
+    static final class Result {
+        final String url;
+        /** Null if the check passed, else one of the reasons. */
+        String reason;
+        String message;
+        /** hls, dash or progressive, null if not fetched. */
+        String type;
+        /** HTTP status of the manifest. */
+        int status = 0;
+        final JSONArray variants = new JSONArray();
+        int playableVariants = 0;
+        final JSONArray codecs = new JSONArray();
+        String firstSegment;
+        int segmentStatus = 0;
+        /** Expiry of the token in the URL (s since the epoch), 0 if none. */
+        long tokenExpiry = 0;
+        final JSONArray warnings = new JSONArray();
+        /** Duration of the check (ms). */
+        long time = 0;
+        boolean cached = false;
+
+        Result(String url) {
+            this.url = url;
+        }
+
+        Result fail(String failure, String description) {
+            reason = failure;
+            message = description;
+            return this;
+        }
+
+        Result cached() {
+            Result copy = new Result(url);
+            copy.reason = reason;
+            copy.message = message;
+            copy.type = type;
+            copy.status = status;
+            copy.firstSegment = firstSegment;
+            copy.segmentStatus = segmentStatus;
+            copy.tokenExpiry = tokenExpiry;
+            copy.playableVariants = playableVariants;
+            try {
+                for (int i = 0; i < variants.length(); i++) {
+                    copy.variants.put(variants.get(i));
+                }
+                for (int i = 0; i < codecs.length(); i++) {
+                    copy.codecs.put(codecs.get(i));
+                }
+                for (int i = 0; i < warnings.length(); i++) {
+                    copy.warnings.put(warnings.get(i));
+                }
+            } catch (JSONException e) {
+            }
+            copy.cached = true;
+            return copy;
+        }
+
+        /**
+         * @return {ok, reason?, message?, type, status, variants, codecs, firstSegment, segmentStatus,
+         *          tokenExpiry, warnings, time, cached}
+         */
+        JSONObject toJSON() {
+            JSONObject out = new JSONObject();
+            try {
+                out.put("ok", reason == null);
+                if (reason != null) {
+                    out.put("reason", reason);
+                    out.put("message", message);
+                }
+                out.put("type", type);
+                out.put("status", status);
+                out.put("variants", variants);
+                out.put("codecs", codecs);
+                out.put("firstSegment", firstSegment);
+                out.put("segmentStatus", segmentStatus);
+                out.put("tokenExpiry", tokenExpiry);
+                out.put("warnings", warnings);
+                out.put("time", time);
+                out.put("cached", cached);
+            } catch (JSONException e) {
+            }
+            return out;
+        }
+
+        /**
+         * @return the error a failed load is rejected with: code preflight_failed, plus the result
+         */
+        JSONObject toError() {
+            JSONObject out = ChromecastUtilities.createError("preflight_failed", message);
+            try {
+                out.put("reason", reason);
+                out.put("preflight", toJSON());
+            } catch (JSONException e) {
+            }
+            return out;
+        }
+    }
+
+    private static final class Entry {
+        final Result result;
+        final long expires;
+
+        Entry(Result result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces the messages of a namespace sent within a short window into one envelope:
+ * {"__batch": 1, "messages": ["...", "..."]}, which custom-receiver/index.html unbatches.
+ * A batch is sent when its window ends or when the next message would exceed its byte
+ * budget. Each message still gets its own callback, with the result of its envelope.
+ * Batching is opt-in per namespace, and must be used from the main thread.
+ */
+final class MessageBatcher {
+    /** Marks an envelope, the receiver shim looks for it. */
+    static final String ENVELOPE_KEY = "__batch";
+    /** Default time messages wait for others to join their batch (ms). */
+    static final long DEFAULT_WINDOW = 20;
+    /** Default budget of a batch (bytes), Cast messages are limited to 64KB. */
+    static final int DEFAULT_MAX_BYTES = 16 * 1024;
+    /** Size of the envelope without its messages. */
+    private static final int ENVELOPE_OVERHEAD = 32;
+
+    /** Sends the envelopes. */
+    private final MessageTransport transport;
+    /** Runs the window timers. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /** The settings of the namespaces batching is enabled on. */
+    private final Map<String, Settings> settings = new ConcurrentHashMap<>();
+    /** The batch being filled, by namespace. */
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    /** Stats. */
+    private volatile long messageCount = 0;
+    private volatile long envelopeCount = 0;
+
+    /**
+     * @param transport sends the envelopes
+     */
+    MessageBatcher(MessageTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Enables batching on a namespace, or changes its settings.
+     * @param namespace namespace
+     * @param window time messages wait for others to join their batch (ms)
+     * @param maxBytes budget of a batch (bytes)
+     */
+    void enable(String namespace, long window, int maxBytes) {
+        settings.put(namespace, new Settings(window, maxBytes));
+    }
+
+    /**
+     * Disables batching on a namespace, the pending batch is sent right away.
+     * Must be called from the main thread.
+     * @param namespace namespace
+     */
+    void disable(String namespace) {
+        settings.remove(namespace);
+        flush(namespace);
+    }
+
+    /**
+     * @param namespace namespace
+     * @return true if the messages of the namespace are batched
+     */
+    boolean isEnabled(String namespace) {
+        return settings.containsKey(namespace);
+    }
+
+    /**
+     * Adds a message to the batch of its namespace.
+     * @param namespace namespace, batching must be enabled on it
+     * @param message the message
+     * @param callback called with the result of the envelope it was sent in
+     */
+    void add(final String namespace, String message, ResultCallback<Status> callback) {
+        Settings config = settings.get(namespace);
+        int size = JSONObject.quote(message).length() + 1;
+        Batch batch = batches.get(namespace);
+        if (batch != null && batch.bytes + size > config.maxBytes) {
+            // Would not fit, send what we have first so the order is kept
+            flush(namespace);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(namespace, batch);
+            final Batch scheduled = batch;
+            batch.flush = new Runnable() {
+                @Override
+                public void run() {
+                    if (batches.get(namespace) == scheduled) {
+                        flush(namespace);
+                    }
+                }
+            };
+            handler.postDelayed(batch.flush, config.window);
+        }
+        batch.messages.add(message);
+        batch.callbacks.add(callback);
+        batch.bytes += size;
+        messageCount++;
+        if (batch.bytes >= config.maxBytes) {
+            flush(namespace);
+        }
+    }
+
+    /**
+     * Sends the pending batch of a namespace, must be called from the main thread.
+     * @param namespace namespace
+     */
+    void flush(String namespace) {
+        Batch batch = batches.remove(namespace);
+        if (batch == null) {
+            return;
+        }
+        handler.removeCallbacks(batch.flush);
+        final List<ResultCallback<Status>> callbacks = batch.callbacks;
+        String payload;
+        if (batch.messages.size() == 1) {
+            // Nothing to coalesce, the receiver gets it as is
+            payload = batch.messages.get(0);
+        } else {
+            JSONObject envelope = new JSONObject();
+            try {
+                envelope.put(ENVELOPE_KEY, 1);
+                envelope.put("messages", new JSONArray(batch.messages));
+            } catch (JSONException e) {
+                return;
+            }
+            payload = envelope.toString();
+        }
+        envelopeCount++;
+        transport.send(namespace, payload, new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                for (ResultCallback<Status> callback : callbacks) {
+                    if (callback != null) {
+                        callback.onResult(status);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the batching stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("namespaces", new JSONArray(settings.keySet()));
+            out.put("messages", messageCount);
+            out.put("envelopes", envelopeCount);
+            out.put("messagesPerEnvelope", envelopeCount == 0 ? 0 : (double) messageCount / envelopeCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    private static final class Settings {
+        final long window;
+        final int maxBytes;
+
+        Settings(long window, int maxBytes) {
+            this.window = window;
+            this.maxBytes = Math.max(maxBytes, ENVELOPE_OVERHEAD + 1);
+        }
+    }
+
+    private static final class Batch {
+        final List<String> messages = new ArrayList<>();
+        final List<ResultCallback<Status>> callbacks = new ArrayList<>();
+        int bytes = ENVELOPE_OVERHEAD;
+        /** Sends the batch at the end of its window. */
+        Runnable flush;
+    }
+}
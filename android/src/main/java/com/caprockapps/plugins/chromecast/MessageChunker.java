@@ -0,0 +1,368 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Splits the messages too large for the Cast channel into chunks, and reassembles the
+ * chunked messages we receive. custom-receiver/index.html does the same on its side.
+ * A chunk is {"__chunk": 1, "id", "seq", "total", "size", "crc", "data"} where data is a
+ * base64 slice of the UTF-8 message, and crc the CRC32 of the whole message.
+ * The receiver restarts its ids after a reload, so partial messages are told apart by
+ * their total and crc too. Malformed chunks are dropped.
+ * Up to window chunks are in flight at once. Messages sent on a namespace while one of its
+ * messages is being chunked wait for it, so the receiver gets them in order.
+ * Must be used from the main thread.
+ */
+final class MessageChunker {
+    /** Tag for logging. */
+    private static final String TAG = "MessageChunker";
+    /** Marks a chunk, the receiver looks for it. */
+    static final String CHUNK_KEY = "__chunk";
+    /** Default size of the data of a chunk (bytes, before base64). */
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    /** Default number of chunks in flight. */
+    static final int DEFAULT_WINDOW = 4;
+    /** Messages larger than this are chunked (bytes), Cast messages are limited to 64KB. */
+    static final int MAX_MESSAGE_SIZE = 48 * 1024;
+    /** Largest size of the data of a chunk (bytes), its base64 and the envelope must fit in 64KB. */
+    static final int MAX_CHUNK_SIZE = 36 * 1024;
+    /** Partial messages not completed after this long are dropped (ms). */
+    private static final long REASSEMBLY_TIMEOUT = 30000;
+
+    /** Sends the chunks. */
+    private final MessageTransport transport;
+    /** The outgoing messages, by namespace. */
+    private final Map<String, Channel> channels = new HashMap<>();
+    /** The messages being reassembled, by namespace, id, total and crc. */
+    private final Map<String, Partial> partials = new ConcurrentHashMap<>();
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int window = DEFAULT_WINDOW;
+    /** Generates the message ids. */
+    private int nextId = 0;
+
+    /** Stats. */
+    private volatile long chunkedCount = 0;
+    private volatile long chunkCount = 0;
+    private volatile long failedCount = 0;
+    private volatile long reassembledCount = 0;
+    private volatile long corruptedCount = 0;
+
+    /**
+     * @param transport sends the chunks
+     */
+    MessageChunker(MessageTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @param size size of the data of a chunk (bytes)
+     * @param inFlight number of chunks in flight
+     */
+    void configure(int size, int inFlight) {
+        this.chunkSize = size;
+        this.window = inFlight;
+    }
+
+    /**
+     * Sends a message, chunked if it is too large.
+     * @param namespace namespace
+     * @param message the message
+     * @param callback called with the result, for a chunked message once all chunks are sent
+     */
+    void send(String namespace, String message, ResultCallback<Status> callback) {
+        Channel channel = channels.get(namespace);
+        if (channel == null) {
+            channel = new Channel(namespace);
+            channels.put(namespace, channel);
+        }
+        // Cheap check first, a UTF-8 char is at most 3 bytes per UTF-16 char
+        boolean small = message.length() * 3 <= MAX_MESSAGE_SIZE;
+        byte[] bytes = small ? null : message.getBytes(StandardCharsets.UTF_8);
+        if (bytes != null && bytes.length <= MAX_MESSAGE_SIZE) {
+            small = true;
+        }
+        if (small && channel.isIdle()) {
+            transport.send(namespace, message, callback);
+            return;
+        }
+        channel.queue.add(new Outgoing(message, bytes, callback));
+        channel.pump();
+    }
+
+    /**
+     * Passes a received message through the reassembly.
+     * @param namespace namespace
+     * @param message the received message
+     * @return the message, the reassembled message for the last chunk, or null if the
+     *         message was a chunk of a message that is not complete yet
+     */
+    String reassemble(String namespace, String message) {
+        if (message.indexOf("\"" + CHUNK_KEY + "\"") == -1) {
+            return message;
+        }
+        JSONObject chunk;
+        try {
+            chunk = new JSONObject(message);
+            if (chunk.optInt(CHUNK_KEY) != 1) {
+                return message;
+            }
+        } catch (JSONException e) {
+            return message;
+        }
+        expirePartials();
+        int total = chunk.optInt("total");
+        int seq = chunk.optInt("seq", -1);
+        long crcValue = chunk.optLong("crc");
+        if (total <= 0 || seq < 0 || seq >= total) {
+            Log.w(TAG, "Invalid chunk " + seq + "/" + total + " on " + namespace);
+            return null;
+        }
+        String key = namespace + "#" + chunk.optString("id") + "#" + total + "#" + crcValue;
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            partial = new Partial(total, chunk.optInt("size"), crcValue);
+            partials.put(key, partial);
+        }
+        if (seq >= partial.parts.length) {
+            Log.w(TAG, "Invalid chunk " + seq + "/" + partial.parts.length + " on " + namespace);
+            return null;
+        }
+        if (partial.parts[seq] == null) {
+            try {
+                partial.parts[seq] = Base64.getDecoder().decode(chunk.optString("data"));
+            } catch (IllegalArgumentException e) {
+                partials.remove(key);
+                corruptedCount++;
+                Log.w(TAG, "Dropped chunked message with invalid data on " + namespace);
+                return null;
+            }
+            partial.received++;
+        }
+        if (partial.received < total) {
+            return null;
+        }
+        partials.remove(key);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(0, partial.size));
+        for (byte[] part : partial.parts) {
+            out.write(part, 0, part.length);
+        }
+        byte[] bytes = out.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (bytes.length != partial.size || crc.getValue() != partial.crc) {
+            corruptedCount++;
+            Log.w(TAG, "Dropped corrupted chunked message on " + namespace);
+            return null;
+        }
+        reassembledCount++;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void expirePartials() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().startTime > REASSEMBLY_TIMEOUT) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the chunking stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("chunkSize", chunkSize);
+            out.put("window", window);
+            out.put("chunkedMessages", chunkedCount);
+            out.put("chunks", chunkCount);
+            out.put("failed", failedCount);
+            out.put("reassembled", reassembledCount);
+            out.put("corrupted", corruptedCount);
+            out.put("partials", partials.size());
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * The outgoing messages of a namespace.
+     */
+    private final class Channel {
+        final String namespace;
+        /** The messages waiting for the chunked message in progress. */
+        final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+        /** The chunked message whose chunks are being sent, null if none. */
+        Transfer current;
+
+        Channel(String namespace) {
+            this.namespace = namespace;
+        }
+
+        boolean isIdle() {
+            return current == null && queue.isEmpty();
+        }
+
+        /**
+         * Sends what the window allows, in order.
+         */
+        void pump() {
+            while (true) {
+                if (current != null) {
+                    if (!current.sendChunks()) {
+                        // Waiting for room in the window
+                        return;
+                    }
+                    // All of its chunks are sent, the next messages can go
+                    current = null;
+                }
+                Outgoing next = queue.poll();
+                if (next == null) {
+                    return;
+                }
+                if (next.bytes == null || next.bytes.length <= MAX_MESSAGE_SIZE) {
+                    transport.send(namespace, next.message, next.callback);
+                } else {
+                    current = new Transfer(this, next);
+                }
+            }
+        }
+    }
+
+    /**
+     * A message being sent in chunks.
+     */
+    private final class Transfer {
+        final Channel channel;
+        final Outgoing message;
+        final String id;
+        final long crc;
+        final int size;
+        final int total;
+        int nextSeq = 0;
+        int inFlight = 0;
+        int acked = 0;
+        boolean failed = false;
+
+        Transfer(Channel channel, Outgoing message) {
+            this.channel = channel;
+            this.message = message;
+            this.id = Integer.toString(++nextId);
+            this.size = chunkSize;
+            this.total = (message.bytes.length + size - 1) / size;
+            CRC32 checksum = new CRC32();
+            checksum.update(message.bytes);
+            this.crc = checksum.getValue();
+            chunkedCount++;
+        }
+
+        /**
+         * Sends chunks while the window has room.
+         * @return true once all chunks were sent
+         */
+        boolean sendChunks() {
+            while (!failed && nextSeq < total && inFlight < window) {
+                final int seq = nextSeq++;
+                int offset = seq * size;
+                int length = Math.min(size, message.bytes.length - offset);
+                JSONObject chunk = new JSONObject();
+                try {
+                    chunk.put(CHUNK_KEY, 1);
+                    chunk.put("id", id);
+                    chunk.put("seq", seq);
+                    chunk.put("total", total);
+                    chunk.put("size", message.bytes.length);
+                    chunk.put("crc", crc);
+                    chunk.put("data", new String(Base64.getEncoder().encode(
+                            Arrays.copyOfRange(message.bytes, offset, offset + length)), StandardCharsets.ISO_8859_1));
+                } catch (JSONException e) {
+                    onChunkResult(new Status(CastStatusCodes.INVALID_REQUEST, e.getMessage()));
+                    break;
+                }
+                inFlight++;
+                chunkCount++;
+                transport.send(channel.namespace, chunk.toString(), new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(@NonNull Status status) {
+                        inFlight--;
+                        onChunkResult(status);
+                        if (channel.current == Transfer.this) {
+                            channel.pump();
+                        }
+                    }
+                });
+            }
+            return failed || nextSeq >= total;
+        }
+
+        private void onChunkResult(Status status) {
+            if (failed) {
+                return;
+            }
+            if (!status.isSuccess()) {
+                // The receiver can't reassemble it anymore, don't send the rest
+                failed = true;
+                failedCount++;
+                complete(status);
+            } else if (++acked == total) {
+                complete(status);
+            }
+        }
+
+        private void complete(Status status) {
+            if (message.callback != null) {
+                message.callback.onResult(status);
+            }
+        }
+    }
+
+    private static final class Outgoing {
+        final String message;
+        /** The UTF-8 message, null if it is known to be small. */
+        final byte[] bytes;
+        final ResultCallback<Status> callback;
+
+        Outgoing(String message, byte[] bytes, ResultCallback<Status> callback) {
+            this.message = message;
+            this.bytes = bytes;
+            this.callback = callback;
+        }
+    }
+
+    private static final class Partial {
+        final byte[][] parts;
+        final int size;
+        final long crc;
+        final long startTime = SystemClock.elapsedRealtime();
+        int received = 0;
+
+        Partial(int total, int size, long crc) {
+            this.parts = new byte[total][];
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the messages larger than a threshold, and decompresses the compressed messages
+ * we receive. custom-receiver/index.html does the same on its side.
+ * A compressed message is {"__deflate": 1, "size", "data"} where data is the base64 of the
+ * zlib deflated UTF-8 message, and size the length of the UTF-8 message.
+ * Messages that don't shrink are sent as is. After SKIP_AFTER of them in a row on a namespace,
+ * its next SKIP_COUNT messages are not even tried.
+ * Compression is opt-in, and must be used from the main thread.
+ */
+final class MessageCompressor {
+    /** Tag for logging. */
+    private static final String TAG = "MessageCompressor";
+    /** Marks a compressed message, the receiver looks for it. */
+    static final String DEFLATE_KEY = "__deflate";
+    /** Default size from which messages are compressed (bytes). */
+    static final int DEFAULT_THRESHOLD = 1024;
+    /** A compressed message must be smaller than this share of the original to be sent. */
+    private static final double MAX_RATIO = 0.9;
+    /** Number of messages in a row that didn't shrink before a namespace is skipped. */
+    private static final int SKIP_AFTER = 3;
+    /** Number of messages of a namespace sent as is once it is skipped. */
+    private static final int SKIP_COUNT = 16;
+    /** Largest message we accept to decompress (bytes). */
+    private static final int MAX_INFLATED_SIZE = 8 * 1024 * 1024;
+
+    /** Sends the messages. */
+    private final MessageTransport transport;
+    /** How the compression went on each namespace. */
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[8192];
+    private volatile boolean enabled = false;
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    /** Stats. */
+    private volatile long compressedCount = 0;
+    private volatile long notShrunkCount = 0;
+    private volatile long skippedCount = 0;
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+    private volatile long compressTime = 0;
+    private volatile long decompressedCount = 0;
+    private volatile long decompressTime = 0;
+    private volatile long corruptedCount = 0;
+
+    /**
+     * @param transport sends the messages
+     */
+    MessageCompressor(MessageTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @param enable whether to compress the outgoing messages
+     * @param size size from which messages are compressed (bytes)
+     */
+    void configure(boolean enable, int size) {
+        this.enabled = enable;
+        this.threshold = size;
+    }
+
+    /**
+     * Sends a message, compressed if it is large enough and shrinks.
+     * @param namespace namespace
+     * @param message the message
+     * @param callback called with the result of the send
+     */
+    void send(String namespace, String message, ResultCallback<Status> callback) {
+        // A UTF-8 char is at least 1 byte per UTF-16 char and at most 3
+        if (!enabled || message.length() * 3 < threshold) {
+            transport.send(namespace, message, callback);
+            return;
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < threshold) {
+            transport.send(namespace, message, callback);
+            return;
+        }
+        History history = histories.get(namespace);
+        if (history == null) {
+            history = new History();
+            histories.put(namespace, history);
+        }
+        if (history.skip > 0) {
+            history.skip--;
+            skippedCount++;
+            transport.send(namespace, message, callback);
+            return;
+        }
+        String compressed = compress(bytes);
+        if (compressed == null || compressed.length() >= bytes.length * MAX_RATIO) {
+            notShrunkCount++;
+            if (++history.notShrunk >= SKIP_AFTER) {
+                history.notShrunk = 0;
+                history.skip = SKIP_COUNT;
+            }
+            transport.send(namespace, message, callback);
+            return;
+        }
+        history.notShrunk = 0;
+        compressedCount++;
+        bytesIn += bytes.length;
+        bytesOut += compressed.length();
+        transport.send(namespace, compressed, callback);
+    }
+
+    /**
+     * @return the compressed message, null if it could not be built
+     */
+    private String compress(byte[] bytes) {
+        long start = Debug.threadCpuTimeNanos();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        JSONObject wrapper = new JSONObject();
+        try {
+            wrapper.put(DEFLATE_KEY, 1);
+            wrapper.put("size", bytes.length);
+            wrapper.put("data", Base64.getEncoder().encodeToString(out.toByteArray()));
+        } catch (JSONException e) {
+            return null;
+        } finally {
+            compressTime += Debug.threadCpuTimeNanos() - start;
+        }
+        return wrapper.toString();
+    }
+
+    /**
+     * Decompresses a received message.
+     * @param namespace namespace
+     * @param message the received message
+     * @return the message, the decompressed message if it was compressed, or null if it was
+     *         compressed but could not be decompressed
+     */
+    String decompress(String namespace, String message) {
+        if (message.indexOf("\"" + DEFLATE_KEY + "\"") == -1) {
+            return message;
+        }
+        JSONObject wrapper;
+        try {
+            wrapper = new JSONObject(message);
+            if (wrapper.optInt(DEFLATE_KEY) != 1) {
+                return message;
+            }
+        } catch (JSONException e) {
+            return message;
+        }
+        int size = wrapper.optInt("size", -1);
+        if (size < 0 || size > MAX_INFLATED_SIZE) {
+            corruptedCount++;
+            Log.w(TAG, "Dropped compressed message of invalid size " + size + " on " + namespace);
+            return null;
+        }
+        long start = Debug.threadCpuTimeNanos();
+        try {
+            byte[] out = new byte[size];
+            inflater.reset();
+            inflater.setInput(Base64.getDecoder().decode(wrapper.optString("data")));
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int count = inflater.inflate(out, length, size - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != size || !inflater.finished()) {
+                corruptedCount++;
+                Log.w(TAG, "Dropped truncated compressed message on " + namespace);
+                return null;
+            }
+            decompressedCount++;
+            return new String(out, StandardCharsets.UTF_8);
+        } catch (DataFormatException | IllegalArgumentException e) {
+            corruptedCount++;
+            Log.w(TAG, "Dropped corrupted compressed message on " + namespace, e);
+            return null;
+        } finally {
+            decompressTime += Debug.threadCpuTimeNanos() - start;
+        }
+    }
+
+    /**
+     * @return the compression stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("enabled", enabled);
+            out.put("threshold", threshold);
+            out.put("compressed", compressedCount);
+            out.put("notShrunk", notShrunkCount);
+            out.put("skipped", skippedCount);
+            out.put("bytesIn", bytesIn);
+            out.put("bytesOut", bytesOut);
+            out.put("ratio", bytesIn == 0 ? 1 : (double) bytesOut / bytesIn);
+            out.put("compressTime", compressTime / 1e6);
+            out.put("averageCompressTime", compressedCount + notShrunkCount == 0
+                ? 0 : compressTime / 1e6 / (compressedCount + notShrunkCount));
+            out.put("decompressed", decompressedCount);
+            out.put("decompressTime", decompressTime / 1e6);
+            out.put("corrupted", corruptedCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * How the compression went on a namespace.
+     */
+    private static final class History {
+        /** Messages in a row that didn't shrink. */
+        int notShrunk = 0;
+        /** Messages left to send as is. */
+        int skip = 0;
+    }
+}
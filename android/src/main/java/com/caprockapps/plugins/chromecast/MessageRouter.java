@@ -0,0 +1,218 @@
+package com.caprockapps.plugins.chromecast;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.cast.framework.CastSession;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dispatches the received namespace messages to their subscribers.
+ * It is the only callback registered on the session for each namespace that has subscribers,
+ * and registers them again on each new session. Messages are passed on as the received string.
+ * A subscription can be limited to some message types (the "type" field of JSON messages),
+ * the other messages are dropped here without being sent to the subscriber.
+ * Must be used from the main thread.
+ */
+final class MessageRouter implements Cast.MessageReceivedCallback {
+    /**
+     * Processes the received messages before they are dispatched.
+     */
+    interface Inbound {
+        /**
+         * @param namespace namespace
+         * @param message the received message
+         * @return the message to dispatch, null to drop it
+         */
+        String process(String namespace, String message);
+    }
+
+    /** Processes the received messages. */
+    private final Inbound inbound;
+    /** The subscriptions, by namespace. */
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    /** The session the namespaces are registered on, null if none. */
+    private CastSession session;
+
+    /**
+     * @param inbound processes the received messages before they are dispatched
+     */
+    MessageRouter(Inbound inbound) {
+        this.inbound = inbound;
+    }
+
+    /**
+     * Subscribes to a namespace, or changes the types of an existing subscription.
+     * @param namespace namespace
+     * @param subscriber called with the messages
+     * @param types the message types to receive, null for all, empty to receive nothing
+     *              while keeping the namespace registered
+     */
+    void subscribe(String namespace, Cast.MessageReceivedCallback subscriber, Set<String> types) {
+        Route route = routes.get(namespace);
+        if (route == null) {
+            route = new Route();
+            routes.put(namespace, route);
+            register(session, namespace);
+        }
+        for (Subscription subscription : route.subscriptions) {
+            if (subscription.subscriber == subscriber) {
+                route.subscriptions.remove(subscription);
+            }
+        }
+        route.subscriptions.add(new Subscription(subscriber, types));
+    }
+
+    /**
+     * @param namespace namespace
+     * @param subscriber the subscriber to remove
+     */
+    void unsubscribe(String namespace, Cast.MessageReceivedCallback subscriber) {
+        Route route = routes.get(namespace);
+        if (route == null) {
+            return;
+        }
+        for (Subscription subscription : route.subscriptions) {
+            if (subscription.subscriber == subscriber) {
+                route.subscriptions.remove(subscription);
+            }
+        }
+        if (route.subscriptions.isEmpty()) {
+            routes.remove(namespace);
+            if (session != null) {
+                try {
+                    session.removeMessageReceivedCallbacks(namespace);
+                } catch (IOException | IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the namespaces to a new session.
+     * @param castSession the new session, null if none
+     */
+    void attach(CastSession castSession) {
+        if (session != null && session != castSession) {
+            for (String namespace : routes.keySet()) {
+                try {
+                    session.removeMessageReceivedCallbacks(namespace);
+                } catch (IOException | IllegalArgumentException e) {
+                    // The previous session may already be gone
+                }
+            }
+        }
+        session = castSession;
+        for (String namespace : routes.keySet()) {
+            register(castSession, namespace);
+        }
+    }
+
+    private void register(CastSession castSession, String namespace) {
+        if (castSession == null) {
+            return;
+        }
+        try {
+            castSession.setMessageReceivedCallbacks(namespace, this);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        Route route = routes.get(namespace);
+        if (route == null) {
+            return;
+        }
+        route.received++;
+        message = inbound.process(namespace, message);
+        if (message == null) {
+            return;
+        }
+        String type = null;
+        boolean typeRead = false;
+        for (Subscription subscription : route.subscriptions) {
+            if (subscription.types != null) {
+                if (subscription.types.isEmpty()) {
+                    continue;
+                }
+                if (!typeRead) {
+                    type = readType(message);
+                    typeRead = true;
+                }
+                if (type == null || !subscription.types.contains(type)) {
+                    route.filtered++;
+                    continue;
+                }
+            }
+            route.delivered++;
+            subscription.subscriber.onMessageReceived(castDevice, namespace, message);
+        }
+    }
+
+    /**
+     * @return the "type" field of a JSON message, null if it has none
+     */
+    private static String readType(String message) {
+        if (message.indexOf("\"type\"") == -1) {
+            return null;
+        }
+        try {
+            Object type = new JSONObject(message).opt("type");
+            return type instanceof String ? (String) type : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the counters of each namespace
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            Route route = entry.getValue();
+            try {
+                JSONObject stats = new JSONObject();
+                stats.put("subscribers", route.subscriptions.size());
+                stats.put("received", route.received);
+                stats.put("delivered", route.delivered);
+                stats.put("filtered", route.filtered);
+                out.put(entry.getKey(), stats);
+            } catch (JSONException e) {
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The subscriptions of a namespace.
+     */
+    private static final class Route {
+        final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        /** Stats, read from other threads. */
+        volatile long received = 0;
+        volatile long delivered = 0;
+        volatile long filtered = 0;
+    }
+
+    private static final class Subscription {
+        final Cast.MessageReceivedCallback subscriber;
+        /** The message types to deliver, null for all. */
+        final Set<String> types;
+
+        Subscription(Cast.MessageReceivedCallback subscriber, Set<String> types) {
+            this.subscriber = subscriber;
+            this.types = types;
+        }
+    }
+}
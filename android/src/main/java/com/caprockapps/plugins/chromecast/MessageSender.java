@@ -0,0 +1,185 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.cast.framework.CastSession;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends custom namespace messages without waiting for the previous ones (pipelining), and
+ * completes them in the order they were sent, per namespace.
+ * Must be used from the main thread, where the Cast results are delivered.
+ */
+final class MessageSender {
+    /** How long a message may wait for its result (ms). */
+    static final long SEND_TIMEOUT = 10000;
+
+    /** The namespaces we sent on. */
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    /** Gets us back on the main thread when a send times out. */
+    private final MainThreadDispatcher mainThread = MainThreadDispatcher.getInstance();
+
+    /**
+     * Sends a message, the callback gets the real result of the send.
+     * @param session the session to send on, if null the message fails right away
+     * @param namespace namespace
+     * @param message the message
+     * @param callback called in send order with the result, may be null
+     */
+    void send(CastSession session, String namespace, String message, ResultCallback<Status> callback) {
+        Channel channel = channels.get(namespace);
+        if (channel == null) {
+            channel = new Channel();
+            channels.put(namespace, channel);
+        }
+        final Send send = new Send(channel, message.length(), callback);
+        channel.add(send);
+
+        if (session == null || !session.isConnected()) {
+            send.complete(new Status(CastStatusCodes.NOT_ALLOWED, "session_error"));
+            return;
+        }
+        final PendingResult<Status> result;
+        try {
+            result = session.sendMessage(namespace, message);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            send.complete(new Status(CastStatusCodes.INVALID_REQUEST, e.getMessage()));
+            return;
+        }
+        send.timeout = TimeoutWheel.getInstance().schedule(SEND_TIMEOUT, new Runnable() {
+            @Override
+            public void run() {
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.cancel();
+                        send.complete(new Status(CastStatusCodes.TIMEOUT, "timeout"));
+                    }
+                });
+            }
+        });
+        result.setResultCallback(new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                if (send.timeout.cancel()) {
+                    send.complete(status);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the counters of each namespace
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            try {
+                out.put(entry.getKey(), entry.getValue().getStats());
+            } catch (JSONException e) {
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The messages of one namespace, the stats are read from other threads.
+     */
+    private static final class Channel {
+        /** The messages waiting to be completed, in send order. */
+        final ArrayDeque<Send> inFlight = new ArrayDeque<>();
+        /** When the first message was sent. */
+        final long startTime = SystemClock.elapsedRealtime();
+        long sent = 0;
+        long succeeded = 0;
+        long failed = 0;
+        long bytes = 0;
+        long totalLatency = 0;
+        int maxInFlight = 0;
+        /** Status code of the last failure. */
+        int lastError = CastStatusCodes.SUCCESS;
+
+        synchronized void add(Send send) {
+            inFlight.add(send);
+            sent++;
+            maxInFlight = Math.max(maxInFlight, inFlight.size());
+        }
+
+        /**
+         * Completes the messages at the head of the queue that have their result.
+         */
+        synchronized void drain() {
+            while (!inFlight.isEmpty() && inFlight.peek().status != null) {
+                Send send = inFlight.poll();
+                if (send.status.isSuccess()) {
+                    succeeded++;
+                    bytes += send.size;
+                } else {
+                    failed++;
+                    lastError = send.status.getStatusCode();
+                }
+                totalLatency += SystemClock.elapsedRealtime() - send.startTime;
+                if (send.callback != null) {
+                    send.callback.onResult(send.status);
+                }
+            }
+        }
+
+        synchronized JSONObject getStats() throws JSONException {
+            long completed = succeeded + failed;
+            double seconds = Math.max(1, SystemClock.elapsedRealtime() - startTime) / 1000.0;
+            JSONObject out = new JSONObject();
+            out.put("sent", sent);
+            out.put("succeeded", succeeded);
+            out.put("failed", failed);
+            out.put("inFlight", inFlight.size());
+            out.put("maxInFlight", maxInFlight);
+            out.put("bytes", bytes);
+            out.put("messagesPerSecond", succeeded / seconds);
+            out.put("bytesPerSecond", bytes / seconds);
+            out.put("averageLatency", completed == 0 ? 0 : (double) totalLatency / completed);
+            out.put("lastError", lastError);
+            return out;
+        }
+    }
+
+    /**
+     * A message waiting for its result.
+     */
+    private static final class Send {
+        final Channel channel;
+        final int size;
+        final ResultCallback<Status> callback;
+        final long startTime = SystemClock.elapsedRealtime();
+        /** Fails the message if it gets no result in time. */
+        TimeoutWheel.Timeout timeout;
+        /** The result, null until we get it. */
+        Status status;
+
+        Send(Channel channel, int size, ResultCallback<Status> callback) {
+            this.channel = channel;
+            this.size = size;
+            this.callback = callback;
+        }
+
+        void complete(Status result) {
+            if (status != null) {
+                return;
+            }
+            status = result;
+            channel.drain();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.caprockapps.plugins.chromecast;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+/**
+ * A layer of the outgoing message pipeline (batching, chunking, sending).
+ */
+interface MessageTransport {
+    /**
+     * Sends a message, must be called from the main thread.
+     * @param namespace namespace
+     * @param message the message
+     * @param callback called with the result of the send, may be null
+     */
+    void send(String namespace, String message, ResultCallback<Status> callback);
+}
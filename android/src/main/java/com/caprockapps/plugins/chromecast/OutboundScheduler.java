@@ -0,0 +1,396 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the namespace messages go on the Cast channel.
+ * Each namespace is in a lane (control, media or bulk, media by default). The lanes are served
+ * by priority, each within the rate of its token bucket (none by default, see setRateLimit), so
+ * that control messages don't wait behind a bulk transfer. The messages of a namespace keep their order.
+ * The number of messages in flight is limited. The limit is halved each time the channel reports
+ * its send buffer is full (error 2007), and grows back by one for each message sent. The message
+ * that got the error goes back in its lane, in the order it was first sent, and is sent again after
+ * a pause, its caller only gets the error after MAX_RETRIES. Until then the later messages of its
+ * namespace are held back: none is sent before its messages in flight have their result, so that
+ * all of those that got the error are sent again in order.
+ * The last slots are reserved to the control lane.
+ * Must be used from the main thread.
+ */
+final class OutboundScheduler {
+    /** The lanes, by priority. */
+    static final String[] LANES = {"control", "media", "bulk"};
+    static final int CONTROL = 0;
+    static final int MEDIA = 1;
+    static final int BULK = 2;
+    /** Largest number of messages in flight. */
+    private static final int MAX_IN_FLIGHT = 8;
+    /** Slots only the control lane can use. */
+    private static final int CONTROL_RESERVE = 2;
+    /** Pause before sending again after a full send buffer, per retry of the message (ms). */
+    private static final long RETRY_DELAY = 100;
+    /** Number of times a message is sent again after a full send buffer. */
+    private static final int MAX_RETRIES = 5;
+
+    /** Sends the messages. */
+    private final MessageTransport transport;
+    /** The time (elapsedRealtime ms). */
+    private final LongSupplier clock;
+    /** Wakes us up when a lane gets a token. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Lane[] lanes = new Lane[LANES.length];
+    /** The lane of each namespace, the others are in the media lane. */
+    private final Map<String, Integer> namespaceLanes = new ConcurrentHashMap<>();
+    /** The messages in flight and the retries of each namespace, while it has any. */
+    private final Map<String, Flow> flows = new HashMap<>();
+    /** Sequence number of the next message, gives the order of the retries. */
+    private long nextSeq = 0;
+    /** Number of messages sent and waiting for their result. */
+    private int inFlight = 0;
+    /** Current limit of messages in flight. */
+    private int window = MAX_IN_FLIGHT;
+    /** Whether a wake up is scheduled. */
+    private boolean wakeScheduled = false;
+    /** Nothing is sent before this, after a full send buffer (elapsedRealtime ms). */
+    private long pausedUntil = 0;
+    /** Set while pumping, results delivered synchronously don't pump again recursively. */
+    private boolean pumping = false;
+    private boolean pumpAgain = false;
+
+    /** Stats. */
+    private volatile long bufferFullCount = 0;
+    private volatile long retryCount = 0;
+
+    private final Runnable wake = new Runnable() {
+        @Override
+        public void run() {
+            wakeScheduled = false;
+            pump();
+        }
+    };
+
+    /**
+     * @param transport sends the messages
+     */
+    OutboundScheduler(MessageTransport transport) {
+        this(transport, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return SystemClock.elapsedRealtime();
+            }
+        });
+    }
+
+    /**
+     * @param transport sends the messages
+     * @param clock gives the time (elapsedRealtime ms)
+     */
+    OutboundScheduler(MessageTransport transport, LongSupplier clock) {
+        this.transport = transport;
+        this.clock = clock;
+        // Not limited until the client asks for it, the priority and the window already
+        // keep the bulk lane from delaying the others
+        lanes[CONTROL] = new Lane(0, 0);
+        lanes[MEDIA] = new Lane(0, 0);
+        lanes[BULK] = new Lane(0, 0);
+    }
+
+    /**
+     * @param name a lane name
+     * @return its index, -1 if unknown
+     */
+    static int getLane(String name) {
+        for (int i = 0; i < LANES.length; i++) {
+            if (LANES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts a namespace in a lane.
+     * @param namespace namespace
+     * @param lane the lane index
+     */
+    void setLane(String namespace, int lane) {
+        namespaceLanes.put(namespace, lane);
+    }
+
+    /**
+     * Changes the rate limit of a lane.
+     * @param lane the lane index
+     * @param rate messages per second, 0 for no limit
+     * @param burst messages that can be sent at once after a pause
+     */
+    void setRateLimit(int lane, double rate, int burst) {
+        lanes[lane].setRate(rate, burst);
+        pump();
+    }
+
+    /**
+     * Queues a message in the lane of its namespace.
+     * @param namespace namespace
+     * @param message the message
+     * @param callback called with the result of the send
+     */
+    void send(String namespace, String message, ResultCallback<Status> callback) {
+        Integer index = namespaceLanes.get(namespace);
+        Lane lane = lanes[index == null ? MEDIA : index];
+        lane.queue.add(new Outgoing(nextSeq++, namespace, message, callback, clock.getAsLong()));
+        lane.enqueuedCount++;
+        lane.maxDepth = Math.max(lane.maxDepth, lane.queue.size());
+        pump();
+    }
+
+    /**
+     * Sends the queued messages the window and the token buckets allow, by priority.
+     */
+    void pump() {
+        if (pumping) {
+            pumpAgain = true;
+            return;
+        }
+        pumping = true;
+        do {
+            pumpAgain = false;
+            pumpOnce();
+        } while (pumpAgain);
+        pumping = false;
+    }
+
+    private void pumpOnce() {
+        long now = clock.getAsLong();
+        long nextToken = Long.MAX_VALUE;
+        if (now < pausedUntil) {
+            scheduleWake(pausedUntil - now);
+            return;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = lanes[i];
+            int limit = i == CONTROL ? window : Math.max(1, window - CONTROL_RESERVE);
+            while (inFlight < limit) {
+                Outgoing out = nextSendable(lane);
+                if (out == null) {
+                    break;
+                }
+                long wait = lane.takeToken(now);
+                if (wait > 0) {
+                    nextToken = Math.min(nextToken, wait);
+                    break;
+                }
+                // The result may come back right away and put a message back in the queue
+                lane.queue.remove(out);
+                send(lane, out, now);
+            }
+        }
+        if (nextToken != Long.MAX_VALUE) {
+            scheduleWake(nextToken);
+        }
+    }
+
+    /**
+     * @return the first message of the lane whose namespace is not held back, null if none
+     */
+    private Outgoing nextSendable(Lane lane) {
+        for (Outgoing out : lane.queue) {
+            Flow flow = flows.get(out.namespace);
+            if (flow == null || !flow.draining) {
+                return out;
+            }
+            // Waiting for the results of the messages in flight before its retries
+        }
+        return null;
+    }
+
+    private void send(final Lane lane, final Outgoing out, long now) {
+        Flow flow = flows.get(out.namespace);
+        if (flow == null) {
+            flow = new Flow();
+            flows.put(out.namespace, flow);
+        }
+        final Flow sentFlow = flow;
+        sentFlow.inFlight++;
+        inFlight++;
+        lane.sentCount++;
+        lane.totalWait += now - out.queuedTime;
+        transport.send(out.namespace, out.message, new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                inFlight--;
+                sentFlow.inFlight--;
+                boolean retry = false;
+                if (status.getStatusCode() == CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL) {
+                    bufferFullCount++;
+                    lane.bufferFullCount++;
+                    window = Math.max(1, window / 2);
+                    if (out.retries < MAX_RETRIES) {
+                        // Not an error for the caller, send it again once the buffer drained
+                        out.retries++;
+                        retryCount++;
+                        requeue(lane, out);
+                        sentFlow.draining = true;
+                        pausedUntil = clock.getAsLong() + RETRY_DELAY * out.retries;
+                        retry = true;
+                    }
+                } else if (status.isSuccess() && window < MAX_IN_FLIGHT) {
+                    window++;
+                }
+                if (sentFlow.inFlight == 0) {
+                    // All the retries of the namespace are back in its lane, in order
+                    sentFlow.draining = false;
+                    if (flows.get(out.namespace) == sentFlow) {
+                        flows.remove(out.namespace);
+                    }
+                }
+                if (!retry && out.callback != null) {
+                    out.callback.onResult(status);
+                }
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Puts a message back in its lane, before the messages sent after it.
+     */
+    private static void requeue(Lane lane, Outgoing out) {
+        ListIterator<Outgoing> it = lane.queue.listIterator();
+        while (it.hasNext()) {
+            if (it.next().seq > out.seq) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(out);
+    }
+
+    private void scheduleWake(long delay) {
+        if (!wakeScheduled) {
+            wakeScheduled = true;
+            handler.postDelayed(wake, delay);
+        }
+    }
+
+    /**
+     * @return the queue depth and counters of each lane
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("inFlight", inFlight);
+            out.put("window", window);
+            out.put("bufferFull", bufferFullCount);
+            out.put("retries", retryCount);
+            for (int i = 0; i < lanes.length; i++) {
+                out.put(LANES[i], lanes[i].getStats());
+            }
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * A priority level with its token bucket.
+     */
+    private static final class Lane {
+        /** In sequence order. */
+        final LinkedList<Outgoing> queue = new LinkedList<>();
+        /** Tokens per ms, 0 for no limit. */
+        double rate;
+        int burst;
+        double tokens;
+        long lastRefill = SystemClock.elapsedRealtime();
+        /** Stats. */
+        long enqueuedCount = 0;
+        long sentCount = 0;
+        long totalWait = 0;
+        int maxDepth = 0;
+        long bufferFullCount = 0;
+
+        Lane(double ratePerSecond, int burst) {
+            setRate(ratePerSecond, burst);
+        }
+
+        void setRate(double ratePerSecond, int burstSize) {
+            this.rate = ratePerSecond / 1000;
+            this.burst = Math.max(1, burstSize);
+            this.tokens = this.burst;
+        }
+
+        /**
+         * Takes a token if there is one.
+         * @return 0 if a token was taken, else the time until the next one (ms)
+         */
+        long takeToken(long now) {
+            if (rate <= 0) {
+                return 0;
+            }
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / rate));
+        }
+
+        JSONObject getStats() throws JSONException {
+            JSONObject out = new JSONObject();
+            out.put("depth", queue.size());
+            out.put("maxDepth", maxDepth);
+            out.put("enqueued", enqueuedCount);
+            out.put("sent", sentCount);
+            out.put("averageWait", sentCount == 0 ? 0 : (double) totalWait / sentCount);
+            out.put("rate", rate * 1000);
+            out.put("burst", burst);
+            out.put("bufferFull", bufferFullCount);
+            return out;
+        }
+    }
+
+    /**
+     * The messages of a namespace that are in flight.
+     */
+    private static final class Flow {
+        int inFlight = 0;
+        /** Set when one of them got a full send buffer, until they all have their result. */
+        boolean draining = false;
+    }
+
+    private static final class Outgoing {
+        /** The send order. */
+        final long seq;
+        final String namespace;
+        final String message;
+        final ResultCallback<Status> callback;
+        final long queuedTime;
+        /** Times it was sent again after a full send buffer. */
+        int retries = 0;
+
+        Outgoing(long seq, String namespace, String message, ResultCallback<Status> callback, long queuedTime) {
+            this.seq = seq;
+            this.namespace = namespace;
+            this.message = message;
+            this.callback = callback;
+            this.queuedTime = queuedTime;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.caprockapps.plugins.chromecast;
+
+import androidx.mediarouter.media.MediaRouteSelector;
+
+import com.google.android.gms.cast.CastMediaControlIntent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a MediaRouteSelector for each receiver application id in use, so that we can
+ * discover and switch between receiver applications without rebuilding the selectors.
+ */
+final class ReceiverAppRegistry {
+    /** The selectors, keyed by receiver application id. */
+    private final Map<String, MediaRouteSelector> selectors = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the selector of a receiver application, it is created on first use.
+     * @param applicationId receiver application id
+     * @return the selector matching routes that support the receiver application
+     * @throws IllegalArgumentException if applicationId is not a valid receiver application id
+     */
+    MediaRouteSelector getSelector(String applicationId) {
+        if (applicationId == null) {
+            throw new IllegalArgumentException("applicationId cannot be null");
+        }
+        MediaRouteSelector selector = selectors.get(applicationId);
+        if (selector == null) {
+            // This will throw if the applicationId is invalid
+            selector = new MediaRouteSelector.Builder()
+                    .addControlCategory(CastMediaControlIntent.categoryForCast(applicationId))
+                    .build();
+            selectors.put(applicationId, selector);
+        }
+        return selector;
+    }
+
+    /**
+     * Tests if an application receiver id is valid, valid ids are registered as a side effect.
+     * @param applicationId receiver application id
+     * @return true if valid
+     */
+    boolean register(String applicationId) {
+        try {
+            getSelector(applicationId);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Follows the redirects of a media URL on the phone, so that the receiver gets the final URL
+ * and doesn't pay the hops (tracking, geo, CDN selection) on its slower network.
+ * The final URL is cached per source URL, for as long as the redirects allow it: the smallest
+ * max-age of the hops, an hour if they are all permanent, a minute if none says.
+ * The time saved is the time the hops before the final URL took here.
+ * As browsers do, the credentials (Authorization, Cookie) are only sent to the host of the
+ * source URL, not to the hosts it redirects to.
+ */
+final class RedirectResolver {
+    /** Tag for logging. */
+    private static final String TAG = "RedirectResolver";
+    /** Largest number of hops followed. */
+    private static final int MAX_HOPS = 5;
+    /** Connect and read timeout of each hop (ms). */
+    private static final int TIMEOUT = 3000;
+    /** How long a chain is kept when its hops don't say (ms). */
+    private static final long DEFAULT_TTL = 60 * 1000;
+    /** How long a chain of permanent redirects is kept (ms). */
+    private static final long PERMANENT_TTL = 60 * 60 * 1000;
+    /** Number of cached chains. */
+    private static final int MAX_ENTRIES = 128;
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+    /**
+     * Receives the final URL, on the resolver thread or right away if it is cached.
+     */
+    interface Callback {
+        /**
+         * @param url the final URL, the source URL if it could not be resolved
+         * @param saved the time the hops took here (ms)
+         */
+        void onResolved(String url, long saved);
+    }
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Stats. */
+    private volatile long resolvedCount = 0;
+    private volatile long cacheHitCount = 0;
+    private volatile long failedCount = 0;
+    private volatile long hopCount = 0;
+    private volatile long totalSaved = 0;
+    private volatile long lastSaved = 0;
+
+    /**
+     * Resolves the redirects of a URL.
+     * @param url the source URL
+     * @param headers HTTP headers to send (eg. authentication), may be null
+     * @param callback called with the final URL
+     */
+    void resolve(final String url, final JSONObject headers, final Callback callback) {
+        Entry entry = cache.get(url);
+        if (entry != null && entry.expires > SystemClock.elapsedRealtime()) {
+            cacheHitCount++;
+            onSaved(entry.saved);
+            callback.onResolved(entry.url, entry.saved);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry chain = follow(url, headers);
+                if (chain == null) {
+                    failedCount++;
+                    callback.onResolved(url, 0);
+                    return;
+                }
+                resolvedCount++;
+                if (chain.expires > 0) {
+                    put(url, chain);
+                }
+                onSaved(chain.saved);
+                callback.onResolved(chain.url, chain.saved);
+            }
+        });
+    }
+
+    private void onSaved(long saved) {
+        totalSaved += saved;
+        lastSaved = saved;
+    }
+
+    /**
+     * @return the final URL and its cache expiry, null if a hop failed
+     */
+    private Entry follow(String url, JSONObject headers) {
+        String current = url;
+        String host = hostOf(url);
+        long saved = 0;
+        long ttl = Long.MAX_VALUE;
+        boolean permanent = true;
+        for (int hop = 0; hop <= MAX_HOPS; hop++) {
+            long start = SystemClock.elapsedRealtime();
+            HttpURLConnection connection = null;
+            try {
+                JSONObject hopHeaders = host.equals(hostOf(current)) ? headers : withoutCredentials(headers);
+                connection = open(current, "HEAD", hopHeaders);
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_BAD_METHOD) {
+                    connection.disconnect();
+                    connection = open(current, "GET", hopHeaders);
+                    connection.setRequestProperty("Range", "bytes=0-0");
+                    status = connection.getResponseCode();
+                }
+                String location = connection.getHeaderField("Location");
+                if (status < 300 || status >= 400 || location == null) {
+                    // The final URL, the receiver still has to fetch it
+                    if (hop > 0) {
+                        Log.d(TAG, url + " -> " + current + " in " + hop + " hops, " + saved + "ms");
+                    }
+                    long expires = SystemClock.elapsedRealtime()
+                            + (ttl != Long.MAX_VALUE ? ttl : permanent ? PERMANENT_TTL : DEFAULT_TTL);
+                    return new Entry(current, saved, ttl == 0 ? 0 : expires);
+                }
+                hopCount++;
+                saved += SystemClock.elapsedRealtime() - start;
+                if (status != HttpURLConnection.HTTP_MOVED_PERM && status != 308) {
+                    permanent = false;
+                }
+                ttl = Math.min(ttl, maxAge(connection));
+                current = new URL(new URL(current), location).toString();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not resolve " + current + ": " + e.getMessage());
+                return null;
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+        Log.w(TAG, "Too many redirects for " + url);
+        return null;
+    }
+
+    /**
+     * @return how long the redirect can be kept (ms), Long.MAX_VALUE if it doesn't say
+     */
+    private static long maxAge(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            if (cacheControl.contains("no-store") || cacheControl.contains("no-cache")) {
+                return 0;
+            }
+            Matcher maxAge = MAX_AGE.matcher(cacheControl);
+            if (maxAge.find()) {
+                return Long.parseLong(maxAge.group(1)) * 1000;
+            }
+        }
+        long expires = connection.getExpiration();
+        if (expires > 0) {
+            return Math.max(0, expires - System.currentTimeMillis());
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the host of a URL, lower case, empty if it is not a URL
+     */
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase(Locale.ROOT);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return the headers without the credentials, for another host
+     */
+    static JSONObject withoutCredentials(JSONObject headers) {
+        if (headers == null) {
+            return null;
+        }
+        JSONObject out = new JSONObject();
+        Iterator<String> keys = headers.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String name = key.toLowerCase(Locale.ROOT);
+            if (name.equals("authorization") || name.equals("cookie") || name.equals("proxy-authorization")) {
+                continue;
+            }
+            try {
+                out.put(key, headers.opt(key));
+            } catch (JSONException e) {
+            }
+        }
+        return out;
+    }
+
+    private static HttpURLConnection open(String url, String method, JSONObject headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setInstanceFollowRedirects(false);
+        if (headers != null) {
+            Iterator<String> keys = headers.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                connection.setRequestProperty(key, headers.optString(key));
+            }
+        }
+        return connection;
+    }
+
+    private void put(String url, Entry chain) {
+        long now = SystemClock.elapsedRealtime();
+        if (cache.size() >= MAX_ENTRIES) {
+            Iterator<Entry> it = cache.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expires <= now) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(url, chain);
+    }
+
+    /**
+     * @return the resolution stats, times in ms
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            long loads = resolvedCount + cacheHitCount;
+            out.put("resolved", resolvedCount);
+            out.put("cacheHits", cacheHitCount);
+            out.put("failed", failedCount);
+            out.put("hops", hopCount);
+            out.put("cached", cache.size());
+            out.put("lastSaved", lastSaved);
+            out.put("totalSaved", totalSaved);
+            out.put("averageSaved", loads == 0 ? 0 : (double) totalSaved / loads);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    private static final class Entry {
+        final String url;
+        /** Time the hops took when they were followed (ms). */
+        final long saved;
+        /** 0 if it can't be cached. */
+        final long expires;
+
+        Entry(String url, long saved, long expires) {
+            this.url = url;
+            this.saved = saved;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request/response calls over custom namespaces.
+ * A request is {"__rpc": 1, "id", "method", "params"}, the receiver answers with
+ * {"__rpc": 1, "id", "result"} or {"__rpc": 1, "id", "error": {"code", "message"}}, in any order.
+ * The responses go straight to the waiting PluginCall and are not sent to the message listeners.
+ * At most window calls per namespace wait for their response, the next ones are queued.
+ * Each call has a deadline, counted from the moment it is made.
+ * The matching handler is in custom-receiver/index.html. Must be used from the main thread.
+ */
+final class RpcClient {
+    /** Marks the RPC messages. */
+    static final String RPC_KEY = "__rpc";
+    /** Default deadline of a call (ms). */
+    static final long DEFAULT_TIMEOUT = 10000;
+    /** Number of calls per namespace waiting for their response. */
+    static final int DEFAULT_WINDOW = 8;
+
+    /** Sends the requests. */
+    private final MessageTransport transport;
+    /** Gets us back on the main thread when a call expires. */
+    private final MainThreadDispatcher mainThread = MainThreadDispatcher.getInstance();
+    /** The calls sent and waiting for their response, by id. */
+    private final Map<Integer, Call> inFlight = new HashMap<>();
+    /** The calls waiting for room in the window of their namespace. */
+    private final Map<String, ArrayDeque<Call>> queued = new HashMap<>();
+    /** Number of calls in flight, by namespace. */
+    private final Map<String, Integer> inFlightCounts = new HashMap<>();
+    /** Generates the call ids. */
+    private int nextId = 0;
+
+    /** Stats. */
+    private volatile long callCount = 0;
+    private volatile long succeededCount = 0;
+    private volatile long failedCount = 0;
+    private volatile long timedOutCount = 0;
+    private volatile long respondedCount = 0;
+    private volatile long totalLatency = 0;
+    private volatile int pendingCount = 0;
+
+    /**
+     * @param transport sends the requests
+     */
+    RpcClient(MessageTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Calls a method of the receiver, the plugin call is resolved with {result} or rejected
+     * with the error of the receiver, a send error or a timeout.
+     * @param namespace namespace
+     * @param method method
+     * @param params params, may be null
+     * @param timeout deadline of the call (ms)
+     * @param pluginCall the plugin call
+     */
+    void call(String namespace, String method, Object params, final long timeout, PluginCall pluginCall) {
+        final Call call = new Call(++nextId, namespace, pluginCall);
+        try {
+            call.request.put(RPC_KEY, 1);
+            call.request.put("id", call.id);
+            call.request.put("method", method);
+            if (params != null) {
+                call.request.put("params", params);
+            }
+        } catch (JSONException e) {
+            pluginCall.reject(e.getMessage());
+            return;
+        }
+        callCount++;
+        pendingCount++;
+        call.timeout = TimeoutWheel.getInstance().schedule(timeout, new Runnable() {
+            @Override
+            public void run() {
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remove(call)) {
+                            timedOutCount++;
+                            ChromecastUtilities.rejectTimeout(call.pluginCall, "rpc", timeout);
+                        }
+                    }
+                });
+            }
+        });
+        ArrayDeque<Call> queue = queued.get(namespace);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queued.put(namespace, queue);
+        }
+        queue.add(call);
+        pump(namespace);
+    }
+
+    /**
+     * Sends the queued calls of a namespace while its window has room.
+     */
+    private void pump(String namespace) {
+        ArrayDeque<Call> queue = queued.get(namespace);
+        while (queue != null && !queue.isEmpty() && getInFlightCount(namespace) < DEFAULT_WINDOW) {
+            final Call call = queue.poll();
+            inFlight.put(call.id, call);
+            inFlightCounts.put(namespace, getInFlightCount(namespace) + 1);
+            transport.send(namespace, call.request.toString(), new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull Status status) {
+                    if (!status.isSuccess() && remove(call)) {
+                        failedCount++;
+                        ChromecastUtilities.rejectWithError(call.pluginCall, ChromecastUtilities.createError(
+                                "send_error", "The request could not be sent: " + status.getStatusCode()));
+                    }
+                }
+            });
+        }
+    }
+
+    private int getInFlightCount(String namespace) {
+        Integer count = inFlightCounts.get(namespace);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Forgets a call and lets the next call of its namespace go.
+     * @return false if it was already completed
+     */
+    private boolean remove(Call call) {
+        if (call.completed) {
+            return false;
+        }
+        call.completed = true;
+        call.timeout.cancel();
+        pendingCount--;
+        if (inFlight.remove(call.id) != null) {
+            inFlightCounts.put(call.namespace, getInFlightCount(call.namespace) - 1);
+            pump(call.namespace);
+        } else {
+            ArrayDeque<Call> queue = queued.get(call.namespace);
+            if (queue != null) {
+                queue.remove(call);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes a received message to its call if it is a response.
+     * @param namespace namespace
+     * @param message the received message
+     * @return true if the message was a response, it must not be given to anyone else
+     */
+    boolean onMessage(String namespace, String message) {
+        if (message.indexOf("\"" + RPC_KEY + "\"") == -1) {
+            return false;
+        }
+        JSONObject response;
+        try {
+            response = new JSONObject(message);
+        } catch (JSONException e) {
+            return false;
+        }
+        if (response.optInt(RPC_KEY) != 1 || response.has("method")) {
+            // Not a response, maybe a request from the receiver
+            return false;
+        }
+        Call call = inFlight.get(response.optInt("id", -1));
+        if (call == null || !call.namespace.equals(namespace)) {
+            // Late response of a call that already expired
+            return true;
+        }
+        remove(call);
+        respondedCount++;
+        totalLatency += SystemClock.elapsedRealtime() - call.startTime;
+        JSONObject error = response.optJSONObject("error");
+        if (error != null) {
+            failedCount++;
+            JSObject data;
+            try {
+                data = JSObject.fromJSONObject(error);
+            } catch (JSONException e) {
+                data = null;
+            }
+            call.pluginCall.reject(error.optString("message", "rpc_error"), error.optString("code", "rpc_error"), data);
+            return true;
+        }
+        succeededCount++;
+        JSObject out = new JSObject();
+        out.put("result", response.opt("result"));
+        call.pluginCall.resolve(out);
+        return true;
+    }
+
+    /**
+     * Fails all the calls, eg. when the session changes.
+     * @param reason the error code
+     */
+    void cancelAll(String reason) {
+        // The queued calls first, so they don't get sent when the in flight ones are removed
+        for (ArrayDeque<Call> queue : queued.values()) {
+            for (Call call : new ArrayDeque<>(queue)) {
+                cancel(call, reason);
+            }
+        }
+        for (Call call : new ArrayList<>(inFlight.values())) {
+            cancel(call, reason);
+        }
+    }
+
+    private void cancel(Call call, String reason) {
+        if (remove(call)) {
+            failedCount++;
+            ChromecastUtilities.rejectWithError(call.pluginCall,
+                    ChromecastUtilities.createError(reason, "The RPC call was cancelled"));
+        }
+    }
+
+    /**
+     * @return the RPC stats
+     */
+    JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("calls", callCount);
+            out.put("pending", pendingCount);
+            out.put("succeeded", succeededCount);
+            out.put("failed", failedCount);
+            out.put("timedOut", timedOutCount);
+            out.put("averageLatency", respondedCount == 0 ? 0 : (double) totalLatency / respondedCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * A call waiting for its response.
+     */
+    private static final class Call {
+        final int id;
+        final String namespace;
+        final PluginCall pluginCall;
+        final JSONObject request = new JSONObject();
+        final long startTime = SystemClock.elapsedRealtime();
+        /** Fails the call if it gets no response in time. */
+        TimeoutWheel.Timeout timeout;
+        boolean completed = false;
+
+        Call(int id, String namespace, PluginCall pluginCall) {
+            this.id = id;
+            this.namespace = namespace;
+            this.pluginCall = pluginCall;
+        }
+    }
+}
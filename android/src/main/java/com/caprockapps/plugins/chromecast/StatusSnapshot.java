@@ -0,0 +1,118 @@
+package com.caprockapps.plugins.chromecast;
+
+import com.google.android.gms.cast.ApplicationMetadata;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaQueueData;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.CastSession;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * An immutable copy of the session and media status.
+ * Capturing it is cheap and must happen on the main thread (the Cast objects are updated
+ * there), the JSON conversion can then be done on any thread, see ChromecastUtilities.
+ * MediaInfo, ApplicationMetadata and CastDevice are kept by reference, the SDK replaces them
+ * rather than changing them. MediaStatus is changed in place so its values are copied.
+ */
+final class StatusSnapshot {
+    /** False if there was no session. */
+    final boolean hasSession;
+    final String sessionId;
+    final ApplicationMetadata appMetadata;
+    final CastDevice device;
+    final double volume;
+    final boolean muted;
+    /** The media status, null if there is none. */
+    final Media media;
+
+    /**
+     * A copy of the MediaStatus values.
+     */
+    static final class Media {
+        final int currentItemId;
+        final long streamPosition;
+        final JSONObject customData;
+        final int idleReason;
+        final int playerState;
+        final int loadingItemId;
+        final int preloadedItemId;
+        final double playbackRate;
+        /** False if there was no queue data, repeatMode and startIndex are then meaningless. */
+        final boolean hasQueueData;
+        final int queueDataRepeatMode;
+        final int queueDataStartIndex;
+        final int queueRepeatMode;
+        final double streamVolume;
+        final boolean muted;
+        final long[] activeTrackIds;
+        final MediaInfo mediaInfo;
+        /** The queue items at the time of the capture. */
+        final JSONArray items;
+
+        private Media(MediaStatus status, MediaInfo info, JSONArray queueItems) {
+            currentItemId = status.getCurrentItemId();
+            streamPosition = status.getStreamPosition();
+            customData = status.getCustomData();
+            idleReason = status.getIdleReason();
+            playerState = status.getPlayerState();
+            loadingItemId = status.getLoadingItemId();
+            preloadedItemId = status.getPreloadedItemId();
+            playbackRate = status.getPlaybackRate();
+            MediaQueueData queueData = status.getQueueData();
+            hasQueueData = queueData != null;
+            queueDataRepeatMode = hasQueueData ? queueData.getRepeatMode() : 0;
+            queueDataStartIndex = hasQueueData ? queueData.getStartIndex() : 0;
+            queueRepeatMode = status.getQueueRepeatMode();
+            streamVolume = status.getStreamVolume();
+            muted = status.isMute();
+            long[] trackIds = status.getActiveTrackIds();
+            activeTrackIds = trackIds != null ? trackIds.clone() : null;
+            mediaInfo = info;
+            items = queueItems;
+        }
+    }
+
+    private StatusSnapshot(CastSession session, JSONArray queueItems) {
+        hasSession = session != null;
+        if (session == null) {
+            sessionId = null;
+            appMetadata = null;
+            device = null;
+            volume = 0;
+            muted = false;
+            media = null;
+            return;
+        }
+        sessionId = session.getSessionId();
+        appMetadata = session.getApplicationMetadata();
+        device = session.getCastDevice();
+        double vol = 0;
+        boolean mute = false;
+        try {
+            vol = session.getVolume();
+            mute = session.isMute();
+        } catch (IllegalStateException e) {
+            // Not connected anymore
+        }
+        volume = vol;
+        muted = mute;
+
+        RemoteMediaClient client = session.getRemoteMediaClient();
+        MediaStatus status = client != null ? client.getMediaStatus() : null;
+        media = status != null ? new Media(status, client.getMediaInfo(), queueItems) : null;
+    }
+
+    /**
+     * Captures the status, call this on the main thread.
+     * @param session the session, may be null
+     * @param queueItems the queue items to include in the media object
+     * @return the snapshot
+     */
+    static StatusSnapshot capture(CastSession session, JSONArray queueItems) {
+        return new StatusSnapshot(session, queueItems);
+    }
+}
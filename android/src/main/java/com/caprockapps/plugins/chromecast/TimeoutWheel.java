@@ -0,0 +1,196 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A hashed timer wheel giving deadlines to the pending native operations.
+ * Scheduling and cancelling are O(1), a single thread ticks every TICK ms, and only while
+ * there are pending timeouts. Deadlines are accurate to one tick.
+ * The expired tasks run on the wheel thread, they must be short and thread safe.
+ */
+final class TimeoutWheel {
+    /** Tag for logging. */
+    private static final String TAG = "TimeoutWheel";
+    /** Tick duration (ms). */
+    private static final long TICK = 100;
+    /** Number of buckets, longer delays go around the wheel several times. */
+    private static final int WHEEL_SIZE = 512;
+
+    /** The shared instance. */
+    private static TimeoutWheel instance;
+
+    /** The timeouts, by the tick they expire on modulo WHEEL_SIZE. Guarded by this. */
+    private final List<LinkedList<Timeout>> buckets = new ArrayList<>(WHEEL_SIZE);
+    /** Ticks since the wheel was created. */
+    private long currentTick = 0;
+    /** Number of timeouts neither expired nor cancelled. */
+    private int pendingCount = 0;
+    /** Runs the ticks, null while nothing is pending. */
+    private ScheduledFuture<?> ticker;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Stats. */
+    private long scheduledCount = 0;
+    private long expiredCount = 0;
+    private long cancelledCount = 0;
+
+    /**
+     * @return the shared wheel
+     */
+    static synchronized TimeoutWheel getInstance() {
+        if (instance == null) {
+            instance = new TimeoutWheel();
+        }
+        return instance;
+    }
+
+    private TimeoutWheel() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            buckets.add(new LinkedList<Timeout>());
+        }
+    }
+
+    /**
+     * Runs the task after the delay, unless the returned timeout is cancelled first.
+     * @param delay delay (ms)
+     * @param task the task to run on expiry
+     * @return the timeout
+     */
+    synchronized Timeout schedule(long delay, Runnable task) {
+        long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+        Timeout timeout = new Timeout(this, currentTick + ticks, task);
+        buckets.get((int) (timeout.deadline % WHEEL_SIZE)).add(timeout);
+        pendingCount++;
+        scheduledCount++;
+        if (ticker == null) {
+            ticker = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, TICK, TICK, TimeUnit.MILLISECONDS);
+        }
+        return timeout;
+    }
+
+    private synchronized void onCancelled() {
+        pendingCount--;
+        cancelledCount++;
+        // The timeout is removed from its bucket when the wheel gets there
+    }
+
+    /**
+     * Advances the wheel by one tick and runs the tasks that expired.
+     */
+    private void tick() {
+        List<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            currentTick++;
+            Iterator<Timeout> it = buckets.get((int) (currentTick % WHEEL_SIZE)).iterator();
+            while (it.hasNext()) {
+                Timeout timeout = it.next();
+                if (timeout.isCancelled()) {
+                    it.remove();
+                } else if (timeout.deadline <= currentTick) {
+                    it.remove();
+                    if (timeout.expire()) {
+                        expired.add(timeout);
+                        pendingCount--;
+                        expiredCount++;
+                    }
+                }
+            }
+            if (pendingCount == 0 && ticker != null) {
+                ticker.cancel(false);
+                ticker = null;
+                // Drop the cancelled timeouts still in the buckets
+                for (LinkedList<Timeout> bucket : buckets) {
+                    bucket.clear();
+                }
+            }
+        }
+        for (Timeout timeout : expired) {
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Timeout task failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return the wheel stats
+     */
+    synchronized JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("pending", pendingCount);
+            out.put("scheduled", scheduledCount);
+            out.put("expired", expiredCount);
+            out.put("cancelled", cancelledCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+        private final TimeoutWheel wheel;
+        /** The tick it expires on. */
+        private final long deadline;
+        private final Runnable task;
+        /** Set once it expired or was cancelled. */
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+
+        private Timeout(TimeoutWheel wheel, long deadline, Runnable task) {
+            this.wheel = wheel;
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Cancels the timeout.
+         * @return false if it already expired or was cancelled
+         */
+        boolean cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelled = true;
+            wheel.onCancelled();
+            return true;
+        }
+
+        private boolean expire() {
+            return done.compareAndSet(false, true);
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
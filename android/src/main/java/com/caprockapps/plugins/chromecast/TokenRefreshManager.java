@@ -0,0 +1,309 @@
+package com.caprockapps.plugins.chromecast;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Keeps the token of a secure stream valid while it plays.
+ * The expiry of the token is read from the JWT (exp claim) or from the expiry parameter of the URL.
+ * Some time before it, the client is asked for a fresh token (TOKEN_REFRESH_NEEDED). The token
+ * it gives to refreshToken is pushed to the receiver on a reserved namespace, and to the HlsRelay.
+ * The lead time is the time left on the previous token when the fresh one reached the receiver.
+ * A token that expires before a fresh one was given is reported at its expiry (TOKEN_REFRESH_LATE),
+ * as is a fresh token that reaches the receiver after the expiry.
+ * The matching handler is in custom-receiver/index.html.
+ */
+final class TokenRefreshManager implements Cast.MessageReceivedCallback {
+    /** Tag for logging. */
+    private static final String TAG = "TokenRefreshManager";
+    /** The reserved namespace, messages on it are never sent to the client. */
+    static final String NAMESPACE = "urn:x-cast:com.caprockapps.chromecast.token";
+    /** Default time between the refresh request and the expiry (ms). */
+    static final long DEFAULT_LEAD_TIME = 60000;
+
+    /** Session used to send the tokens. */
+    private final ChromecastSession media;
+    /** Asks the client for tokens and reports the late ones. */
+    private final Listener listener;
+
+    /** The URL the token is for, null if nothing is tracked. */
+    private String contentId;
+    private String token;
+    /** Expiry of the token (ms since the epoch). */
+    private long expiresAt;
+    /** Time between the refresh request and the expiry (ms). */
+    private long leadTime = DEFAULT_LEAD_TIME;
+    /** The refresh request, null if none scheduled. */
+    private TimeoutWheel.Timeout refresh;
+    /** Reports the token as late at its expiry, null if none scheduled. */
+    private TimeoutWheel.Timeout expiry;
+    /** Whether the current token was reported as late. */
+    private boolean lateReported = false;
+
+    /** Stats. */
+    private long requestedCount = 0;
+    private long refreshedCount = 0;
+    private long lateCount = 0;
+    private long acknowledgedCount = 0;
+    private long deliveredCount = 0;
+    private long lastLead = 0;
+    private long minLead = Long.MAX_VALUE;
+    private long totalLead = 0;
+
+    /**
+     * @param session the session the tokens are pushed to
+     * @param tokenListener asks the client for tokens
+     */
+    TokenRefreshManager(ChromecastSession session, Listener tokenListener) {
+        this.media = session;
+        this.listener = tokenListener;
+    }
+
+    /**
+     * Starts tracking the token of a stream, replacing the previous one.
+     * @param url the stream URL
+     * @param authToken its token
+     * @param lead time between the refresh request and the expiry (ms)
+     * @return false if the expiry of the token is not known, it is then not tracked
+     */
+    synchronized boolean track(String url, String authToken, long lead) {
+        stop();
+        long expiry = expiryOf(authToken, url);
+        if (expiry == 0) {
+            return false;
+        }
+        this.contentId = url;
+        this.token = authToken;
+        this.expiresAt = expiry;
+        this.leadTime = lead;
+        media.setMessageLane(NAMESPACE, OutboundScheduler.CONTROL);
+        media.addInternalMessageListener(NAMESPACE, this);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Stops tracking, the statistics are kept.
+     */
+    synchronized void stop() {
+        cancelTimeouts();
+        if (contentId != null) {
+            media.removeInternalMessageListener(NAMESPACE, this);
+            contentId = null;
+            token = null;
+        }
+    }
+
+    private void cancelTimeouts() {
+        if (refresh != null) {
+            refresh.cancel();
+            refresh = null;
+        }
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+    }
+
+    private void schedule() {
+        long now = System.currentTimeMillis();
+        refresh = TimeoutWheel.getInstance().schedule(Math.max(0, expiresAt - leadTime - now), new Runnable() {
+            @Override
+            public void run() {
+                requestRefresh();
+            }
+        });
+        final long expected = expiresAt;
+        expiry = TimeoutWheel.getInstance().schedule(Math.max(0, expiresAt - now), new Runnable() {
+            @Override
+            public void run() {
+                onExpired(expected);
+            }
+        });
+    }
+
+    /**
+     * Reports a token that expired before a fresh one was given.
+     * @param expected the expiry it was scheduled for
+     */
+    private void onExpired(long expected) {
+        JSONObject info = new JSONObject();
+        synchronized (this) {
+            if (contentId == null || expiresAt != expected) {
+                return;
+            }
+            expiry = null;
+            lateReported = true;
+            lateCount++;
+            try {
+                info.put("contentId", contentId);
+                info.put("expiredFor", Math.max(0, System.currentTimeMillis() - expiresAt));
+            } catch (JSONException e) {
+            }
+        }
+        Log.w(TAG, "Token expired before it was refreshed");
+        listener.onRefreshLate(info);
+    }
+
+    private void requestRefresh() {
+        JSONObject info = new JSONObject();
+        synchronized (this) {
+            refresh = null;
+            if (contentId == null) {
+                return;
+            }
+            requestedCount++;
+            try {
+                info.put("contentId", contentId);
+                info.put("expiresAt", expiresAt);
+                info.put("expiresIn", expiresAt - System.currentTimeMillis());
+            } catch (JSONException e) {
+            }
+        }
+        Log.d(TAG, "Token expires in " + info.optLong("expiresIn") + "ms, asking for a new one");
+        listener.onRefreshNeeded(info);
+    }
+
+    /**
+     * Pushes a fresh token to the receiver and schedules its own refresh.
+     * @param newToken the token
+     * @return false if no token is tracked
+     */
+    synchronized boolean refresh(final String newToken) {
+        if (contentId == null) {
+            return false;
+        }
+        cancelTimeouts();
+        final String previous = token;
+        final long previousExpiry = expiresAt;
+        final boolean previousReported = lateReported;
+        lateReported = false;
+        long newExpiry = expiryOf(newToken, null);
+        token = newToken;
+        // Unknown expiry, ask again after the same lifetime as the previous token
+        expiresAt = newExpiry != 0 ? newExpiry : System.currentTimeMillis() + Math.max(leadTime * 2, previousExpiry - System.currentTimeMillis());
+        refreshedCount++;
+        HlsRelay.getInstance().replaceToken(previous, newToken);
+        JSONObject update = new JSONObject();
+        try {
+            update.put("type", "TOKEN_UPDATE");
+            update.put("token", newToken);
+            update.put("expiresAt", expiresAt);
+        } catch (JSONException e) {
+        }
+        media.sendMessage(NAMESPACE, update.toString(), new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                if (status.isSuccess()) {
+                    onDelivered(previousExpiry, previousReported);
+                } else {
+                    Log.w(TAG, "Could not push the token: " + status.getStatusMessage());
+                }
+            }
+        });
+        schedule();
+        return true;
+    }
+
+    /**
+     * Records the lead time of a token that reached the receiver.
+     * @param previousExpiry expiry of the token it replaced (ms since the epoch)
+     * @param reported whether the token it replaced was already reported as late at its expiry
+     */
+    private void onDelivered(long previousExpiry, boolean reported) {
+        long lead = previousExpiry - System.currentTimeMillis();
+        boolean late;
+        JSONObject info = new JSONObject();
+        synchronized (this) {
+            deliveredCount++;
+            lastLead = lead;
+            minLead = Math.min(minLead, lead);
+            totalLead += lead;
+            late = lead <= 0 && !reported;
+            if (late) {
+                lateCount++;
+                try {
+                    info.put("contentId", contentId);
+                    info.put("expiredFor", -lead);
+                } catch (JSONException e) {
+                }
+            }
+        }
+        if (late) {
+            Log.w(TAG, "Token refreshed " + -lead + "ms after its expiry");
+            listener.onRefreshLate(info);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        try {
+            if ("TOKEN_ACK".equals(new JSONObject(message).optString("type"))) {
+                synchronized (this) {
+                    acknowledgedCount++;
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid message: " + message);
+        }
+    }
+
+    /**
+     * @param authToken a token, may be a JWT
+     * @param url the URL it comes from, may be null
+     * @return its expiry (ms since the epoch), 0 if unknown
+     */
+    static long expiryOf(String authToken, String url) {
+        String[] parts = authToken == null ? new String[0] : authToken.split("\\.");
+        if (parts.length == 3) {
+            try {
+                byte[] payload = Base64.getUrlDecoder().decode(parts[1]);
+                long exp = new JSONObject(new String(payload, StandardCharsets.UTF_8)).optLong("exp", 0);
+                if (exp > 0) {
+                    return exp * 1000;
+                }
+            } catch (IllegalArgumentException | JSONException e) {
+                // Not a JWT
+            }
+        }
+        return url == null ? 0 : ManifestPreflight.tokenExpiry(url) * 1000;
+    }
+
+    /**
+     * @return the refresh statistics, times in ms
+     */
+    synchronized JSONObject getStats() {
+        JSONObject out = new JSONObject();
+        try {
+            out.put("tracking", contentId != null);
+            out.put("expiresAt", contentId != null ? expiresAt : 0);
+            out.put("leadTime", leadTime);
+            out.put("requested", requestedCount);
+            out.put("refreshed", refreshedCount);
+            out.put("acknowledged", acknowledgedCount);
+            out.put("late", lateCount);
+            out.put("lastLead", lastLead);
+            out.put("minLead", deliveredCount == 0 ? 0 : minLead);
+            out.put("averageLead", deliveredCount == 0 ? 0 : (double) totalLead / deliveredCount);
+        } catch (JSONException e) {
+        }
+        return out;
+    }
+
+    interface Listener {
+        void onRefreshNeeded(JSONObject info);
+        void onRefreshLate(JSONObject info);
+    }
+}
@@ -0,0 +1,147 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ContentTypeProbeTest {
+
+    private static String sniff(byte[] head) {
+        return ContentTypeProbe.sniff(head, head.length);
+    }
+
+    private static String sniff(String head) {
+        return sniff(head.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void sniffsManifests() {
+        assertEquals(LoadPipeline.HLS_CONTENT_TYPE, sniff("#EXTM3U\n#EXT-X-VERSION:3\n"));
+        assertEquals(LoadPipeline.HLS_CONTENT_TYPE, sniff("ï»¿#EXTM3U\n"));
+        assertEquals("application/dash+xml", sniff("<?xml version=\"1.0\"?>\n<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\">"));
+    }
+
+    @Test
+    public void sniffsMediaContainers() {
+        assertEquals("video/mp4", sniff("\u0000\u0000\u0000 ftypisom\u0000\u0000\u0002\u0000"));
+        assertEquals("video/webm", sniff("\u001AEß£\u0093B\u0082\u0088webm"));
+        assertEquals("video/x-matroska", sniff("\u001AEß£\u0093B\u0082\u0088matroska"));
+        assertEquals("audio/mpeg", sniff("ID3\u0004\u0000"));
+        assertEquals("audio/mpeg", sniff(new byte[] {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x64}));
+
+        byte[] transportStream = new byte[376];
+        transportStream[0] = 0x47;
+        transportStream[188] = 0x47;
+        assertEquals("video/mp2t", sniff(transportStream));
+    }
+
+    @Test
+    public void unknownContent() {
+        assertNull(sniff("<html><body>Forbidden</body></html>"));
+        assertNull(sniff(new byte[0]));
+        // Too short to tell
+        assertNull(sniff(new byte[] {0x47, 0x00}));
+    }
+
+    @Test
+    public void normalizesHeaders() {
+        assertEquals(LoadPipeline.HLS_CONTENT_TYPE, ContentTypeProbe.normalize("application/vnd.apple.mpegurl"));
+        assertEquals(LoadPipeline.HLS_CONTENT_TYPE, ContentTypeProbe.normalize("audio/x-mpegURL; charset=UTF-8"));
+        assertEquals("video/mp4", ContentTypeProbe.normalize(" Video/MP4 "));
+        assertNull(ContentTypeProbe.normalize(null));
+        assertNull(ContentTypeProbe.normalize("application/octet-stream"));
+        assertNull(ContentTypeProbe.normalize("text/html; charset=utf-8"));
+    }
+
+    @Test
+    public void urlsOfTheSameSeriesShareAPattern() {
+        String pattern = ContentTypeProbe.patternOf("https://cdn.example.com/vod/123456/play?token=abc");
+        assertEquals("cdn.example.com/vod/*/play", pattern);
+        assertEquals(pattern, ContentTypeProbe.patternOf("https://cdn.example.com/vod/987/play?token=def"));
+        // Hashes and long ids
+        assertEquals("cdn.example.com/stream/*/master",
+                ContentTypeProbe.patternOf("https://cdn.example.com/stream/5f2b9c1e8a7d4e3f9b6a0c2d/master"));
+        assertEquals("cdn.example.com/live/*", ContentTypeProbe.patternOf("https://cdn.example.com/live/abc12345"));
+        // Short names with a digit are kept
+        assertEquals("cdn.example.com/v2/live", ContentTypeProbe.patternOf("https://cdn.example.com/v2/live"));
+        assertNull(ContentTypeProbe.patternOf("not a url"));
+    }
+
+    @Test
+    public void onlySuccessfulResponsesAreTrusted() {
+        assertTrue(ContentTypeProbe.isSuccess(200));
+        assertTrue(ContentTypeProbe.isSuccess(206));
+        assertFalse(ContentTypeProbe.isSuccess(302));
+        assertFalse(ContentTypeProbe.isSuccess(403));
+        assertFalse(ContentTypeProbe.isSuccess(500));
+    }
+
+    @Test
+    public void sniffsWhenHeadIsRefused() throws Exception {
+        final AtomicInteger gets = new AtomicInteger();
+        final AtomicReference<String> authorization = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    // An error page, its type must not be used
+                    exchange.getResponseHeaders().set("Content-Type", "video/x-error");
+                    exchange.sendResponseHeaders(403, -1);
+                    exchange.close();
+                    return;
+                }
+                gets.incrementAndGet();
+                authorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+                byte[] body = "\u0000\u0000\u0000 ftypisom\u0000\u0000\u0002\u0000".getBytes(StandardCharsets.ISO_8859_1);
+                exchange.sendResponseHeaders(206, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            JSONObject headers = new JSONObject();
+            headers.put("Authorization", "Bearer abc");
+            ContentTypeProbe probe = new ContentTypeProbe();
+            assertEquals("video/mp4", probe(probe, base + "/vod/1234/play", headers));
+            assertEquals("Bearer abc", authorization.get());
+            // Same pattern, from the cache
+            assertEquals("video/mp4", probe(probe, base + "/vod/5678/play", headers));
+            assertEquals(1, gets.get());
+            assertEquals(1, probe.getStats().getLong("cacheHits"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static String probe(ContentTypeProbe probe, String url, JSONObject headers) throws InterruptedException {
+        final AtomicReference<String> out = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        probe.probe(url, headers, new ContentTypeProbe.Callback() {
+            @Override
+            public void onResult(String contentType) {
+                out.set(contentType);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return out.get();
+    }
+}
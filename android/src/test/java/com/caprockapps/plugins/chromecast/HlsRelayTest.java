@@ -0,0 +1,27 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class HlsRelayTest {
+
+    @Test
+    public void sendsTheCredentialsToTheStreamHostOnly() throws Exception {
+        JSONObject headers = new JSONObject();
+        headers.put("Authorization", "Bearer abc");
+        headers.put("Cookie", "session=1");
+        headers.put("User-Agent", "Player");
+
+        assertSame(headers, HlsRelay.headersFor("cdn.example.com", headers, "CDN.example.com"));
+
+        JSONObject other = HlsRelay.headersFor("cdn.example.com", headers, "ads.example.net");
+        assertFalse(other.has("Authorization"));
+        assertFalse(other.has("Cookie"));
+        assertEquals("Player", other.getString("User-Agent"));
+        // Unknown stream host, nothing is trusted
+        assertFalse(HlsRelay.headersFor(null, headers, "cdn.example.com").has("Authorization"));
+        assertNull(HlsRelay.headersFor("cdn.example.com", null, "ads.example.net"));
+    }
+}
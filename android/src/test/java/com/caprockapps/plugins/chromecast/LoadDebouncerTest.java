@@ -0,0 +1,69 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class LoadDebouncerTest {
+    private static final long START = 1000000;
+
+    @Test
+    public void sendsTheFirstLoadRightAway() {
+        LoadDebouncer debouncer = new LoadDebouncer();
+        assertEquals(0, debouncer.submit(START));
+    }
+
+    @Test
+    public void holdsLoadsCloseToThePreviousOne() throws Exception {
+        LoadDebouncer debouncer = new LoadDebouncer();
+        assertEquals(0, debouncer.submit(START));
+        assertEquals(LoadDebouncer.DEFAULT_WINDOW, debouncer.submit(START + 100));
+        // Measured from the previous load, not the first one
+        assertEquals(LoadDebouncer.DEFAULT_WINDOW, debouncer.submit(START + 350));
+        assertEquals(0, debouncer.submit(START + 350 + LoadDebouncer.DEFAULT_WINDOW));
+
+        JSONObject stats = debouncer.getStats();
+        assertEquals(4, stats.getLong("submitted"));
+        assertEquals(2, stats.getLong("held"));
+    }
+
+    @Test
+    public void zeroWindowNeverHolds() {
+        LoadDebouncer debouncer = new LoadDebouncer();
+        debouncer.setWindow(0);
+        assertEquals(0, debouncer.submit(START));
+        assertEquals(0, debouncer.submit(START + 1));
+        debouncer.setWindow(-5);
+        assertEquals(0, debouncer.submit(START + 2));
+    }
+
+    @Test
+    public void customWindow() {
+        LoadDebouncer debouncer = new LoadDebouncer();
+        debouncer.setWindow(1000);
+        debouncer.submit(START);
+        assertEquals(1000, debouncer.submit(START + 900));
+        assertEquals(0, debouncer.submit(START + 2000));
+    }
+
+    @Test
+    public void measuresTheTimeToPlayOfTheLastLoadSent() throws Exception {
+        LoadDebouncer debouncer = new LoadDebouncer();
+        debouncer.onSent("https://cdn.example.com/a.m3u8", System.nanoTime());
+        debouncer.onSent("https://cdn.example.com/b.m3u8", System.nanoTime() - 50 * 1000000L);
+        // Superseded, not measured
+        debouncer.onPlaying("https://cdn.example.com/a.m3u8");
+        assertEquals(0, debouncer.getStats().getLong("played"));
+
+        debouncer.onPlaying("https://cdn.example.com/b.m3u8");
+        JSONObject stats = debouncer.getStats();
+        assertEquals(1, stats.getLong("played"));
+        assertTrue(stats.getLong("lastTimeToPlay") >= 50);
+        assertEquals(stats.getLong("lastTimeToPlay"), stats.getLong("maxTimeToPlay"));
+
+        // Only once per load
+        debouncer.onPlaying("https://cdn.example.com/b.m3u8");
+        assertEquals(1, debouncer.getStats().getLong("played"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+import com.google.android.gms.cast.MediaInfo;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+/**
+ * Compares the cost of a load, from the plugin call to its MediaInfo, through the LoadPipeline and
+ * through the load methods before they shared it.
+ * Skipped unless asked for: ./gradlew testDebugUnitTest -Dbenchmark=true --tests '*LoadPipelineBenchmark'
+ */
+public class LoadPipelineBenchmark {
+    private static final String TAG = "LoadPipelineBenchmark";
+    private static final int ITERATIONS = 50000;
+    private static final String[] URLS = {
+        "https://cdn.example.com/live/master.m3u8?token=abc&exp=1893456000",
+        "https://cdn.example.com/vod/manifest.mpd?sig=x",
+        "https://cdn.example.com/vod/movie.mp4",
+        "https://cdn.example.com/vod/clip.webm?t=10",
+    };
+
+    private PluginCall[] calls;
+
+    @Before
+    public void setUp() throws JSONException {
+        Assume.assumeTrue("Run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+        calls = new PluginCall[URLS.length];
+        for (int i = 0; i < URLS.length; i++) {
+            JSObject data = new JSObject();
+            data.put("contentId", URLS[i]);
+            data.put("customData", new JSObject().put("userId", "42"));
+            data.put("autoPlay", true);
+            data.put("currentTime", 30);
+            data.put("metadata", new JSObject().put("metadataType", 0).put("title", "Media " + i));
+            calls[i] = new PluginCall(null, "Chromecast", String.valueOf(i), "loadMedia", data);
+        }
+    }
+
+    /**
+     * The loadMedia method before the LoadPipeline, up to the MediaInfo its session built.
+     */
+    private static MediaInfo legacyLoadMedia(PluginCall pluginCall) {
+        String contentId = pluginCall.getString("contentId");
+        JSObject customData = pluginCall.getObject("customData", new JSObject());
+        String contentType = pluginCall.getString("contentType", "");
+        Integer duration = pluginCall.getInt("duration", 0);
+        String streamType = pluginCall.getString("streamType", "");
+        Boolean autoPlay = pluginCall.getBoolean("autoPlay", false);
+        Integer currentTime = pluginCall.getInt("currentTime", 0);
+        JSObject metadata = pluginCall.getObject("metadata", new JSObject());
+        JSObject textTrackStyle = pluginCall.getObject("textTrackStyle", new JSObject());
+
+        String detectedContentType = LoadPipelineTest.legacyDetectContentType(contentId, contentType);
+        if (!detectedContentType.equals(contentType)) {
+            Log.d(TAG, "ContentType corrigé de '" + contentType + "' vers '" + detectedContentType + "'");
+            contentType = detectedContentType;
+        }
+        if (detectedContentType.equals("application/x-mpegURL") && (streamType == null || streamType.isEmpty())) {
+            streamType = "LIVE";
+            Log.d(TAG, "StreamType défini sur LIVE pour le stream HLS");
+        }
+        Log.d(TAG, "=== LOAD MEDIA DEBUG ===");
+        Log.d(TAG, "contentId: " + contentId);
+        Log.d(TAG, "contentType: " + contentType);
+        Log.d(TAG, "streamType: " + streamType);
+        Log.d(TAG, "autoPlay: " + autoPlay);
+        Log.d(TAG, "duration: " + duration);
+        Log.d(TAG, "currentTime: " + currentTime);
+        Log.d(TAG, "========================");
+        return ChromecastUtilities.createMediaInfo(contentId, customData, contentType, duration, streamType, metadata,
+                textTrackStyle);
+    }
+
+    private static void load(LoadPipeline pipeline, PluginCall call) {
+        LoadPipeline.Request request = LoadPipeline.Request.fromCall("loadMedia", call);
+        assertNull(pipeline.prepare(request));
+        pipeline.build(request);
+        pipeline.onDispatched(request);
+    }
+
+    @Test
+    public void loadMedia() throws JSONException {
+        // Warm up both
+        LoadPipeline warmUp = new LoadPipeline();
+        for (int i = 0; i < ITERATIONS; i++) {
+            legacyLoadMedia(calls[i % calls.length]);
+            load(warmUp, calls[i % calls.length]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            legacyLoadMedia(calls[i % calls.length]);
+        }
+        double legacy = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+
+        // The loads metrics measure the same span, from the plugin call to the MediaInfo
+        LoadPipeline pipeline = new LoadPipeline();
+        for (int i = 0; i < ITERATIONS; i++) {
+            load(pipeline, calls[i % calls.length]);
+        }
+        JSONObject loads = pipeline.getStats();
+        assertEquals(ITERATIONS, loads.getLong("dispatched"));
+        double current = loads.getDouble("averageOverhead");
+        assertTrue(String.format(Locale.ROOT, "averageOverhead %.4fms, %.4fms before the LoadPipeline", current, legacy),
+                current <= legacy * 2);
+    }
+}
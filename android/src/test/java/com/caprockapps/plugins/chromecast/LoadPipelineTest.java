@@ -0,0 +1,108 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LoadPipelineTest {
+    private static final String[] URLS = {
+        "https://cdn.example.com/live/master.m3u8",
+        "https://cdn.example.com/live/MASTER.M3U8?token=abc&exp=1893456000",
+        "https://cdn.example.com/vod/manifest.mpd?sig=x",
+        "https://cdn.example.com/vod/movie.mp4",
+        "https://cdn.example.com/vod/clip.webm?t=10",
+        "https://cdn.example.com/vod/film.MKV",
+        "https://cdn.example.com/vod/play?id=123",
+        "https://cdn.example.com/vod/playlist.m3u8.txt",
+        "https://cdn.example.com/redirect?next=/a.m3u8",
+        "https://cdn.example.com/audio.mp3",
+        "",
+        null,
+    };
+    private static final String[] PROVIDED = {null, "", "audio/mpeg", "application/x-mpegURL"};
+
+    /**
+     * The content type detection of the load methods before they shared the pipeline, without its logging.
+     */
+    static String legacyDetectContentType(String url, String providedContentType) {
+        if (url == null) {
+            return providedContentType != null ? providedContentType : "video/mp4";
+        }
+        String baseUrl = url.split("\\?")[0].toLowerCase();
+        if (baseUrl.endsWith(".m3u8")) {
+            return "application/x-mpegURL";
+        } else if (baseUrl.endsWith(".mpd")) {
+            return "application/dash+xml";
+        } else if (baseUrl.endsWith(".mp4")) {
+            return "video/mp4";
+        } else if (baseUrl.endsWith(".webm")) {
+            return "video/webm";
+        } else if (baseUrl.endsWith(".mkv")) {
+            return "video/x-matroska";
+        }
+        return providedContentType != null ? providedContentType : "video/mp4";
+    }
+
+    @Test
+    public void detectsTheSameContentTypesAsBefore() {
+        for (String url : URLS) {
+            for (String provided : PROVIDED) {
+                assertEquals(url + " / " + provided, legacyDetectContentType(url, provided),
+                        LoadPipeline.detectContentType(url, provided));
+            }
+        }
+    }
+
+    @Test
+    public void unknownExtensionsAreLeftToTheProbe() {
+        assertNull(LoadPipeline.typeFromExtension("https://cdn.example.com/vod/play?id=123"));
+        assertNull(LoadPipeline.typeFromExtension(null));
+        assertEquals(LoadPipeline.HLS_CONTENT_TYPE, LoadPipeline.typeFromExtension("https://cdn.example.com/a.m3u8?x=.mp4"));
+    }
+
+    @Test
+    public void prepareNormalizesTheRequest() {
+        LoadPipeline pipeline = new LoadPipeline();
+        LoadPipeline.Request request = new LoadPipeline.Request("loadMedia");
+        request.contentId = "https://cdn.example.com/live/master.m3u8?token=abc";
+        request.streamType = "LIVE";
+        assertNull(pipeline.prepare(request));
+        assertEquals(LoadPipeline.HLS_CONTENT_TYPE, request.contentType);
+        assertEquals("live", request.streamType);
+        assertFalse(request.needsProbe);
+        // The query, and its token, are kept
+        assertEquals("https://cdn.example.com/live/master.m3u8?token=abc", request.contentId);
+    }
+
+    @Test
+    public void prepareKeepsTheProvidedContentType() {
+        LoadPipeline pipeline = new LoadPipeline();
+        LoadPipeline.Request request = new LoadPipeline.Request("loadMedia");
+        request.contentId = "https://cdn.example.com/vod/movie.mp4";
+        request.contentType = "video/webm";
+        request.streamType = null;
+        assertNull(pipeline.prepare(request));
+        assertEquals("video/webm", request.contentType);
+        assertEquals("", request.streamType);
+    }
+
+    @Test
+    public void prepareProbesUnknownExtensions() {
+        LoadPipeline.Request request = new LoadPipeline.Request("launchMedia");
+        request.contentId = "https://cdn.example.com/vod/play?id=123";
+        assertNull(new LoadPipeline().prepare(request));
+        assertNull(request.contentType);
+        assertTrue(request.needsProbe);
+    }
+
+    @Test
+    public void prepareRejectsMissingOrUnreadableMedia() {
+        LoadPipeline pipeline = new LoadPipeline();
+        LoadPipeline.Request request = new LoadPipeline.Request("loadMedia");
+        assertEquals("contentId est requis", pipeline.prepare(request));
+        request.contentId = "";
+        assertEquals("contentId est requis", pipeline.prepare(request));
+        request.contentId = "/does/not/exist.mp4";
+        assertTrue(pipeline.prepare(request).startsWith("Fichier introuvable"));
+    }
+}
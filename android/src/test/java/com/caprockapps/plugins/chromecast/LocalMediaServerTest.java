@@ -0,0 +1,68 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+
+public class LocalMediaServerTest {
+
+    @Test
+    public void parsesByteRanges() {
+        assertArrayEquals(new long[] {0, 499}, LocalMediaServer.parseRange("bytes=0-499", 1000));
+        assertArrayEquals(new long[] {500, 999}, LocalMediaServer.parseRange("bytes=500-", 1000));
+        // The last byte is clamped to the file
+        assertArrayEquals(new long[] {900, 999}, LocalMediaServer.parseRange("bytes=900-5000", 1000));
+        assertArrayEquals(new long[] {999, 999}, LocalMediaServer.parseRange("bytes=999-999", 1000));
+    }
+
+    @Test
+    public void parsesSuffixRanges() {
+        assertArrayEquals(new long[] {800, 999}, LocalMediaServer.parseRange("bytes=-200", 1000));
+        // A suffix longer than the file is the whole file
+        assertArrayEquals(new long[] {0, 999}, LocalMediaServer.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void unsatisfiableRanges() {
+        assertEquals(0, LocalMediaServer.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, LocalMediaServer.parseRange("bytes=2000-3000", 1000).length);
+        assertEquals(0, LocalMediaServer.parseRange("bytes=500-400", 1000).length);
+        assertEquals(0, LocalMediaServer.parseRange("bytes=-0", 1000).length);
+        assertEquals(0, LocalMediaServer.parseRange("bytes=0-", 0).length);
+    }
+
+    @Test
+    public void wholeFileWhenTheRangeIsIgnored() {
+        assertNull(LocalMediaServer.parseRange(null, 1000));
+        assertNull(LocalMediaServer.parseRange("items=0-10", 1000));
+        assertNull(LocalMediaServer.parseRange("bytes=0-10,20-30", 1000));
+        assertNull(LocalMediaServer.parseRange("bytes=abc-", 1000));
+        assertNull(LocalMediaServer.parseRange("bytes=10", 1000));
+        assertNull(LocalMediaServer.parseRange("bytes=-", 1000));
+    }
+
+    @Test
+    public void recognizesLocalUrls() {
+        assertTrue(LocalMediaServer.isLocal("/storage/emulated/0/Movies/a.mp4"));
+        assertTrue(LocalMediaServer.isLocal("file:///storage/emulated/0/Movies/a.mp4"));
+        assertTrue(LocalMediaServer.isLocal("http://localhost/_capacitor_file_/data/a.mp4"));
+        assertFalse(LocalMediaServer.isLocal("//cdn.example.com/a.mp4"));
+        assertFalse(LocalMediaServer.isLocal("https://cdn.example.com/a.mp4"));
+    }
+
+    @Test
+    public void mapsLocalUrlsToFiles() {
+        assertEquals(new File("/data/My Movie.mp4"), LocalMediaServer.toFile("file:///data/My%20Movie.mp4"));
+        assertEquals(new File("/data/a+b.mp4"), LocalMediaServer.toFile("http://localhost/_capacitor_file_/data/a+b.mp4"));
+        assertEquals(new File("/data/100%.mp4"), LocalMediaServer.toFile("/data/100%.mp4"));
+    }
+
+    @Test
+    public void guessesContentTypes() {
+        assertEquals("video/mp2t", LocalMediaServer.guessContentType("segment.TS"));
+        assertEquals("text/vtt", LocalMediaServer.guessContentType("subtitles.vtt"));
+        assertEquals("video/mp4", LocalMediaServer.guessContentType("unknown"));
+    }
+}
@@ -0,0 +1,199 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ManifestPreflightTest {
+    private static final String MASTER = "#EXTM3U\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=800000,RESOLUTION=640x360,CODECS=\"avc1.4d401e,mp4a.40.2\"\n"
+            + "low/index.m3u8\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=5000000,RESOLUTION=1920x1080,CODECS=\"dvh1.05.06,ec-3\"\n"
+            + "high/index.m3u8\n";
+    private static final String MEDIA = "#EXTM3U\n"
+            + "#EXT-X-TARGETDURATION:6\n"
+            + "#EXTINF:6.0,\n"
+            + "\n"
+            + "segment0.ts\n"
+            + "#EXTINF:6.0,\n"
+            + "segment1.ts\n";
+
+    /** Served bodies by path, a missing path is a 404. */
+    private final Map<String, String> bodies = new HashMap<>();
+    private HttpServer server;
+    private String base;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = bodies.get(exchange.getRequestURI().getPath());
+                byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+                boolean head = exchange.getRequestMethod().equals("HEAD");
+                exchange.sendResponseHeaders(body == null ? 404 : 200, head ? -1 : bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                if (!head) {
+                    out.write(bytes);
+                }
+                out.close();
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private ManifestPreflight.Result check(String url) throws InterruptedException {
+        return check(new ManifestPreflight(), url);
+    }
+
+    private ManifestPreflight.Result check(ManifestPreflight preflight, String url) throws InterruptedException {
+        final AtomicReference<ManifestPreflight.Result> out = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        preflight.check(url, null, new ManifestPreflight.Callback() {
+            @Override
+            public void onResult(ManifestPreflight.Result result) {
+                out.set(result);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return out.get();
+    }
+
+    @Test
+    public void readsTokenExpiries() {
+        assertEquals(1893456000L, ManifestPreflight.tokenExpiry("https://cdn.example.com/a.m3u8?exp=1893456000&sig=x"));
+        // In ms
+        assertEquals(1893456000L, ManifestPreflight.tokenExpiry("https://cdn.example.com/a.m3u8?sig=x&expires=1893456000123"));
+        // Akamai tokens
+        assertEquals(1893456000L, ManifestPreflight.tokenExpiry("https://cdn.example.com/a.m3u8?hdnts=st=1893450000~exp=1893456000~hmac=ab"));
+        assertEquals(0, ManifestPreflight.tokenExpiry("https://cdn.example.com/a.m3u8"));
+        // Not a parameter of its own, or not a timestamp
+        assertEquals(0, ManifestPreflight.tokenExpiry("https://cdn.example.com/a.m3u8?myexp=1893456000"));
+        assertEquals(0, ManifestPreflight.tokenExpiry("https://cdn.example.com/a.m3u8?exp=60"));
+    }
+
+    @Test
+    public void readsTheFirstSegmentOfAMediaPlaylist() throws IOException {
+        ManifestPreflight.Result result = new ManifestPreflight.Result("https://cdn.example.com/live/index.m3u8");
+        new ManifestPreflight().checkHls(result.url, MEDIA, null, result);
+        assertNull(result.reason);
+        assertEquals("https://cdn.example.com/live/segment0.ts", result.firstSegment);
+        assertEquals(0, result.variants.length());
+    }
+
+    @Test
+    public void readsTheVariantsOfAMasterPlaylist() throws Exception {
+        // None playable, so no media playlist is fetched
+        String master = "#EXTM3U\n#EXT-X-STREAM-INF:BANDWIDTH=5000000,CODECS=\"dvh1.05.06\"\nhigh.m3u8\n";
+        ManifestPreflight.Result result = new ManifestPreflight.Result("https://cdn.example.com/master.m3u8");
+        new ManifestPreflight().checkHls(result.url, master, null, result);
+        assertEquals(1, result.variants.length());
+        assertEquals(5000000, result.variants.getJSONObject(0).getLong("bandwidth"));
+        assertEquals("https://cdn.example.com/high.m3u8", result.variants.getJSONObject(0).getString("url"));
+        assertFalse(result.variants.getJSONObject(0).getBoolean("playable"));
+        assertEquals(0, result.playableVariants);
+        assertNull(result.firstSegment);
+    }
+
+    @Test
+    public void readsDashRepresentations() throws Exception {
+        String mpd = "<?xml version=\"1.0\"?>\n<MPD>\n<Period>\n"
+                + "<AdaptationSet mimeType=\"video/mp4\" codecs=\"avc1.64001f\">\n"
+                + "<SegmentTemplate initialization=\"$RepresentationID$/init.mp4\" media=\"$RepresentationID$/$Number$.m4s\"/>\n"
+                + "<Representation id=\"720p\" bandwidth=\"3000000\" width=\"1280\" height=\"720\"/>\n"
+                + "</AdaptationSet>\n</Period>\n</MPD>\n";
+        ManifestPreflight.Result result = new ManifestPreflight.Result("https://cdn.example.com/vod/manifest.mpd");
+        new ManifestPreflight().checkDash(result.url, mpd, result);
+        assertEquals(1, result.playableVariants);
+        assertEquals("1280x720", result.variants.getJSONObject(0).getString("resolution"));
+        assertEquals("https://cdn.example.com/vod/720p/init.mp4", result.firstSegment);
+    }
+
+    @Test
+    public void passesAReachableStream() throws Exception {
+        bodies.put("/master.m3u8", MASTER);
+        bodies.put("/low/index.m3u8", MEDIA);
+        bodies.put("/low/segment0.ts", "segment");
+        ManifestPreflight.Result result = check(base + "/master.m3u8");
+        assertNull(result.message, result.reason);
+        assertEquals("hls", result.type);
+        assertEquals(2, result.variants.length());
+        assertEquals(1, result.playableVariants);
+        assertEquals(base + "/low/segment0.ts", result.firstSegment);
+        assertEquals(200, result.segmentStatus);
+    }
+
+    @Test
+    public void failsOnAnUnreachableSegment() throws Exception {
+        bodies.put("/master.m3u8", MASTER);
+        bodies.put("/low/index.m3u8", MEDIA);
+        assertEquals(ManifestPreflight.SEGMENT_UNREACHABLE, check(base + "/master.m3u8").reason);
+    }
+
+    @Test
+    public void variantErrorsAreNotCached() throws Exception {
+        bodies.put("/master.m3u8", MASTER);
+        ManifestPreflight preflight = new ManifestPreflight();
+        ManifestPreflight.Result result = check(preflight, base + "/master.m3u8");
+        assertEquals(ManifestPreflight.HTTP_ERROR, result.reason);
+        assertTrue(result.message, result.message.contains("404"));
+
+        // The CDN recovered, the retry checks again
+        bodies.put("/low/index.m3u8", MEDIA);
+        bodies.put("/low/segment0.ts", "segment");
+        result = check(preflight, base + "/master.m3u8");
+        assertNull(result.message, result.reason);
+        assertFalse(result.cached);
+    }
+
+    @Test
+    public void failsOnAnInvalidVariant() throws Exception {
+        bodies.put("/master.m3u8", MASTER);
+        bodies.put("/low/index.m3u8", "#EXTM3U\n#EXT-X-ENDLIST\n");
+        assertEquals(ManifestPreflight.INVALID_MANIFEST, check(base + "/master.m3u8").reason);
+    }
+
+    @Test
+    public void failsOnHttpErrors() throws Exception {
+        ManifestPreflight.Result result = check(base + "/missing.m3u8");
+        assertEquals(ManifestPreflight.HTTP_ERROR, result.reason);
+        assertEquals(404, result.status);
+    }
+
+    @Test
+    public void failsOnAnExpiredTokenWithoutARequest() throws Exception {
+        ManifestPreflight.Result result = check(base + "/master.m3u8?exp=1000000000");
+        assertEquals(ManifestPreflight.TOKEN_EXPIRED, result.reason);
+        assertEquals(0, result.status);
+    }
+
+    @Test
+    public void failsOnAnInvalidManifest() throws Exception {
+        bodies.put("/master.m3u8", "<html>Not found</html>");
+        assertEquals(ManifestPreflight.INVALID_MANIFEST, check(base + "/master.m3u8").reason);
+    }
+}
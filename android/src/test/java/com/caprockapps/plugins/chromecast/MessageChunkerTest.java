@@ -0,0 +1,227 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MessageChunkerTest {
+    private static final String NAMESPACE = "urn:x-cast:test";
+
+    /**
+     * Records the sent messages, their callbacks run when the test acknowledges them.
+     */
+    private static final class RecordingTransport implements MessageTransport {
+        final List<String> sent = new ArrayList<>();
+        final List<ResultCallback<Status>> callbacks = new ArrayList<>();
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            sent.add(message);
+            callbacks.add(callback);
+        }
+
+        /**
+         * Acknowledges the messages until there is nothing left in flight.
+         */
+        void ackAll(int statusCode) {
+            for (int i = 0; i < callbacks.size(); i++) {
+                ResultCallback<Status> callback = callbacks.get(i);
+                callbacks.set(i, null);
+                if (callback != null) {
+                    callback.onResult(new Status(statusCode));
+                }
+            }
+        }
+    }
+
+    private static final class ResultHolder implements ResultCallback<Status> {
+        Status status;
+
+        @Override
+        public void onResult(@NonNull Status result) {
+            status = result;
+        }
+    }
+
+    private static String largeMessage(int length) {
+        StringBuilder out = new StringBuilder("{\"text\":\"");
+        Random random = new Random(42);
+        while (out.length() < length) {
+            // Some multi-byte characters so that chunks split them
+            out.append(random.nextInt(10) == 0 ? 'é' : (char) ('a' + random.nextInt(26)));
+        }
+        return out.append("\"}").toString();
+    }
+
+    private static List<String> chunksOf(String message, int chunkSize) {
+        RecordingTransport transport = new RecordingTransport();
+        MessageChunker chunker = new MessageChunker(transport);
+        chunker.configure(chunkSize, 4);
+        chunker.send(NAMESPACE, message, null);
+        transport.ackAll(CastStatusCodes.SUCCESS);
+        return transport.sent;
+    }
+
+    @Test
+    public void sendsSmallMessagesAsIs() {
+        RecordingTransport transport = new RecordingTransport();
+        new MessageChunker(transport).send(NAMESPACE, "{\"a\":1}", null);
+        assertEquals(List.of("{\"a\":1}"), transport.sent);
+    }
+
+    @Test
+    public void splitsLargeMessagesWithinTheWindow() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MessageChunker chunker = new MessageChunker(transport);
+        chunker.configure(16 * 1024, 2);
+        ResultHolder result = new ResultHolder();
+        chunker.send(NAMESPACE, largeMessage(100 * 1024), result);
+        // Only the window is in flight until the first ones are acknowledged
+        assertEquals(2, transport.sent.size());
+        assertNull(result.status);
+
+        transport.ackAll(CastStatusCodes.SUCCESS);
+        assertTrue(transport.sent.size() > 6);
+        assertTrue(result.status.isSuccess());
+        for (int i = 0; i < transport.sent.size(); i++) {
+            JSONObject chunk = new JSONObject(transport.sent.get(i));
+            assertEquals(1, chunk.getInt(MessageChunker.CHUNK_KEY));
+            assertEquals(i, chunk.getInt("seq"));
+            assertEquals(transport.sent.size(), chunk.getInt("total"));
+            assertTrue(transport.sent.get(i).length() < 64 * 1024);
+        }
+    }
+
+    @Test
+    public void messagesSentDuringATransferWaitForIt() {
+        RecordingTransport transport = new RecordingTransport();
+        MessageChunker chunker = new MessageChunker(transport);
+        chunker.send(NAMESPACE, largeMessage(100 * 1024), null);
+        chunker.send(NAMESPACE, "{\"after\":true}", null);
+        assertFalse(transport.sent.contains("{\"after\":true}"));
+        transport.ackAll(CastStatusCodes.SUCCESS);
+        assertEquals("{\"after\":true}", transport.sent.get(transport.sent.size() - 1));
+    }
+
+    @Test
+    public void failedChunkStopsTheTransfer() {
+        RecordingTransport transport = new RecordingTransport();
+        MessageChunker chunker = new MessageChunker(transport);
+        chunker.configure(16 * 1024, 1);
+        ResultHolder result = new ResultHolder();
+        chunker.send(NAMESPACE, largeMessage(100 * 1024), result);
+        transport.ackAll(CastStatusCodes.NETWORK_ERROR);
+        assertEquals(1, transport.sent.size());
+        assertEquals(CastStatusCodes.NETWORK_ERROR, result.status.getStatusCode());
+    }
+
+    @Test
+    public void reassemblesInOrder() {
+        String message = largeMessage(100 * 1024);
+        List<String> chunks = chunksOf(message, 16 * 1024);
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            assertNull(receiver.reassemble(NAMESPACE, chunks.get(i)));
+        }
+        assertEquals(message, receiver.reassemble(NAMESPACE, chunks.get(chunks.size() - 1)));
+    }
+
+    @Test
+    public void reassemblesOutOfOrderWithDuplicates() {
+        String message = largeMessage(100 * 1024);
+        List<String> chunks = new ArrayList<>(chunksOf(message, 8 * 1024));
+        chunks.add(chunks.get(0));
+        Collections.shuffle(chunks, new Random(7));
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        String result = null;
+        for (String chunk : chunks) {
+            String out = receiver.reassemble(NAMESPACE, chunk);
+            if (out != null) {
+                assertNull("reassembled twice", result);
+                result = out;
+            }
+        }
+        assertEquals(message, result);
+    }
+
+    @Test
+    public void passesThroughPlainMessages() {
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        assertEquals("{\"a\":1}", receiver.reassemble(NAMESPACE, "{\"a\":1}"));
+        assertEquals("not json \"__chunk\"", receiver.reassemble(NAMESPACE, "not json \"__chunk\""));
+    }
+
+    @Test
+    public void dropsCorruptedMessages() throws Exception {
+        String message = largeMessage(60 * 1024);
+        List<String> chunks = chunksOf(message, 16 * 1024);
+        JSONObject tampered = new JSONObject(chunks.get(1));
+        String data = tampered.getString("data");
+        tampered.put("data", (data.charAt(0) == 'A' ? "B" : "A") + data.substring(1));
+        chunks.set(1, tampered.toString());
+
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        for (String chunk : chunks) {
+            assertNull(receiver.reassemble(NAMESPACE, chunk));
+        }
+        assertEquals(1, receiver.getStats().getLong("corrupted"));
+        assertEquals(0, receiver.getStats().getLong("partials"));
+    }
+
+    @Test
+    public void dropsChunksWithInvalidData() throws Exception {
+        List<String> chunks = chunksOf(largeMessage(60 * 1024), 16 * 1024);
+        JSONObject invalid = new JSONObject(chunks.get(0));
+        invalid.put("data", "not base64 !");
+
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        assertNull(receiver.reassemble(NAMESPACE, invalid.toString()));
+        assertEquals(1, receiver.getStats().getLong("corrupted"));
+        assertEquals(0, receiver.getStats().getLong("partials"));
+    }
+
+    @Test
+    public void dropsChunksWithInvalidSequence() throws Exception {
+        List<String> chunks = chunksOf(largeMessage(60 * 1024), 16 * 1024);
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        for (int seq : new int[] {-1, chunks.size(), chunks.size() + 10}) {
+            JSONObject chunk = new JSONObject(chunks.get(0));
+            chunk.put("seq", seq);
+            assertNull(receiver.reassemble(NAMESPACE, chunk.toString()));
+        }
+        assertEquals(0, receiver.getStats().getLong("partials"));
+    }
+
+    @Test
+    public void keepsMessagesWithTheSameIdApart() throws Exception {
+        // A reloaded receiver restarts its ids
+        String first = largeMessage(60 * 1024);
+        String second = largeMessage(90 * 1024);
+        List<String> a = chunksOf(first, 16 * 1024);
+        List<String> b = chunksOf(second, 16 * 1024);
+        assertEquals(new JSONObject(a.get(0)).getString("id"), new JSONObject(b.get(0)).getString("id"));
+
+        MessageChunker receiver = new MessageChunker(new RecordingTransport());
+        assertNull(receiver.reassemble(NAMESPACE, a.get(0)));
+        for (int i = 0; i < b.size() - 1; i++) {
+            assertNull(receiver.reassemble(NAMESPACE, b.get(i)));
+        }
+        assertEquals(second, receiver.reassemble(NAMESPACE, b.get(b.size() - 1)));
+        for (int i = 1; i < a.size() - 1; i++) {
+            assertNull(receiver.reassemble(NAMESPACE, a.get(i)));
+        }
+        assertEquals(first, receiver.reassemble(NAMESPACE, a.get(a.size() - 1)));
+    }
+}
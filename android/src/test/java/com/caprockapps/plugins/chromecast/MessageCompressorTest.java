@@ -0,0 +1,125 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MessageCompressorTest {
+    private static final String NAMESPACE = "urn:x-cast:test";
+
+    private static final class RecordingTransport implements MessageTransport {
+        final List<String> sent = new ArrayList<>();
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            sent.add(message);
+        }
+    }
+
+    private static String repetitiveMessage() {
+        StringBuilder out = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 200; i++) {
+            out.append(i == 0 ? "" : ",").append("{\"title\":\"Épisode ").append(i).append("\",\"watched\":false}");
+        }
+        return out.append("]}").toString();
+    }
+
+    private static String randomMessage(long seed) {
+        Random random = new Random(seed);
+        StringBuilder out = new StringBuilder("{\"data\":\"");
+        for (int i = 0; i < 4000; i++) {
+            out.append((char) ('!' + random.nextInt(90)));
+        }
+        return out.append("\"}").toString().replace("\\", "/");
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MessageCompressor compressor = new MessageCompressor(transport);
+        compressor.configure(true, MessageCompressor.DEFAULT_THRESHOLD);
+        String message = repetitiveMessage();
+        compressor.send(NAMESPACE, message, null);
+
+        String sent = transport.sent.get(0);
+        assertTrue(sent.length() < message.length() / 2);
+        JSONObject wrapper = new JSONObject(sent);
+        assertEquals(1, wrapper.getInt(MessageCompressor.DEFLATE_KEY));
+        assertEquals(message.getBytes("UTF-8").length, wrapper.getInt("size"));
+        assertEquals(message, new MessageCompressor(transport).decompress(NAMESPACE, sent));
+        assertEquals(1, compressor.getStats().getLong("compressed"));
+    }
+
+    @Test
+    public void sendsAsIsWhenDisabledOrSmall() {
+        RecordingTransport transport = new RecordingTransport();
+        MessageCompressor compressor = new MessageCompressor(transport);
+        String message = repetitiveMessage();
+        compressor.send(NAMESPACE, message, null);
+        compressor.configure(true, message.length() * 4);
+        compressor.send(NAMESPACE, message, null);
+        assertEquals(List.of(message, message), transport.sent);
+    }
+
+    @Test
+    public void skipsNamespacesThatDontShrink() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MessageCompressor compressor = new MessageCompressor(transport);
+        compressor.configure(true, 100);
+        for (int i = 0; i < 5; i++) {
+            compressor.send(NAMESPACE, randomMessage(i), null);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(randomMessage(i), transport.sent.get(i));
+        }
+        JSONObject stats = compressor.getStats();
+        assertEquals(3, stats.getLong("notShrunk"));
+        assertEquals(2, stats.getLong("skipped"));
+        // Other namespaces are still compressed
+        compressor.send("urn:x-cast:other", repetitiveMessage(), null);
+        assertTrue(transport.sent.get(5).contains(MessageCompressor.DEFLATE_KEY));
+    }
+
+    @Test
+    public void passesThroughPlainMessages() {
+        MessageCompressor compressor = new MessageCompressor(new RecordingTransport());
+        assertEquals("{\"a\":1}", compressor.decompress(NAMESPACE, "{\"a\":1}"));
+        assertEquals("{\"__deflate\":0}", compressor.decompress(NAMESPACE, "{\"__deflate\":0}"));
+    }
+
+    @Test
+    public void dropsCorruptedMessages() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MessageCompressor compressor = new MessageCompressor(transport);
+        compressor.configure(true, 100);
+        compressor.send(NAMESPACE, repetitiveMessage(), null);
+        JSONObject wrapper = new JSONObject(transport.sent.get(0));
+
+        JSONObject truncated = new JSONObject(wrapper.toString());
+        String data = wrapper.getString("data");
+        truncated.put("data", data.substring(0, data.length() / 2 / 4 * 4));
+        JSONObject invalid = new JSONObject(wrapper.toString());
+        invalid.put("data", "not base64 !");
+        JSONObject tooLarge = new JSONObject(wrapper.toString());
+        tooLarge.put("size", Integer.MAX_VALUE);
+        JSONObject wrongSize = new JSONObject(wrapper.toString());
+        wrongSize.put("size", wrapper.getInt("size") + 1);
+
+        MessageCompressor receiver = new MessageCompressor(transport);
+        assertNull(receiver.decompress(NAMESPACE, truncated.toString()));
+        assertNull(receiver.decompress(NAMESPACE, invalid.toString()));
+        assertNull(receiver.decompress(NAMESPACE, tooLarge.toString()));
+        assertNull(receiver.decompress(NAMESPACE, wrongSize.toString()));
+        assertEquals(4, receiver.getStats().getLong("corrupted"));
+        // Still usable afterwards
+        assertEquals(repetitiveMessage(), receiver.decompress(NAMESPACE, wrapper.toString()));
+    }
+}
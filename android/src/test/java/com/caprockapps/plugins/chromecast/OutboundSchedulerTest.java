@@ -0,0 +1,184 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+public class OutboundSchedulerTest {
+    private static final String NAMESPACE = "urn:x-cast:test";
+    private static final String OTHER = "urn:x-cast:other";
+
+    /**
+     * Records the sent messages, the test gives their results.
+     */
+    private static final class FakeTransport implements MessageTransport {
+        final List<String> sent = new ArrayList<>();
+        /** The callbacks of the messages in flight, by message. */
+        final Map<String, ResultCallback<Status>> inFlight = new LinkedHashMap<>();
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            sent.add(message);
+            inFlight.put(message, callback);
+        }
+
+        void respond(String message, int statusCode) {
+            ResultCallback<Status> callback = inFlight.remove(message);
+            assertNotNull(message + " is not in flight", callback);
+            callback.onResult(new Status(statusCode));
+        }
+
+        /**
+         * Acknowledges the messages in flight, and the ones they let through, until none is left.
+         */
+        void ackAll() {
+            while (!inFlight.isEmpty()) {
+                respond(inFlight.keySet().iterator().next(), CastStatusCodes.SUCCESS);
+            }
+        }
+    }
+
+    private static final class Clock implements LongSupplier {
+        long now = 1000;
+
+        @Override
+        public long getAsLong() {
+            return now;
+        }
+    }
+
+    /**
+     * Records the results the callers get.
+     */
+    private static final class Results {
+        final List<String> results = new ArrayList<>();
+
+        ResultCallback<Status> of(final String message) {
+            return new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull Status status) {
+                    results.add(message + ":" + status.getStatusCode());
+                }
+            };
+        }
+    }
+
+    @Test
+    public void sendsInOrder() {
+        FakeTransport transport = new FakeTransport();
+        OutboundScheduler scheduler = new OutboundScheduler(transport, new Clock());
+        for (String message : new String[] {"a", "b", "c"}) {
+            scheduler.send(NAMESPACE, message, null);
+        }
+        assertEquals(List.of("a", "b", "c"), transport.sent);
+    }
+
+    @Test
+    public void retriesInOrderAfterAFullSendBuffer() {
+        FakeTransport transport = new FakeTransport();
+        Clock clock = new Clock();
+        OutboundScheduler scheduler = new OutboundScheduler(transport, clock);
+        Results results = new Results();
+        for (String message : new String[] {"a", "b", "c"}) {
+            scheduler.send(NAMESPACE, message, results.of(message));
+        }
+        // The errors come back in any order
+        transport.respond("c", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+        transport.respond("a", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+        scheduler.send(NAMESPACE, "d", results.of("d"));
+        transport.respond("b", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+        assertEquals(3, transport.sent.size());
+
+        clock.now += 1000;
+        scheduler.pump();
+        transport.ackAll();
+        assertEquals(List.of("a", "b", "c", "a", "b", "c", "d"), transport.sent);
+        // The callers never see the full buffer
+        assertEquals(List.of("a:0", "b:0", "c:0", "d:0"), results.results);
+    }
+
+    @Test
+    public void holdsLaterMessagesWhileTheNamespaceDrains() {
+        FakeTransport transport = new FakeTransport();
+        Clock clock = new Clock();
+        OutboundScheduler scheduler = new OutboundScheduler(transport, clock);
+        scheduler.send(NAMESPACE, "a", null);
+        scheduler.send(NAMESPACE, "b", null);
+        transport.respond("a", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+        scheduler.send(NAMESPACE, "c", null);
+        scheduler.send(OTHER, "x", null);
+
+        // b may still get the error, so neither a nor c can go, the other namespaces can
+        clock.now += 1000;
+        scheduler.pump();
+        assertEquals(List.of("a", "b", "x"), transport.sent);
+
+        transport.respond("b", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+        clock.now += 1000;
+        scheduler.pump();
+        transport.ackAll();
+        assertEquals(List.of("a", "b", "x", "a", "b", "c"), transport.sent);
+    }
+
+    @Test
+    public void waitsBeforeSendingAgain() {
+        FakeTransport transport = new FakeTransport();
+        Clock clock = new Clock();
+        OutboundScheduler scheduler = new OutboundScheduler(transport, clock);
+        scheduler.send(NAMESPACE, "a", null);
+        transport.respond("a", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+        scheduler.pump();
+        assertEquals(1, transport.sent.size());
+        clock.now += 100;
+        scheduler.pump();
+        assertEquals(List.of("a", "a"), transport.sent);
+    }
+
+    @Test
+    public void reportsTheErrorAfterTheLastRetry() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        Clock clock = new Clock();
+        OutboundScheduler scheduler = new OutboundScheduler(transport, clock);
+        Results results = new Results();
+        scheduler.send(NAMESPACE, "a", results.of("a"));
+        for (int i = 0; i < 6; i++) {
+            transport.respond("a", CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL);
+            clock.now += 1000;
+            scheduler.pump();
+        }
+        assertEquals(6, transport.sent.size());
+        assertEquals(List.of("a:" + CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL), results.results);
+        assertEquals(5, scheduler.getStats().getLong("retries"));
+        assertEquals(6, scheduler.getStats().getLong("bufferFull"));
+
+        // The namespace is not held back anymore
+        scheduler.send(NAMESPACE, "b", results.of("b"));
+        transport.ackAll();
+        assertEquals("b:0", results.results.get(1));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() {
+        FakeTransport transport = new FakeTransport();
+        OutboundScheduler scheduler = new OutboundScheduler(transport, new Clock());
+        Results results = new Results();
+        scheduler.send(NAMESPACE, "a", results.of("a"));
+        scheduler.send(NAMESPACE, "b", results.of("b"));
+        transport.respond("a", CastStatusCodes.NETWORK_ERROR);
+        transport.ackAll();
+        assertEquals(List.of("a", "b"), transport.sent);
+        assertEquals(List.of("a:" + CastStatusCodes.NETWORK_ERROR, "b:0"), results.results);
+    }
+}
@@ -0,0 +1,118 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The wheel ticks in real time, the waits are a few ticks long.
+ */
+public class TimeoutWheelTest {
+
+    @Test
+    public void runsTheTaskAfterTheDelay() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimeoutWheel.getInstance().schedule(250, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        // Accurate to one tick
+        assertTrue("ran after " + elapsed + "ms", elapsed >= 150);
+    }
+
+    @Test
+    public void runsTheTasksInDeadlineOrder() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        int[] delays = {500, 100, 300};
+        for (final int delay : delays) {
+            TimeoutWheel.getInstance().schedule(delay, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(delay);
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(100, 300, 500), order);
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final CountDownLatch later = new CountDownLatch(1);
+        TimeoutWheel.Timeout timeout = TimeoutWheel.getInstance().schedule(200, new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        TimeoutWheel.getInstance().schedule(400, new Runnable() {
+            @Override
+            public void run() {
+                later.countDown();
+            }
+        });
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        // Cancelling twice has no effect
+        assertFalse(timeout.cancel());
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(1, ran.getCount());
+    }
+
+    @Test
+    public void cannotCancelAnExpiredTask() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        TimeoutWheel.Timeout timeout = TimeoutWheel.getInstance().schedule(100, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+        assertFalse(timeout.isCancelled());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        TimeoutWheel.getInstance().schedule(100, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        });
+        TimeoutWheel.getInstance().schedule(100, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void countsCancelledTimeouts() throws Exception {
+        long before = TimeoutWheel.getInstance().getStats().getLong("cancelled");
+        TimeoutWheel.getInstance().schedule(1000, new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).cancel();
+        assertEquals(before + 1, TimeoutWheel.getInstance().getStats().getLong("cancelled"));
+    }
+}
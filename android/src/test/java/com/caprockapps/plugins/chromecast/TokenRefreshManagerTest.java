@@ -0,0 +1,42 @@
+package com.caprockapps.plugins.chromecast;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+public class TokenRefreshManagerTest {
+
+    private static String jwt(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".c2lnbmF0dXJl";
+    }
+
+    @Test
+    public void readsTheExpiryOfAJwt() {
+        assertEquals(1893456000000L, TokenRefreshManager.expiryOf(jwt("{\"sub\":\"user\",\"exp\":1893456000}"), null));
+        // Needs the URL safe alphabet: ~ and ? encode to _ and /
+        String payload = "{\"name\":\"~~~???\",\"exp\":1893456000}";
+        assertTrue(jwt(payload).contains("_") || jwt(payload).contains("-"));
+        assertEquals(1893456000000L, TokenRefreshManager.expiryOf(jwt(payload), null));
+    }
+
+    @Test
+    public void fallsBackToTheUrl() {
+        String url = "https://cdn.example.com/live.m3u8?exp=1893456000";
+        assertEquals(1893456000000L, TokenRefreshManager.expiryOf("opaque-token", url));
+        assertEquals(1893456000000L, TokenRefreshManager.expiryOf(jwt("{\"sub\":\"user\"}"), url));
+        assertEquals(1893456000000L, TokenRefreshManager.expiryOf(null, url));
+    }
+
+    @Test
+    public void unknownExpiry() {
+        assertEquals(0, TokenRefreshManager.expiryOf("opaque-token", null));
+        assertEquals(0, TokenRefreshManager.expiryOf("a.b.c", "https://cdn.example.com/live.m3u8"));
+        assertEquals(0, TokenRefreshManager.expiryOf("a.!!!.c", null));
+        assertEquals(0, TokenRefreshManager.expiryOf(jwt("not json"), null));
+    }
+}
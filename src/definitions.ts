@@ -15,6 +15,7 @@ export interface ChromecastInitializeOptions {
    * - 'tab_and_origin_scoped': Joint automatiquement les sessions de l'onglet et de l'origine
    * - 'origin_scoped': Joint automatiquement les sessions de l'origine
    * - 'page_scoped': Joint automatiquement les sessions de la page
+   * Sur Android, 'page_scoped' ne rejoint jamais de session existante (par défaut: 'origin_scoped')
    */
   autoJoinPolicy?: 'tab_and_origin_scoped' | 'origin_scoped' | 'page_scoped';
   
@@ -24,6 +25,13 @@ export interface ChromecastInitializeOptions {
    * - 'cast_this_tab': Diffuse l'onglet actuel
    */
   defaultActionPolicy?: 'create_session' | 'cast_this_tab';
+
+  /**
+   * Fenêtre en ms pendant laquelle un chargement est retenu s'il suit le précédent de près
+   * (zapping), seul le plus récent est envoyé au récepteur. 0 pour tout envoyer tout de suite
+   * (par défaut: 300, Android)
+   */
+  loadDebounce?: number;
 }
 
 /**
@@ -41,7 +49,8 @@ export interface ChromecastLaunchMediaOptions {
  */
 export interface ChromecastLoadMediaOptions {
   /**
-   * URL du média à charger
+   * URL du média à charger, ou chemin d'un fichier du téléphone (chemin absolu, file:// ou
+   * URL donnée par Capacitor.convertFileSrc) servi au récepteur par le serveur local (Android)
    */
   contentId: string;
   
@@ -96,6 +105,66 @@ export interface ChromecastLoadMediaOptions {
    * Token d'authentification à ajouter aux données personnalisées
    */
   authToken?: string;
+
+  /**
+   * ID de l'application récepteur pour ce média (par défaut: l'appId passé à initialize)
+   * Si la session utilise un autre récepteur, celui-ci est relancé sur le même appareil
+   */
+  receiverAppId?: string;
+
+  /**
+   * Vérifie le manifeste HLS/DASH pendant le lancement du récepteur (Android) : accessibilité,
+   * codecs des variantes, premier segment et expiration du token de l'URL.
+   * En cas d'échec le chargement est rejeté tout de suite avec le code `preflight_failed`,
+   * `reason` et le détail dans `preflight` (voir ChromecastPreflightResult). Les résultats sont mis en cache
+   */
+  preflight?: boolean;
+
+  /**
+   * Suit les redirections de l'URL sur le téléphone (Android) et envoie l'URL finale au récepteur,
+   * qui n'a plus à payer les redirections sur son réseau. L'URL finale est mise en cache selon
+   * la durée de validité des redirections. Le temps gagné est dans getMetrics (loads.redirects)
+   */
+  resolveRedirects?: boolean;
+
+  /**
+   * Fait passer un flux HLS par le relais du téléphone (Android), qui ajoute les en-têtes
+   * (authHeaders) et le token de l'URL du manifeste aux requêtes du manifeste et des segments.
+   * Les flux protégés par en-têtes fonctionnent alors avec n'importe quel récepteur, y compris le
+   * Default Media Receiver. Le téléphone et le Chromecast doivent être sur le même réseau
+   */
+  relay?: boolean;
+}
+
+/**
+ * Résultat de la vérification d'un manifeste (option preflight)
+ */
+export interface ChromecastPreflightResult {
+  ok: boolean;
+  /**
+   * Cause de l'échec
+   */
+  reason?: 'unreachable' | 'http_error' | 'token_expired' | 'invalid_manifest' | 'unsupported_codec' | 'segment_unreachable';
+  message?: string;
+  type: 'hls' | 'dash' | 'progressive' | null;
+  /**
+   * Statut HTTP du manifeste
+   */
+  status: number;
+  variants: { bandwidth?: number; resolution?: string; codecs?: string; url?: string; id?: string; playable: boolean }[];
+  codecs: string[];
+  firstSegment: string | null;
+  segmentStatus: number;
+  /**
+   * Expiration du token de l'URL en secondes depuis l'epoch, 0 si aucun
+   */
+  tokenExpiry: number;
+  warnings: string[];
+  /**
+   * Durée de la vérification en ms
+   */
+  time: number;
+  cached: boolean;
 }
 
 /**
@@ -109,7 +178,8 @@ export interface ChromecastSecureHLSOptions {
   
   /**
    * ID de l'application récepteur personnalisé (optionnel)
-   * Si fourni, utilisera ce récepteur au lieu du récepteur par défaut
+   * Si fourni, ce récepteur est relancé sur l'appareil actuel avant le chargement,
+   * sans réinitialiser la connexion
    */
   customAppId?: string;
   
@@ -117,6 +187,35 @@ export interface ChromecastSecureHLSOptions {
    * Token d'authentification (extrait automatiquement de l'URL si non fourni)
    */
   authToken?: string;
+
+  /**
+   * Vérifie le manifeste HLS/DASH pendant le lancement du récepteur (Android) : accessibilité,
+   * codecs des variantes, premier segment et expiration du token de l'URL.
+   * En cas d'échec le chargement est rejeté tout de suite avec le code `preflight_failed`,
+   * `reason` et le détail dans `preflight` (voir ChromecastPreflightResult). Les résultats sont mis en cache
+   */
+  preflight?: boolean;
+
+  /**
+   * Suit les redirections de l'URL sur le téléphone (Android) et envoie l'URL finale au récepteur,
+   * qui n'a plus à payer les redirections sur son réseau. L'URL finale est mise en cache selon
+   * la durée de validité des redirections. Le temps gagné est dans getMetrics (loads.redirects)
+   */
+  resolveRedirects?: boolean;
+
+  /**
+   * Fait passer un flux HLS par le relais du téléphone (Android), qui ajoute les en-têtes
+   * (authHeaders) et le token de l'URL du manifeste aux requêtes du manifeste et des segments.
+   * Les flux protégés par en-têtes fonctionnent alors avec n'importe quel récepteur, y compris le
+   * Default Media Receiver. Le téléphone et le Chromecast doivent être sur le même réseau
+   */
+  relay?: boolean;
+
+  /**
+   * Délai en ms entre l'événement TOKEN_REFRESH_NEEDED et l'expiration du token (60000 par défaut).
+   * L'expiration est lue dans le token (JWT, claim exp) ou dans l'URL (paramètre exp, expires, hdnts...)
+   */
+  tokenRefreshLeadTime?: number;
   
   /**
    * Type MIME du contenu (par défaut: 'application/x-mpegURL')
@@ -144,6 +243,562 @@ export interface ChromecastSecureHLSOptions {
   customData?: any;
 }
 
+/**
+ * Métriques de performance du plugin (Android uniquement)
+ */
+export interface ChromecastMetrics {
+  /**
+   * Initialisation asynchrone du CastContext
+   */
+  castContext?: {
+    ready: boolean;
+    /**
+     * Durée de l'initialisation en ms (-1 si elle est en cours)
+     */
+    initDuration: number;
+    /**
+     * Nombre d'appels mis en attente puis rejoués après l'initialisation
+     */
+    queuedActions: number;
+    error?: string;
+  };
+  /**
+   * Coût du plugin sur le thread principal, le travail y est regroupé en un passage par frame
+   */
+  mainThread?: {
+    /**
+     * Nombre de frames pendant lesquelles le plugin a travaillé
+     */
+    frames: number;
+    commands: number;
+    /**
+     * Commandes remplacées par une commande identique plus récente avant leur exécution
+     */
+    collapsed: number;
+    /**
+     * Frames dont le budget a été dépassé, la suite étant reportée à la frame suivante
+     */
+    deferredFrames: number;
+    /**
+     * Exécutions faites sans frame (écran éteint), après 50 ms d'attente
+     */
+    fallbackDrains: number;
+    pending: number;
+    /**
+     * Temps passé par frame en ms
+     */
+    lastFrameTime: number;
+    maxFrameTime: number;
+    averageFrameTime: number;
+  };
+  /**
+   * Échéances des opérations natives en attente (loadMedia, requestSession...).
+   * Une opération expirée est rejetée avec le code `timeout` et les données `{ operation, timeout }`
+   */
+  timeouts?: {
+    pending: number;
+    scheduled: number;
+    expired: number;
+    cancelled: number;
+  };
+  /**
+   * Coût de préparation des chargements (loadMedia, loadMediaWithHeaders, launchMedia, loadSecureHLS),
+   * de la lecture des paramètres jusqu'à l'envoi à la session
+   */
+  loads?: {
+    prepared: number;
+    /**
+     * Chargements refusés car invalides (contentId manquant)
+     */
+    rejected: number;
+    dispatched: number;
+    /**
+     * Durées en ms
+     */
+    lastOverhead: number;
+    maxOverhead: number;
+    averageOverhead: number;
+    /**
+     * Attente moyenne (ms) de la détection du type de contenu une fois le récepteur prêt
+     */
+    averageProbeWait: number;
+    /**
+     * Détection réseau du type de contenu, quand ni contentType ni l'extension de l'URL ne le donnent
+     * (requête HEAD, puis lecture des premiers octets), résultats en cache 10 minutes par hôte et motif de chemin
+     */
+    probe: {
+      probes: number;
+      cacheHits: number;
+      sniffed: number;
+      failed: number;
+      cached: number;
+      /**
+       * Durée moyenne d'une détection en ms
+       */
+      averageTime: number;
+    };
+    /**
+     * Vérifications de manifeste (option preflight)
+     */
+    preflight: {
+      checks: number;
+      cacheHits: number;
+      failed: number;
+      /**
+       * Échecs par cause
+       */
+      failures: { [reason: string]: number };
+      cached: number;
+      averageTime: number;
+    };
+    /**
+     * Résolution des redirections (option resolveRedirects)
+     */
+    redirects: {
+      resolved: number;
+      cacheHits: number;
+      failed: number;
+      hops: number;
+      cached: number;
+      /**
+       * Temps que le récepteur aurait passé dans les redirections, en ms (par chargement pour last et average)
+       */
+      lastSaved: number;
+      totalSaved: number;
+      averageSaved: number;
+    };
+  };
+  /**
+   * Serveur HTTP local des fichiers du téléphone (serveLocalFile, chargements de chemins locaux)
+   */
+  localServer?: {
+    running: boolean;
+    port: number;
+    /**
+     * Fichiers servis
+     */
+    files: number;
+    connections: number;
+    openConnections: number;
+    requests: number;
+    rangeRequests: number;
+    bytesSent: number;
+    errors: number;
+  };
+  /**
+   * Relais HLS (option relay)
+   */
+  relay?: {
+    streams: number;
+    playlists: number;
+    segments: number;
+    /**
+     * Segments servis depuis le cache de préchargement
+     */
+    cacheHits: number;
+    prefetched: number;
+    cachedSegments: number;
+    cachedBytes: number;
+    bytesRelayed: number;
+    upstreamErrors: number;
+  };
+  /**
+   * Chargements rapprochés (voir loadDebounce) et temps jusqu'à la lecture, en ms
+   */
+  zapping?: {
+    window: number;
+    submitted: number;
+    /**
+     * Chargements retenus pendant la fenêtre
+     */
+    held: number;
+    /**
+     * Chargements remplacés par un plus récent (load_superseded)
+     */
+    superseded: number;
+    /**
+     * Chargements arrivés en lecture, de l'appel à l'état PLAYING du récepteur
+     */
+    played: number;
+    lastTimeToPlay: number;
+    maxTimeToPlay: number;
+    averageTimeToPlay: number;
+  };
+  /**
+   * Renouvellement du token des flux sécurisés (loadSecureHLS, refreshToken)
+   */
+  tokenRefresh?: {
+    tracking: boolean;
+    /**
+     * Expiration du token courant en ms depuis l'epoch (0 si aucun)
+     */
+    expiresAt: number;
+    leadTime: number;
+    requested: number;
+    refreshed: number;
+    acknowledged: number;
+    /**
+     * Tokens arrivés au récepteur après l'expiration du précédent
+     */
+    late: number;
+    /**
+     * Temps restant au token précédent quand le nouveau est arrivé au récepteur (ms)
+     */
+    lastLead: number;
+    minLead: number;
+    averageLead: number;
+  };
+  /**
+   * Regroupement des messages (setMessageBatching)
+   */
+  batching?: {
+    namespaces: string[];
+    messages: number;
+    envelopes: number;
+    messagesPerEnvelope: number;
+  };
+  /**
+   * Découpage des messages trop gros pour le canal Cast (setMessageChunking)
+   */
+  chunking?: {
+    chunkSize: number;
+    window: number;
+    /**
+     * Messages envoyés en morceaux
+     */
+    chunkedMessages: number;
+    chunks: number;
+    /**
+     * Messages découpés dont un morceau a échoué
+     */
+    failed: number;
+    /**
+     * Messages reçus en morceaux et réassemblés
+     */
+    reassembled: number;
+    /**
+     * Messages reçus ignorés car leur taille ou leur CRC32 ne correspondait pas
+     */
+    corrupted: number;
+    /**
+     * Messages en cours de réassemblage
+     */
+    partials: number;
+  };
+  /**
+   * Compression des messages (setMessageCompression)
+   */
+  compression?: {
+    enabled: boolean;
+    threshold: number;
+    /**
+     * Messages envoyés compressés
+     */
+    compressed: number;
+    /**
+     * Messages envoyés tels quels car ils ne rétrécissaient pas
+     */
+    notShrunk: number;
+    /**
+     * Messages envoyés tels quels sans essai, après plusieurs messages qui ne rétrécissaient pas
+     */
+    skipped: number;
+    /**
+     * Taille des messages compressés avant compression en octets
+     */
+    bytesIn: number;
+    /**
+     * Taille des messages compressés après compression en octets
+     */
+    bytesOut: number;
+    /**
+     * bytesOut / bytesIn
+     */
+    ratio: number;
+    /**
+     * Temps CPU passé à compresser en ms
+     */
+    compressTime: number;
+    averageCompressTime: number;
+    decompressed: number;
+    /**
+     * Temps CPU passé à décompresser en ms
+     */
+    decompressTime: number;
+    /**
+     * Messages reçus ignorés car ils ne pouvaient pas être décompressés
+     */
+    corrupted: number;
+  };
+  /**
+   * Ordonnanceur d'envoi des messages (setMessageLane, setLaneRateLimit)
+   */
+  scheduler?: {
+    inFlight: number;
+    /**
+     * Limite actuelle de messages en vol, divisée par deux à chaque erreur 2007
+     */
+    window: number;
+    /**
+     * Erreurs 2007 (tampon d'envoi plein)
+     */
+    bufferFull: number;
+    /**
+     * Messages renvoyés après une erreur 2007, l'erreur n'est remontée qu'après 5 essais
+     */
+    retries: number;
+    control: ChromecastLaneStats;
+    media: ChromecastLaneStats;
+    bulk: ChromecastLaneStats;
+  };
+  /**
+   * Messages reçus par namespace écouté
+   */
+  router?: {
+    [namespace: string]: {
+      subscribers: number;
+      received: number;
+      delivered: number;
+      /**
+       * Messages écartés par le filtre de types
+       */
+      filtered: number;
+    };
+  };
+  /**
+   * Appels RPC (rpc)
+   */
+  rpc?: {
+    calls: number;
+    /**
+     * Appels en attente de leur réponse ou de place dans la fenêtre
+     */
+    pending: number;
+    succeeded: number;
+    /**
+     * Appels en erreur (erreur du receiver, envoi impossible, session perdue)
+     */
+    failed: number;
+    timedOut: number;
+    /**
+     * Temps moyen entre l'appel et la réponse en ms
+     */
+    averageLatency: number;
+  };
+  /**
+   * Compteurs des messages envoyés, par namespace
+   */
+  messages?: {
+    [namespace: string]: {
+      sent: number;
+      succeeded: number;
+      failed: number;
+      inFlight: number;
+      maxInFlight: number;
+      bytes: number;
+      messagesPerSecond: number;
+      bytesPerSecond: number;
+      /**
+       * Temps moyen entre l'envoi et le résultat en ms
+       */
+      averageLatency: number;
+      /**
+       * Code d'erreur Cast du dernier échec (0 si aucun)
+       */
+      lastError: number;
+    };
+  };
+  /**
+   * Statistiques du lien mesurées par le heartbeat (si démarré)
+   */
+  link?: ChromecastLinkStats;
+}
+
+/**
+ * Options du regroupement des messages d'un namespace
+ */
+export interface ChromecastMessageBatchingOptions {
+  namespace: string;
+  /**
+   * Active (par défaut) ou désactive le regroupement
+   */
+  enabled?: boolean;
+  /**
+   * Durée pendant laquelle un message attend d'être regroupé avec les suivants en ms (20 par défaut)
+   */
+  window?: number;
+  /**
+   * Taille maximale d'une enveloppe en octets (16384 par défaut)
+   */
+  maxBytes?: number;
+}
+
+/**
+ * Options du découpage des messages trop gros pour le canal Cast
+ */
+export interface ChromecastMessageChunkingOptions {
+  /**
+   * Taille des données d'un morceau en octets (16384 par défaut, 36864 au plus)
+   */
+  chunkSize?: number;
+  /**
+   * Nombre de morceaux envoyés sans attendre leur résultat (4 par défaut)
+   */
+  window?: number;
+}
+
+/**
+ * Options de la compression des messages envoyés
+ */
+export interface ChromecastMessageCompressionOptions {
+  /**
+   * Active (par défaut) ou désactive la compression
+   */
+  enabled?: boolean;
+  /**
+   * Taille en octets à partir de laquelle les messages sont compressés (1024 par défaut)
+   */
+  threshold?: number;
+}
+
+/**
+ * Voie de l'ordonnanceur d'envoi, servies dans l'ordre control, media, bulk
+ */
+export type ChromecastLane = 'control' | 'media' | 'bulk';
+
+/**
+ * Statistiques d'une voie de l'ordonnanceur d'envoi
+ */
+export interface ChromecastLaneStats {
+  /**
+   * Messages en attente
+   */
+  depth: number;
+  maxDepth: number;
+  enqueued: number;
+  sent: number;
+  /**
+   * Temps moyen d'attente dans la file en ms
+   */
+  averageWait: number;
+  /**
+   * Messages par seconde (0 sans limite)
+   */
+  rate: number;
+  burst: number;
+  bufferFull: number;
+}
+
+/**
+ * Limite de débit d'une voie
+ */
+export interface ChromecastLaneRateLimitOptions {
+  lane: ChromecastLane;
+  /**
+   * Messages par seconde, 0 pour ne pas limiter
+   */
+  rate: number;
+  /**
+   * Messages pouvant partir d'un coup après une pause (1 par défaut)
+   */
+  burst?: number;
+}
+
+/**
+ * Options de l'écoute des messages d'un namespace
+ */
+export interface ChromecastMessageListenerOptions {
+  namespace: string;
+  /**
+   * Ne recevoir que les messages JSON dont le champ `type` est dans la liste
+   * (les autres sont filtrés en natif, sans traverser le bridge)
+   */
+  types?: string[];
+  /**
+   * Émettre les messages en NAMESPACE_MESSAGE `{ deviceId, namespace, message }` (false par défaut)
+   */
+  flat?: boolean;
+}
+
+/**
+ * Appel d'une méthode du receiver
+ */
+export interface ChromecastRpcOptions {
+  namespace: string;
+  method: string;
+  /**
+   * Paramètres de la méthode
+   */
+  params?: any;
+  /**
+   * Délai d'attente de la réponse en ms (10000 par défaut)
+   */
+  timeout?: number;
+}
+
+/**
+ * Réponse d'un appel RPC
+ */
+export interface ChromecastRpcResult {
+  result: any;
+}
+
+/**
+ * Options du heartbeat envoyé au receiver
+ */
+export interface ChromecastHeartbeatOptions {
+  /**
+   * Intervalle entre deux heartbeats en ms (2000 par défaut)
+   */
+  interval?: number;
+  /**
+   * RTT moyen en ms au-delà duquel le lien est considéré dégradé (500 par défaut)
+   */
+  degradedRtt?: number;
+  /**
+   * Nombre de heartbeats sur lesquels les statistiques glissantes sont calculées (20 par défaut)
+   */
+  windowSize?: number;
+}
+
+/**
+ * Statistiques du lien avec le receiver, aussi envoyées avec les événements
+ * LINK_DEGRADED et LINK_RECOVERED
+ */
+export interface ChromecastLinkStats {
+  running: boolean;
+  interval: number;
+  degraded: boolean;
+  /**
+   * false si le receiver n'a répondu à aucun heartbeat (pas de gestionnaire pour le namespace,
+   * voir custom-receiver/index.html) : LINK_DEGRADED n'est alors pas émis
+   */
+  supported: boolean;
+  sent: number;
+  received: number;
+  lost: number;
+  /**
+   * Nombre de heartbeats dans la fenêtre glissante
+   */
+  windowSize: number;
+  /**
+   * Taux de perte sur la fenêtre glissante (0 à 1)
+   */
+  lossRate: number;
+  /**
+   * Dernier RTT en ms (-1 si aucun)
+   */
+  rttLast: number;
+  rttAverage?: number;
+  rttMin?: number;
+  rttMax?: number;
+  rttP95?: number;
+  /**
+   * Gigue en ms (RFC 3550)
+   */
+  jitter: number;
+}
+
 export interface ChromecastPlugin {
   /**
    * Initialise le plugin Chromecast avec les options spécifiées
@@ -162,7 +817,10 @@ export interface ChromecastPlugin {
   launchMedia(options: ChromecastLaunchMediaOptions): Promise<{ value: boolean }>;
 
   /**
-   * Charge un média avec des options étendues incluant le support pour les en-têtes d'authentification
+   * Charge un média avec des options étendues incluant le support pour les en-têtes d'authentification.
+   * Un chargement lancé avant la fin du précédent le remplace : la promesse du précédent est
+   * rejetée avec le code `load_superseded` (Android), qu'il soit encore en préparation, retenu
+   * (voir loadDebounce) ou déjà envoyé au récepteur
    * @param options Options détaillées pour le chargement du média
    * @returns Promise qui se résout avec les informations du média chargé
    */
@@ -182,10 +840,123 @@ export interface ChromecastPlugin {
    */
   loadSecureHLS(options: ChromecastSecureHLSOptions): Promise<any>;
 
+  /**
+   * Donne le nouveau token d'un flux chargé avec loadSecureHLS (Android).
+   * L'événement TOKEN_REFRESH_NEEDED `{ contentId, expiresAt, expiresIn }` est émis avant l'expiration
+   * du token (voir tokenRefreshLeadTime), le nouveau token est envoyé au récepteur (voir
+   * custom-receiver/index.html) et au relais HLS. TOKEN_REFRESH_LATE `{ contentId, expiredFor }`
+   * est émis si le token expire avant d'avoir été renouvelé, ou si le nouveau arrive au récepteur
+   * après l'expiration du précédent. Le suivi commence quand le récepteur a accepté le média, et
+   * s'arrête à la fin de la session ou au chargement d'un autre média
+   * @param options `{ token }`
+   */
+  refreshToken(options: { token: string }): Promise<void>;
+
   addListener(
     eventName: string,
     listenerFunc: ListenerCallback,
   ): Promise<PluginListenerHandle>;
 
+  /**
+   * Envoie un message sur un namespace personnalisé.
+   * Sur Android la promesse se résout avec le résultat réel de l'envoi
+   * (`{ success, error?, code? }`), plusieurs messages peuvent être en cours et se terminent dans l'ordre.
+   * Les messages peuvent être compressés (voir setMessageCompression) et ceux trop gros
+   * pour le canal Cast sont découpés (voir setMessageChunking)
+   * @param messageObj `{ namespace, message }`
+   */
   sendMessage(messageObj: any): Promise<any>;
+
+  /**
+   * Écoute les messages d'un namespace, l'abonnement est conservé entre les sessions.
+   * Par défaut les messages sont émis en RECEIVER_MESSAGE `{ [deviceId]: { namespace, message } }`,
+   * avec `flat` en NAMESPACE_MESSAGE `{ deviceId, namespace, message }`
+   * @param options Namespace, types de messages et format
+   */
+  addMessageListener(options: ChromecastMessageListenerOptions): Promise<void>;
+
+  /**
+   * Arrête l'écoute des messages d'un namespace
+   * @param options `{ namespace }`
+   */
+  removeMessageListener(options: { namespace: string }): Promise<void>;
+
+  /**
+   * Appelle une méthode du receiver et attend sa réponse (voir custom-receiver/index.html).
+   * La réponse est remise à cet appel seulement, sans événement RECEIVER_MESSAGE.
+   * Au plus 8 appels par namespace attendent leur réponse, les suivants sont mis en file.
+   * Rejeté avec le code de l'erreur du receiver, `timeout` ou `session_error`
+   * @param options Namespace, méthode, paramètres et délai
+   */
+  rpc(options: ChromecastRpcOptions): Promise<ChromecastRpcResult>;
+
+  /**
+   * Retourne les métriques de performance du plugin
+   * @returns Promise qui se résout avec les métriques (vide sur le web)
+   */
+  getMetrics(): Promise<ChromecastMetrics>;
+
+  /**
+   * Active ou désactive le regroupement des messages d'un namespace dans une enveloppe.
+   * Le receiver doit dégrouper les enveloppes (voir custom-receiver/index.html).
+   * L'ordre est conservé et chaque sendMessage reçoit son propre résultat
+   * @param options Options du regroupement
+   */
+  setMessageBatching(options: ChromecastMessageBatchingOptions): Promise<void>;
+
+  /**
+   * Configure le découpage des messages trop gros pour le canal Cast.
+   * Les messages de plus de 48 Ko sont envoyés en morceaux que le receiver réassemble
+   * (voir custom-receiver/index.html), les messages reçus en morceaux sont réassemblés
+   * @param options Options du découpage
+   */
+  setMessageChunking(options: ChromecastMessageChunkingOptions): Promise<void>;
+
+  /**
+   * Active ou désactive la compression (deflate + base64) des messages envoyés.
+   * Seuls les messages au-dessus du seuil qui rétrécissent sont compressés, le receiver doit
+   * les décompresser (voir custom-receiver/index.html). Les messages compressés reçus sont décompressés
+   * @param options Options de la compression
+   */
+  setMessageCompression(options?: ChromecastMessageCompressionOptions): Promise<void>;
+
+  /**
+   * Place les messages d'un namespace dans une voie de l'ordonnanceur d'envoi ("media" par défaut).
+   * Les messages de contrôle ne sont ainsi pas retardés par un transfert en masse
+   * @param options `{ namespace, lane }`
+   */
+  setMessageLane(options: { namespace: string; lane: ChromecastLane }): Promise<void>;
+
+  /**
+   * Change la limite de débit d'une voie (par défaut aucune voie n'est limitée)
+   * @param options Voie et débit
+   */
+  setLaneRateLimit(options: ChromecastLaneRateLimitOptions): Promise<void>;
+
+  /**
+   * Sert un fichier du téléphone au récepteur avec le serveur HTTP local (Android), par exemple
+   * pour des sous-titres. Les méthodes de chargement le font d'elles-mêmes quand contentId est un chemin local.
+   * L'URL contient un token propre au fichier, le téléphone et le Chromecast doivent être sur le même réseau
+   * @param options Chemin du fichier (chemin absolu, file:// ou URL donnée par Capacitor.convertFileSrc) et type MIME
+   * @returns L'URL à donner au récepteur
+   */
+  serveLocalFile(options: { path: string; contentType?: string }): Promise<{ url: string }>;
+
+  /**
+   * Démarre le heartbeat qui mesure le RTT, la gigue et la perte de messages avec le receiver.
+   * Le receiver doit répondre aux PING (voir custom-receiver/index.html).
+   * @param options Options du heartbeat
+   */
+  startHeartbeat(options?: ChromecastHeartbeatOptions): Promise<void>;
+
+  /**
+   * Arrête le heartbeat, les dernières statistiques restent disponibles
+   */
+  stopHeartbeat(): Promise<void>;
+
+  /**
+   * Retourne les statistiques du lien mesurées par le heartbeat
+   * @returns Promise qui se résout avec les statistiques
+   */
+  getLinkStats(): Promise<ChromecastLinkStats>;
 }
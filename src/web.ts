@@ -1,6 +1,6 @@
 import { WebPlugin } from '@capacitor/core';
 
-import type { ChromecastPlugin } from './definitions';
+import type { ChromecastLinkStats, ChromecastMetrics, ChromecastPlugin, ChromecastRpcResult } from './definitions';
 
 declare global {
   interface Window {
@@ -227,6 +227,48 @@ export class ChromecastWeb extends WebPlugin implements ChromecastPlugin {
     }
     return { success: true, error: null };
   }
+  async addMessageListener(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async removeMessageListener(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async rpc(): Promise<ChromecastRpcResult> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async getMetrics(): Promise<ChromecastMetrics> {
+    return {};
+  }
+  async setMessageBatching(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async setMessageChunking(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async setMessageCompression(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async setMessageLane(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async setLaneRateLimit(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async serveLocalFile(): Promise<{ url: string }> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async refreshToken(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async startHeartbeat(): Promise<void> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
+  async stopHeartbeat(): Promise<void> {
+    return;
+  }
+  async getLinkStats(): Promise<ChromecastLinkStats> {
+    throw this.unimplemented('Non disponible sur le web');
+  }
   async addCastEventListeners() {
     console.log('Add listener via instance', this.instance);
     if (!this.instance) this.instance = cast.framework.CastContext.getInstance();